@@ -63,6 +63,9 @@ public class MeasurePanel extends JPanel implements
     
     private FloatBuffer line_buffer = BufferUtil.newFloatBuffer(128*3);
     private FloatBuffer point_buffer = BufferUtil.newFloatBuffer(32*3);
+    private double [] profile_lonlat = new double[256];
+    private double [] profile_h      = new double[128];
+    private int       profile_num    = 0;
     
     private boolean is_completed = false;
     
@@ -260,33 +263,43 @@ public class MeasurePanel extends JPanel implements
             line_buffer = tmp;
         }
         
-        navigator.getGlobe().getEllipsoid().toCartesian(lat1, lon1, navigator.getGlobe().getElevation(lon1, lat1)+line_h, p3d);
-        p3d.sub(navigator.getOrigin());
-        line_buffer.put((float)p3d.x);
-        line_buffer.put((float)p3d.y);
-        line_buffer.put((float)p3d.z);
-        
+        // Find the profile positions, then sample the elevations in one go
+        profile_num = 0;
+        addProfilePosition(lon1, lat1);
         double lat = lat1;
         double lon = lon1;
         while (daz.dist > step_len) {
             llaz = navigator.getGlobe().getEllipsoid().forwGeodesic(lat, lon, step_len, daz.az12, llaz);
             lat = llaz.lat;
             lon = llaz.lon;
+            addProfilePosition(lon, lat);
             
-            navigator.getGlobe().getEllipsoid().toCartesian(lat, lon, navigator.getGlobe().getElevation(lon, lat)+line_h, p3d);
+            daz = navigator.getGlobe().getEllipsoid().inverseGeodesic(lat, lon, lat2, lon2, daz);
+        }
+        addProfilePosition(lon2, lat2);
+        
+        if (profile_h.length < profile_num)
+            profile_h = new double[profile_lonlat.length/2];
+        navigator.getGlobe().getElevations(profile_lonlat, profile_num, profile_h);
+        
+        for (int i = 0; i < profile_num; ++i) {
+            navigator.getGlobe().getEllipsoid().toCartesian(profile_lonlat[2*i+1], profile_lonlat[2*i], profile_h[i]+line_h, p3d);
             p3d.sub(navigator.getOrigin());
             line_buffer.put((float)p3d.x);
             line_buffer.put((float)p3d.y);
             line_buffer.put((float)p3d.z);
-            
-            daz = navigator.getGlobe().getEllipsoid().inverseGeodesic(lat, lon, lat2, lon2, daz);
         }
-        
-        navigator.getGlobe().getEllipsoid().toCartesian(lat2, lon2, navigator.getGlobe().getElevation(lon2, lat2)+line_h, p3d);
-        p3d.sub(navigator.getOrigin());
-        line_buffer.put((float)p3d.x);
-        line_buffer.put((float)p3d.y);
-        line_buffer.put((float)p3d.z);
+    }
+    
+    private void addProfilePosition(double lon, double lat) {
+        if (2*profile_num >= profile_lonlat.length) {
+            double [] tmp = new double[profile_lonlat.length*2];
+            System.arraycopy(profile_lonlat, 0, tmp, 0, 2*profile_num);
+            profile_lonlat = tmp;
+        }
+        profile_lonlat[2*profile_num]   = lon;
+        profile_lonlat[2*profile_num+1] = lat;
+        ++profile_num;
     }
     
     private synchronized void updateProfile() {
@@ -23,6 +23,7 @@ import java.net.URL;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -108,6 +109,21 @@ public abstract class CacheManager {
         return new File(root, path);
     }
     
+    /**
+     * A texture tile read from the cache
+     */
+    public static class TileData {
+        /** The tile as it was written, read only */
+        public final ByteBuffer data;
+        /** The time the tile was written to the cache, in milliseconds */
+        public final long       modified;
+        
+        public TileData(ByteBuffer data, long modified) {
+            this.data     = data;
+            this.modified = modified;
+        }
+    }
+    
     protected class TsSize {
         private long [] ts_size;
         private int max_ts;
@@ -160,7 +176,18 @@ public abstract class CacheManager {
     abstract protected void delete() throws IOException;
     
     abstract public ElevationCache getElevationCache(String name, ElevationSource.ModelQuery server_mq) throws IOException;
-    abstract public File           getTileCacheFile(String name, String pos_code, String suffix) throws IOException;
+    
+    /**
+     * Read a texture tile from the cache
+     * @return The tile, or null if it is not cached
+     */
+    abstract public TileData getTile(String name, String pos_code, String suffix) throws IOException;
+    /**
+     * Write a texture tile to the cache, replacing any earlier version
+     * @param data The tile, from position to limit
+     */
+    abstract public void     putTile(String name, String pos_code, String suffix, ByteBuffer data) throws IOException;
+    abstract public void     deleteTile(String name, String pos_code, String suffix);
     
     abstract public void deleteFile(URL url);
     abstract public InputStream getInputStream(URL url) throws IOException;
@@ -19,6 +19,7 @@ package com.norkart.virtualglobe.cache;
 
 import com.norkart.virtualglobe.globesurface.ElevationSource;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -48,4 +49,25 @@ public abstract class ElevationCache {
     public abstract void set(byte [] key, int h, int dh);
     public abstract boolean lock();
     public abstract void unlock();
+    
+    // Statistics, updated by the implementations, possibly from several threads
+    protected final AtomicLong reads  = new AtomicLong(), hits = new AtomicLong();
+    protected final AtomicLong writes = new AtomicLong(), errors = new AtomicLong();
+    protected final AtomicLong readNanos = new AtomicLong(), writeNanos = new AtomicLong();
+    
+    public long getReadCount()  { return reads.get(); }
+    public long getHitCount()   { return hits.get(); }
+    public long getWriteCount() { return writes.get(); }
+    public long getErrorCount() { return errors.get(); }
+    public long getReadNanos()  { return readNanos.get(); }
+    public long getWriteNanos() { return writeNanos.get(); }
+    
+    public void resetCounts() {
+        reads.set(0);
+        hits.set(0);
+        writes.set(0);
+        errors.set(0);
+        readNanos.set(0);
+        writeNanos.set(0);
+    }
 }
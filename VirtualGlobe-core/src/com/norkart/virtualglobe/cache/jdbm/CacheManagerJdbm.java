@@ -24,6 +24,8 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
 import java.lang.ref.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * <p>Title: Virtual Globe</p>
@@ -36,7 +38,7 @@ import java.lang.ref.*;
 
 public final class CacheManagerJdbm extends CacheManager {
     final private static String HEADER_NAME = "Header";
-    final private static String DB_VERSION = "Virtual Globe Cache DB 1.01";
+    final private static String DB_VERSION = "Virtual Globe Cache DB 1.05";
     
     final private static String TS_NAME                    = "Ts";
     final private static String ELEVATION_SURFACE_SET_NAME = "ElevationSurfaceSet";
@@ -58,6 +60,11 @@ public final class CacheManagerJdbm extends CacheManager {
     // private long size = 0;
     
     final static int MAX_BAD_WARNINGS = 20;
+    
+    // Number of block access epochs within the age of the cache,
+    // and the shortest epoch in time stamps
+    final static int ACCESS_EPOCHS    = 64;
+    final static int MIN_ACCESS_EPOCH = 64;
     int bad_warnings = 0;
     
     
@@ -73,8 +80,10 @@ public final class CacheManagerJdbm extends CacheManager {
     private long                file_set_recid;
     private HTree               file_set;
     
+    // Tile key to TileSegmentStore.Location
     private long                tile_set_recid;
     private BTree               tile_set;
+    private TileSegmentStore    tile_store;
     
     static class Lock {
         boolean locked = false;
@@ -98,8 +107,8 @@ public final class CacheManagerJdbm extends CacheManager {
         ElevationSurfaceRecord            surf_rec = new ElevationSurfaceRecord();
         TilePyramidRecord                 tile_rec = new TilePyramidRecord();
         FileRecord                        file_rec = new FileRecord();
-        ElevationSource.ByteArraySizeComp ele_key_comp = ElevationSource.ByteArraySizeComp.INSTANCE;
-        ElevationCacheJdbm.RecordSerializer   ele_rec = ElevationCacheJdbm.RecordSerializer.INSTANCE;
+        ElevationCacheJdbm.BlockSerializer ele_block = ElevationCacheJdbm.BlockSerializer.INSTANCE;
+        TileSegmentStore.LocationSerializer tile_loc = TileSegmentStore.LocationSerializer.INSTANCE;
     }
     
     private static class TimeStamp implements Serializable {
@@ -123,15 +132,35 @@ public final class CacheManagerJdbm extends CacheManager {
     }
     
     static class ElevationSurfaceRecord implements Serializable {
-        transient boolean busy = false;
+        // Number of threads between ElevationCache.lock and unlock
+        transient int busy = 0;
         transient SoftReference btree_ref;
+        // Readers share the read lock, writes and the garbage collector take the write lock
+        transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Decoded blocks, shared by the readers
+        transient ConcurrentHashMap<Long, ElevationCacheJdbm.Block> blocks = new ConcurrentHashMap<Long, ElevationCacheJdbm.Block>();
+        // Blocks changed since the last flush
+        transient HashMap<Long, ElevationCacheJdbm.Block> dirty_blocks = new HashMap<Long, ElevationCacheJdbm.Block>();
+        // Access epochs of blocks read since the last flush
+        transient ConcurrentHashMap<Long, Integer> access_pending = new ConcurrentHashMap<Long, Integer>();
+        transient SoftReference access_ref;
         long recid;
+        // The tree of block access epochs, 0 if not created yet
+        long access_recid;
         double a;
         double f;
         float  hScale;
         int    version;
         int    model_type;
         int ts = Integer.MAX_VALUE;
+        
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            lock           = new ReentrantReadWriteLock();
+            blocks         = new ConcurrentHashMap<Long, ElevationCacheJdbm.Block>();
+            dirty_blocks   = new HashMap<Long, ElevationCacheJdbm.Block>();
+            access_pending = new ConcurrentHashMap<Long, Integer>();
+        }
     }
     
     static class TilePyramidSet implements Serializable {
@@ -264,12 +293,13 @@ public final class CacheManagerJdbm extends CacheManager {
             tile_set = BTree.createInstance(recman,
                     new jdbm.helper.ByteArrayComparator(),
                     new jdbm.helper.ByteArraySerializer(),
-                    new jdbm.helper.IntegerSerializer());
+                    TileSegmentStore.LocationSerializer.INSTANCE);
             tile_set_recid = tile_set.getRecid();
             recman.setNamedObject(TILE_SET_NAME, tile_set_recid);
         }
         
         recman.commit();
+        tile_store = new TileSegmentStore(tile_dir);
         enabled = true;
         
         file_gc = new FileGC();
@@ -329,6 +359,10 @@ public final class CacheManagerJdbm extends CacheManager {
             }
             recman = null;
         }
+        if (tile_store != null) {
+            tile_store.close();
+            tile_store = null;
+        }
         el_gc = null;
         file_gc = null;
         elevation_surface_set = null;
@@ -386,12 +420,12 @@ public final class CacheManagerJdbm extends CacheManager {
     public ElevationCache getElevationCache(String name, ElevationSource.ModelQuery server_mq) throws IOException {
         return new ElevationCacheJdbm(this, name, server_mq);
     }
-    public File getTileCacheFile(String name, String pos_code, String suffix) throws IOException {
-        if (!enabled)
-            return null;
-        
+    /**
+     * The key of a tile in the tile set: the id of the tile pyramid followed
+     * by the position code and suffix
+     */
+    private byte [] getTileKey(String name, String pos_code, String suffix) throws IOException {
         TilePyramidRecord rec = null;
-        File root = null;
         synchronized (tile_pyramid_set) {
             
             Object o = tile_pyramid_set.name_to_id.get(name);
@@ -411,27 +445,47 @@ public final class CacheManagerJdbm extends CacheManager {
                 tile_pyramid_set.dirty = true;
                 commit();
             }
-            
-            root = new File(tile_dir, Integer.toHexString(rec.id.intValue()));
         }
         
+        if (suffix != null && suffix.length() > 0)
+            pos_code += "." + suffix;
         byte [] pos_bytes = pos_code.getBytes("UTF-8");
         byte [] key = new byte[pos_bytes.length + 4];
         CacheUtil.serializeInt4(rec.id.intValue(), key, 0);
         for (int i=0; i<pos_bytes.length;++i)
             key[i+4] = pos_bytes[i];
+        return key;
+    }
+    
+    /**
+     * Wait while the file garbage collector works on the tile set.
+     * The caller must synchronize on tile_set_lock.
+     * @return false if the cache is closed
+     */
+    private boolean waitForTileSet() {
+        while (enabled && tile_set_lock.locked) {
+            try {
+                tile_set_lock.wait();
+            } catch (InterruptedException ex) {}
+        }
+        return enabled;
+    }
+    
+    public TileData getTile(String name, String pos_code, String suffix) throws IOException {
+        if (!enabled)
+            return null;
         
+        byte [] key = getTileKey(name, pos_code, suffix);
+        TileSegmentStore.Location loc = null;
         synchronized (tile_set_lock) {
-            while (enabled && tile_set_lock.locked) {
-                try {
-                    tile_set_lock.wait();
-                } catch (InterruptedException ex) {}
-            }
-            
-            if (!enabled) return null;
+            if (!waitForTileSet()) return null;
             
             try {
-                tile_set.insert(key, new Integer(newTs()), true);
+                loc = (TileSegmentStore.Location)tile_set.find(key);
+                if (loc == null)
+                    return null;
+                loc.ts = newTs();
+                tile_set.insert(key, loc, true);
             } catch (IOException ex) {
                 ex.printStackTrace();
                 return null;
@@ -441,14 +495,61 @@ public final class CacheManagerJdbm extends CacheManager {
                 ex.printStackTrace();
                 return null;
             }
-            File f = getFile(root, pos_code, suffix);
-            return f;
+        }
+        
+        // The segment may have been compacted away since the lookup, then the tile is lost
+        TileSegmentStore store = tile_store;
+        ByteBuffer data = store != null ? store.read(loc) : null;
+        return data != null ? new TileData(data, loc.modified) : null;
+    }
+    
+    public void putTile(String name, String pos_code, String suffix, ByteBuffer data) throws IOException {
+        TileSegmentStore store = tile_store;
+        if (!enabled || store == null)
+            return;
+        
+        byte [] key = getTileKey(name, pos_code, suffix);
+        // Append and insert together, so that the file garbage collector never
+        // counts the live data of a segment holding a tile not yet in the tile set
+        synchronized (tile_set_lock) {
+            if (!waitForTileSet()) return;
+            
+            TileSegmentStore.Location loc = store.append(data, newTs(), System.currentTimeMillis());
+            try {
+                tile_set.insert(key, loc, true);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } catch (Throwable ex) {
+                ++bad_warnings;
+                System.err.println("Possibly bad cache database");
+                ex.printStackTrace();
+            }
+        }
+    }
+    
+    public void deleteTile(String name, String pos_code, String suffix) {
+        if (!enabled)
+            return;
+        
+        try {
+            byte [] key = getTileKey(name, pos_code, suffix);
+            synchronized (tile_set_lock) {
+                if (waitForTileSet() && tile_set.find(key) != null)
+                    tile_set.remove(key);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (Throwable ex) {
+            ++bad_warnings;
+            System.err.println("Possibly bad cache database");
+            ex.printStackTrace();
         }
     }
     
     void initElevationCache(ElevationCacheJdbm el_set) throws IOException {
         el_set.elevations = null;
         el_set.rec = null;
+        el_set.block_epochs.clear();
         if (!enabled)
             return;
         
@@ -461,6 +562,8 @@ public final class CacheManagerJdbm extends CacheManager {
             
             if (el_set.server_mq != null && el_set.rec != null && el_set.rec.version != el_set.server_mq.version) {
                 elevation_surface_set.deleted_recid.add(new Long(el_set.rec.recid));
+                if (el_set.rec.access_recid != 0)
+                    elevation_surface_set.deleted_recid.add(new Long(el_set.rec.access_recid));
                 elevation_surface_set.surface_set.remove(el_set.getName());
                 elevation_surface_set.dirty = true;
                 el_set.rec = null;
@@ -480,10 +583,8 @@ public final class CacheManagerJdbm extends CacheManager {
                 el_set.rec.version = el_set.server_mq.version;
                 el_set.rec.model_type = el_set.server_mq.modelType;
                 
-                el_set.elevations = BTree.createInstance(recman,
-                        ElevationSource.ByteArraySizeComp.INSTANCE,
-                        ByteArraySerializer.INSTANCE,
-                        ElevationCacheJdbm.RecordSerializer.INSTANCE, 128);
+                el_set.elevations = BTree.createInstance(recman, new LongComparator(),
+                        LongSerializer.INSTANCE, LongSerializer.INSTANCE, 128);
                 
                 el_set.rec.recid = el_set.elevations.getRecid();
                 elevation_surface_set.surface_set.put(el_set.getName(), el_set.rec);
@@ -504,6 +605,47 @@ public final class CacheManagerJdbm extends CacheManager {
         }
     }
     
+    /**
+     * Get the tree of block access epochs of an elevation surface,
+     * keyed by ElevationCacheJdbm.blockOf
+     * @param create Create the tree if it does not exist
+     * @return The tree, or null if it does not exist and create is false
+     */
+    BTree getAccessTree(ElevationSurfaceRecord rec, boolean create) throws IOException {
+        BTree access = null;
+        if (rec.access_ref != null && (access = (BTree)rec.access_ref.get()) != null)
+            return access;
+        if (rec.access_recid != 0)
+            access = BTree.load(recman, rec.access_recid);
+        else if (create) {
+            access = BTree.createInstance(recman, new LongComparator(),
+                    LongSerializer.INSTANCE, IntegerSerializer.INSTANCE, 128);
+            rec.access_recid = access.getRecid();
+            elevation_surface_set.dirty = true;
+        } else
+            return null;
+        rec.access_ref = new SoftReference(access);
+        return access;
+    }
+    
+    /**
+     * Write the pending block access epochs of an elevation surface to the database.
+     * The caller must hold the write lock of the record.
+     * @return true if any epochs were written
+     */
+    boolean flushAccessEpochs(ElevationSurfaceRecord rec) throws IOException {
+        if (rec.access_pending.isEmpty())
+            return false;
+        BTree access = getAccessTree(rec, true);
+        Iterator<Map.Entry<Long, Integer>> it = rec.access_pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> entry = it.next();
+            access.insert(entry.getKey(), entry.getValue(), true);
+        }
+        rec.access_pending.clear();
+        return true;
+    }
+    
     private  File getFile(String name) throws IOException {
         if (!enabled) return null;
         
@@ -605,6 +747,15 @@ public final class CacheManagerJdbm extends CacheManager {
         return ts.ts;
     }
     
+    /**
+     * The length of a block access epoch, a fraction of the age of the oldest
+     * data in the cache. An elevation block read within an epoch is not
+     * recorded again.
+     */
+    int accessEpochLength() {
+        return (int)Math.max(MIN_ACCESS_EPOCH, ((long)ts.ts - ts.gc_ts)/ACCESS_EPOCHS);
+    }
+    
     public int newFileId() {
         ++ts.file_id;
         ts.dirty = true;
@@ -656,12 +807,14 @@ public final class CacheManagerJdbm extends CacheManager {
                         BTree btree = null;
                         try {
                             btree = BTree.load(recman, recid_obj.longValue());
-                            byte [] key = {0};
-                            Tuple t;
+                            Tuple t = new Tuple();
                             long starttime = System.currentTimeMillis();
-                            while (bad_warnings <= MAX_BAD_WARNINGS && enabled && (t = btree.findGreaterOrEqual(key)) != null && recman != null) {
+                            while (bad_warnings <= MAX_BAD_WARNINGS && enabled && btree.browse().getNext(t) && recman != null) {
                                 yield();
                                 btree.remove(t.getKey());
+                                // Elevation blocks are separate records, access epochs are not
+                                if (t.getValue() instanceof Long)
+                                    recman.delete(((Long)t.getValue()).longValue());
                                 
                                 // if (++num_deleted % 1000 == 0)
                                 //   System.out.println("Deleted: " + num_deleted);
@@ -725,18 +878,20 @@ public final class CacheManagerJdbm extends CacheManager {
                                 elevations = BTree.load(recman, rec.recid);
                                 rec.btree_ref = new SoftReference(elevations);
                             }
-                            
                             // System.out.print(entry.getKey() + " hyder fr: "+elevations.size());
-                            byte [] key = {0};
+                            Long key = new Long(Long.MIN_VALUE);
                             // long prev_sleep_time = System.currentTimeMillis();
                             while (bad_warnings <= MAX_BAD_WARNINGS && key != null && enabled) {
                                 synchronized (rec) {
-                                    while (rec.busy) {
+                                    while (rec.busy > 0) {
                                         try {
                                             rec.wait();
                                         } catch (InterruptedException ex) {}
                                     }
+                                    rec.lock.writeLock().lock();
                                     try {
+                                        flushAccessEpochs(rec);
+                                        BTree access = getAccessTree(rec, false);
                                         TupleBrowser browser = elevations.browse(key);
                                         long starttime = System.currentTimeMillis();
                                         
@@ -746,10 +901,21 @@ public final class CacheManagerJdbm extends CacheManager {
                                                 key = null;
                                                 break;
                                             }
-                                            key = (byte[])tuple.getKey();
-                                            ElevationCacheJdbm.Record el_rec = (ElevationCacheJdbm.Record)tuple.getValue();
-                                            if (el_rec.ts < ts.gc_ts) {
+                                            key = (Long)tuple.getKey();
+                                            
+                                            // Reads are recorded per block in the access tree, writes in the block
+                                            Integer epoch = access != null ? (Integer)access.find(key) : null;
+                                            if (epoch != null && epoch.intValue() >= ts.gc_ts)
+                                                continue;
+                                            long block_recid = ((Long)tuple.getValue()).longValue();
+                                            ElevationCacheJdbm.Block block =
+                                                    (ElevationCacheJdbm.Block)recman.fetch(block_recid, ElevationCacheJdbm.BlockSerializer.INSTANCE);
+                                            if (block == null || block.ts < ts.gc_ts) {
                                                 elevations.remove(key);
+                                                recman.delete(block_recid);
+                                                rec.blocks.remove(key);
+                                                if (epoch != null)
+                                                    access.remove(key);
                                                 //     if (++num_gced % 1000 == 0)
                                                 //       System.out.println("GCed: " + num_gced);
                                                 break;
@@ -772,6 +938,8 @@ public final class CacheManagerJdbm extends CacheManager {
                                         return;
                                          */
                                         }
+                                    } finally {
+                                        rec.lock.writeLock().unlock();
                                     }
                                 }
                                 if (!enabled) break;
@@ -786,7 +954,7 @@ public final class CacheManagerJdbm extends CacheManager {
                             }
                             // System.out.println(" etter: "+elevations.size());
                             synchronized (rec) {
-                                while (rec.busy) {
+                                while (rec.busy > 0) {
                                     try {
                                         rec.wait();
                                     } catch (InterruptedException ex) {}
@@ -794,6 +962,8 @@ public final class CacheManagerJdbm extends CacheManager {
                                 try {
                                     if (elevations.size() == 0 && rec.ts < ts.gc_ts) {
                                         recman.delete(rec.recid);
+                                        if (rec.access_recid != 0)
+                                            elevation_surface_set.deleted_recid.add(new Long(rec.access_recid));
                                         it.remove();
                                         recman.update(elevation_surface_set_recid, elevation_surface_set);
                                         recman.commit();
@@ -817,37 +987,6 @@ public final class CacheManagerJdbm extends CacheManager {
         }
     }
     
-    private void purgeTiles(File currdir, int set_id, String pos_code) throws Exception {
-        File [] ch_arr = currdir.listFiles();
-        
-        for (int i=0; enabled && ch_arr != null && i<ch_arr.length; ++i) {
-            String basename = ch_arr[i].getName();
-            int pointpos = basename.indexOf('.');
-            if (pointpos >= 0)
-                basename = basename.substring(0, pointpos);
-            String ch_poscode = pos_code + basename;
-            if (ch_arr[i].isDirectory()) {
-                purgeTiles(ch_arr[i], set_id, ch_poscode);
-                ch_arr[i].delete();
-            } else {
-                if (!enabled)
-                    return;
-                
-                byte [] pos_bytes = pos_code.getBytes("UTF-8");
-                byte [] key = new byte[pos_bytes.length + 4];
-                CacheUtil.serializeInt4(set_id, key, 0);
-                for (int j=0; j<pos_bytes.length;++j)
-                    key[j+4] = pos_bytes[j];
-                
-                Integer ts_int = (Integer)tile_set.find(key);
-                if (ts_int == null)
-                    ch_arr[i].delete();
-                else
-                    ts_size.add(ts_int.intValue(), ch_arr[i].length());
-            }
-        }
-    }
-    
     private TsSize ts_size = new TsSize(10000);
     
     class FileGC extends Thread {
@@ -860,12 +999,24 @@ public final class CacheManagerJdbm extends CacheManager {
             try { sleep(30000); } catch (InterruptedException ex) { }
             while (enabled) {
                 try {
+                    TileSegmentStore store = tile_store;
+                    if (store == null)
+                        break;
+                    
                     // Prepare age_size array
                     ts_size.init(ts.gc_ts, ts.ts);
                     
-                    // Find old tiles
+                    // Only the segments sealed before browsing have all their tiles counted
+                    int [] sealed = store.getSealedSegments();
+                    
+                    // Find old tiles, and the live data of each segment
+                    HashMap<Integer, Long> live = new HashMap<Integer, Long>();
+                    long live_size = 0;
+                    boolean browsed = false;
                     try {
                         byte[] key = new byte[] {0};
+                        // The tile at key is counted already
+                        boolean counted = false;
                         long prev_sleep_time = System.currentTimeMillis();
                         while (key != null && enabled) {
                             synchronized (tile_set_lock) {
@@ -881,11 +1032,21 @@ public final class CacheManagerJdbm extends CacheManager {
                                         key = null;
                                         break;
                                     }
+                                    if (counted && Arrays.equals(key, (byte[])tuple.getKey()))
+                                        continue;
                                     key = (byte[])tuple.getKey();
-                                    if (((Integer)tuple.getValue()).intValue() < ts.gc_ts) {
+                                    counted = false;
+                                    TileSegmentStore.Location loc = (TileSegmentStore.Location)tuple.getValue();
+                                    if (loc.ts < ts.gc_ts) {
                                         tile_set.remove(key);
                                         break;
                                     }
+                                    Integer seg = new Integer(loc.segment);
+                                    Long seg_live = live.get(seg);
+                                    live.put(seg, new Long((seg_live != null ? seg_live.longValue() : 0) + loc.length));
+                                    live_size += loc.length;
+                                    ts_size.add(loc.ts, loc.length);
+                                    counted = true;
                                 }
                             } catch (IOException ex) {
                                 ex.printStackTrace();
@@ -908,89 +1069,16 @@ public final class CacheManagerJdbm extends CacheManager {
                             }
                             if (!enabled) break;
                         }
+                        browsed = key == null;
                     } catch (Throwable ex) {
                         ex.printStackTrace();
                     }
                     
-                    try {
-                        File[] tile_sets = tile_dir.listFiles();
-                        for (int i=0; i<tile_sets.length; ++i) {
-                            int set_id = (int)Long.parseLong(tile_sets[i].getName(), 16);
-                            purgeTiles(tile_sets[i], set_id, "");
-                            tile_sets[i].delete();
-                        }
-                    } catch (Throwable ex) {
-                        ++bad_warnings;
-                        System.err.println("Possibly bad cache database");
-                        ex.printStackTrace();
-                    }
-                    /*
-                    try {
-                        // System.out.print(rec.name + " tiles fr: "+tiles.size());
-                        byte[] key = new byte[] {0};
-                        long prev_sleep_time = System.currentTimeMillis();
-                        while (key != null && recman != null) {
-                            synchronized (tile_set_lock) {
-                                tile_set_lock.locked = true;
-                            }
-                            try {
-                                Tuple tuple = new Tuple();
-                                TupleBrowser browser = tile_set.browse(key);
-                                long starttime = System.currentTimeMillis();
-                                while (System.currentTimeMillis() - starttime < 10 && recman != null) {
-                                    yield();
-                                    if (!browser.getNext(tuple)) {
-                                        key = null;
-                                        break;
-                                    }
-                                    key = (byte[])tuple.getKey();
-                                    int id = CacheUtil.deserializeInt4(key, 0);
-                                    String pos_code = new String(key, 4, key.length-4, "UTF-8");
-                                    File f = new File(tile_dir, Integer.toHexString(id));
-                                    f = getFile(f, pos_code);
-                                    File [] cand = f.getParentFile().listFiles();
-                                    String basename = f.getName();
-                                    if (((Integer)tuple.getValue()).intValue() < ts.gc_ts) {
-                                        for (int k = 0; cand != null && k< cand.length; ++k) {
-                                            if (cand[k].getName().equals(basename) ||
-                                                    (cand[k].getName().indexOf(basename) == 0 &&
-                                                    cand[k].getName().charAt(basename.length()) == '.'))
-                                                cand[k].delete();
-                                        }
-                                        tile_set.remove(key);
-                                        break;
-                                    } else {
-                                        for (int k = 0; cand != null &&k< cand.length; ++k) {
-                                            if (cand[k].getName().equals(basename) ||
-                                                    (cand[k].getName().indexOf(basename) == 0 &&
-                                                    cand[k].getName().charAt(basename.length()) == '.'))
-                                                ts_size.add(((Integer)tuple.getValue()).intValue(), cand[k].length());
-                                        }
-                                    }
-                                }
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            } catch (Exception ex) {
-                                if (recman != null) {
-                                    System.err.println("Possibly bad cache database");
-                                    ex.printStackTrace();
-                                }
-                            }
-                            synchronized (tile_set_lock) {
-                                tile_set_lock.locked = false;
-                                tile_set_lock.notifyAll();
-                            }
-                     
-                            if (recman == null) break;
-                            if (System.currentTimeMillis() - prev_sleep_time > 30) {
-                                try { sleep(10); } catch (InterruptedException ex) {}
-                                prev_sleep_time = System.currentTimeMillis();
-                            }
-                            if (recman == null) break;
-                     
-                        }
-                    } catch (Exception ex) { ex.printStackTrace(); }
-                     */
+                    // Dead tiles take space until their segment is compacted
+                    ts_size.add(ts.ts, store.getSize() - live_size);
+                    
+                    if (browsed && enabled)
+                        compactTiles(store, sealed, live);
                     
                     // Cleanup independent files
                     try {
@@ -1039,5 +1127,83 @@ public final class CacheManagerJdbm extends CacheManager {
                 }
             }
         }
+        
+        /**
+         * Move the live tiles out of the sealed segments that are mostly dead,
+         * and delete the segments. A segment sealed while the tiles were counted
+         * may hold tiles written after the browser passed them, so only the segments
+         * sealed before counting are considered.
+         * @param sealed The segments sealed before the live data was counted
+         * @param live The live data of each segment
+         */
+        private void compactTiles(TileSegmentStore store, int [] sealed, HashMap<Integer, Long> live) {
+            HashSet<Integer> compact = new HashSet<Integer>();
+            boolean has_live = false;
+            for (int i = 0; i < sealed.length; ++i) {
+                Long seg_live = live.get(new Integer(sealed[i]));
+                if (seg_live == null)
+                    compact.add(new Integer(sealed[i]));
+                else if (seg_live.longValue() < TileSegmentStore.MIN_LIVE_FRACTION*TileSegmentStore.SEGMENT_SIZE) {
+                    compact.add(new Integer(sealed[i]));
+                    has_live = true;
+                }
+            }
+            if (compact.isEmpty())
+                return;
+            
+            byte[] key = has_live ? new byte[] {0} : null;
+            long prev_sleep_time = System.currentTimeMillis();
+            while (key != null && enabled) {
+                synchronized (tile_set_lock) {
+                    tile_set_lock.locked = true;
+                }
+                try {
+                    Tuple tuple = new Tuple();
+                    TupleBrowser browser = tile_set.browse(key);
+                    long starttime = System.currentTimeMillis();
+                    while (System.currentTimeMillis() - starttime < 10 && enabled) {
+                        yield();
+                        if (!browser.getNext(tuple)) {
+                            key = null;
+                            break;
+                        }
+                        key = (byte[])tuple.getKey();
+                        TileSegmentStore.Location loc = (TileSegmentStore.Location)tuple.getValue();
+                        if (!compact.contains(new Integer(loc.segment)))
+                            continue;
+                        ByteBuffer data = store.read(loc);
+                        if (data != null)
+                            tile_set.insert(key, store.append(data, loc.ts, loc.modified), true);
+                        else if (enabled)
+                            tile_set.remove(key);
+                        break;
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                } catch (Throwable ex) {
+                    if (enabled) {
+                        ++bad_warnings;
+                        System.err.println("Possibly bad cache database");
+                        ex.printStackTrace();
+                    }
+                }
+                synchronized (tile_set_lock) {
+                    tile_set_lock.locked = false;
+                    tile_set_lock.notifyAll();
+                }
+                
+                if (!enabled) return;
+                if (System.currentTimeMillis() - prev_sleep_time > 30) {
+                    try { sleep(10); } catch (InterruptedException ex) {}
+                    prev_sleep_time = System.currentTimeMillis();
+                }
+            }
+            if (!enabled)
+                return;
+            
+            Iterator<Integer> it = compact.iterator();
+            while (it.hasNext())
+                store.delete(it.next().intValue());
+        }
     }
-}
\ No newline at end of file
+}
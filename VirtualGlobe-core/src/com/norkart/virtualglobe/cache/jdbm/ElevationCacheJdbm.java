@@ -9,9 +9,13 @@
 package com.norkart.virtualglobe.cache.jdbm;
 
 import com.norkart.virtualglobe.globesurface.ElevationSource;
+import com.norkart.virtualglobe.cache.CacheUtil;
 import com.norkart.virtualglobe.cache.ElevationCache;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import jdbm.RecordManager;
 import jdbm.btree.BTree;
 import jdbm.helper.Serializer;
@@ -28,60 +32,109 @@ import jdbm.helper.Serializer;
  */
 
 public class ElevationCacheJdbm extends ElevationCache {
-    protected ElevationSource.ModelQuery    server_mq  = null;
-    RecordManager                           recman     = null;
-    CacheManagerJdbm.ElevationSurfaceRecord rec        = null;
-    BTree                                   elevations = null;
+    protected ElevationSource.ModelQuery             server_mq  = null;
+    volatile RecordManager                           recman     = null;
+    volatile CacheManagerJdbm.ElevationSurfaceRecord rec        = null;
+    // Record id of each block, keyed by blockOf
+    volatile BTree                                   elevations = null;
     
-    // private byte[] code = new byte[9];
-    public static class Record extends ElevationCache.Record {
-        public int ts;
+    /**
+     * Records are grouped in blocks of neighbour nodes on the same level,
+     * given by the Morton code without its BLOCK_BYTES last bytes. A block
+     * is stored as one database record, so that a sorted batch of queries
+     * is answered with a few block reads. Reading a record does not rewrite
+     * it, the access time is kept per block in a separate tree.
+     */
+    static final int BLOCK_BYTES = 1;
+    static final int BLOCK_SIZE  = 1 << (8*BLOCK_BYTES);
+    
+    // Max number of blocks remembered in block_epochs
+    private static final int MAX_BLOCKS = 100000;
+    
+    // Max number of decoded blocks kept in memory, and of changed blocks before they are written
+    private static final int MAX_CACHED_BLOCKS = 2048;
+    private static final int MAX_DIRTY_BLOCKS  = 1024;
+    
+    // The last access epoch recorded for each block in this session
+    ConcurrentHashMap<Long, Integer> block_epochs = new ConcurrentHashMap<Long, Integer>();
+    
+    /**
+     * The elevations of a block of nodes
+     */
+    static final class Block {
+        // Time stamp of the last write
+        int ts;
+        final long [] present = new long[BLOCK_SIZE/64];
+        final int  [] h       = new int[BLOCK_SIZE];
+        final int  [] dh      = new int[BLOCK_SIZE];
+        
+        transient long    recid = 0;
+        transient boolean dirty = false;
+        
+        boolean has(int slot) {
+            return (present[slot >> 6] & (1L << (slot & 63))) != 0;
+        }
+        
+        void put(int slot, int h, int dh) {
+            present[slot >> 6] |= 1L << (slot & 63);
+            this.h[slot]  = h;
+            this.dh[slot] = dh;
+        }
     }
     
-    static final class RecordSerializer implements Serializer {
-        final static RecordSerializer INSTANCE = new RecordSerializer();
+    // Marks a block known not to be in the database
+    private static final Block MISSING = new Block();
+    
+    /**
+     * Stores the time stamp, the slots present and the elevations of the
+     * present slots only
+     */
+    static final class BlockSerializer implements Serializer {
+        final static BlockSerializer INSTANCE = new BlockSerializer();
         
         public Object deserialize(byte[] buf) {
             if (buf == null)
                 return null;
-            Record rec = new Record();
+            Block block = new Block();
             int offset = 0;
-            rec.h = ( buf[ offset++ ] << 24 )
-            | ( ( buf[ offset++ ] << 16 ) & 0x00FF0000 )
-            | ( ( buf[ offset++ ] << 8 ) & 0x0000FF00 )
-            | ( ( buf[ offset++ ] << 0 ) & 0x000000FF );
-            rec.h ^= 0x80000000;
-            rec.dh = ( buf[ offset++ ] << 24 )
-            | ( ( buf[ offset++ ] << 16 ) & 0x00FF0000 )
-            | ( ( buf[ offset++ ] << 8 ) & 0x0000FF00 )
-            | ( ( buf[ offset++ ] << 0 ) & 0x000000FF );
-            rec.dh ^= 0x80000000;
-            rec.ts = ( buf[ offset++ ] << 24 )
-            | ( ( buf[ offset++ ] << 16 ) & 0x00FF0000 )
-            | ( ( buf[ offset++ ] << 8 ) & 0x0000FF00 )
-            | ( ( buf[ offset++ ] << 0 ) & 0x000000FF );
-            rec.ts ^= 0x80000000;
-            return rec;
+            block.ts = CacheUtil.deserializeInt4(buf, offset) ^ 0x80000000;
+            offset += 4;
+            for (int i = 0; i < block.present.length; ++i) {
+                block.present[i] = ((long)CacheUtil.deserializeInt4(buf, offset) << 32) |
+                        (0xffffffffL & CacheUtil.deserializeInt4(buf, offset+4));
+                offset += 8;
+            }
+            for (int slot = 0; slot < BLOCK_SIZE; ++slot) {
+                if (!block.has(slot))
+                    continue;
+                block.h[slot]  = CacheUtil.deserializeInt4(buf, offset) ^ 0x80000000;
+                block.dh[slot] = CacheUtil.deserializeInt4(buf, offset+4) ^ 0x80000000;
+                offset += 8;
+            }
+            return block;
         }
+        
         public byte[] serialize(Object obj) {
-            Record rec = (Record) obj;
-            byte [] data = new byte[12];
+            Block block = (Block) obj;
+            int n = 0;
+            for (int i = 0; i < block.present.length; ++i)
+                n += Long.bitCount(block.present[i]);
+            byte [] data = new byte[4 + 8*block.present.length + 8*n];
             int offs = 0;
-            int val = rec.h ^ 0x80000000;
-            data[offs++] = (byte) ( val >> 24 );
-            data[offs++] = (byte) ( val >> 16 );
-            data[offs++] = (byte) ( val >> 8 );
-            data[offs++] = (byte) val;
-            val = rec.dh ^ 0x80000000;
-            data[offs++] = (byte) ( val >> 24 );
-            data[offs++] = (byte) ( val >> 16 );
-            data[offs++] = (byte) ( val >> 8 );
-            data[offs++] = (byte) val;
-            val = rec.ts ^ 0x80000000;
-            data[offs++] = (byte) ( val >> 24 );
-            data[offs++] = (byte) ( val >> 16 );
-            data[offs++] = (byte) ( val >> 8 );
-            data[offs++] = (byte) val;
+            CacheUtil.serializeInt4(block.ts ^ 0x80000000, data, offs);
+            offs += 4;
+            for (int i = 0; i < block.present.length; ++i) {
+                CacheUtil.serializeInt4((int)(block.present[i] >> 32), data, offs);
+                CacheUtil.serializeInt4((int)block.present[i], data, offs+4);
+                offs += 8;
+            }
+            for (int slot = 0; slot < BLOCK_SIZE; ++slot) {
+                if (!block.has(slot))
+                    continue;
+                CacheUtil.serializeInt4(block.h[slot] ^ 0x80000000, data, offs);
+                CacheUtil.serializeInt4(block.dh[slot] ^ 0x80000000, data, offs+4);
+                offs += 8;
+            }
             return data;
         }
     }
@@ -117,87 +170,286 @@ public class ElevationCacheJdbm extends ElevationCache {
     
     
     public ElevationCache.Record get(byte [] key) {
-        synchronized (rec) {
-            // byte [] key = q_rec.key;
-            // if (key == null) {
-            // q_rec.getKey(code);
-            //key = code;
-            // }
-            Record db_rec = null;
-            try {
-                if (((CacheManagerJdbm)cache_mgr).recman != recman)
-                    ((CacheManagerJdbm)cache_mgr).initElevationCache(this);
-                if (cache_mgr.isOpen())
-                    db_rec = (Record)elevations.find(key);
-                if (db_rec != null) {
-                    db_rec.ts = cache_mgr.ts();
-                    if (cache_mgr.isOpen())
-                        elevations.insert(key, db_rec, true);
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                db_rec = null;
-            } catch (Throwable ex) {
-                ++((CacheManagerJdbm)cache_mgr).bad_warnings;
-                System.err.println("Possibly bad cache database");
-                ex.printStackTrace();
-                db_rec = null;
-                /*
+        ElevationCache.Record db_rec = null;
+        long start_time = System.nanoTime();
+        try {
+            checkDatabase();
+            CacheManagerJdbm.ElevationSurfaceRecord r = rec;
+            if (r != null && cache_mgr.isOpen()) {
+                r.lock.readLock().lock();
                 try {
-                    ((CacheManagerJdbm)cache_mgr).initElevationCache(this);
-                } catch (IOException io_ex) {
-                    io_ex.printStackTrace();
+                    long block_id = blockOf(key);
+                    Block block = getBlock(r, block_id);
+                    int slot = slotOf(key);
+                    if (block != null && block.has(slot)) {
+                        db_rec = new ElevationCache.Record();
+                        db_rec.h  = block.h[slot];
+                        db_rec.dh = block.dh[slot];
+                        touch(r, block_id);
+                    }
+                } finally {
+                    r.lock.readLock().unlock();
                 }
-                 */
             }
-            return db_rec;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            db_rec = null;
+            errors.incrementAndGet();
+        } catch (Throwable ex) {
+            errors.incrementAndGet();
+            ++((CacheManagerJdbm)cache_mgr).bad_warnings;
+            System.err.println("Possibly bad cache database");
+            ex.printStackTrace();
+            db_rec = null;
+        }
+        reads.incrementAndGet();
+        if (db_rec != null)
+            hits.incrementAndGet();
+        readNanos.addAndGet(System.nanoTime() - start_time);
+        return db_rec;
+    }
+    
+    /**
+     * Reopen the surface if the cache manager has opened a new database
+     */
+    private void checkDatabase() throws IOException {
+        CacheManagerJdbm mgr = (CacheManagerJdbm)cache_mgr;
+        if (mgr.recman == recman)
+            return;
+        synchronized (this) {
+            if (mgr.recman != recman)
+                mgr.initElevationCache(this);
         }
     }
     
     
+    /**
+     * Compute the block of a key
+     * @param key Morton code, as stored in the elevations tree
+     * @return The block, unique for the level and the leading bytes of the code
+     */
+    static long blockOf(byte [] key) {
+        int off = 0;
+        int len = key.length;
+        if (len == 9) {
+            off = 1;
+            len = key[0];
+        }
+        long block = len;
+        for (int i = 0; i < len - BLOCK_BYTES; ++i)
+            block = (block << 8) | (0xff & key[off+i]);
+        return block;
+    }
+    
+    /**
+     * Compute the position of a key within its block
+     * @param key Morton code
+     * @return The last BLOCK_BYTES bytes of the code
+     */
+    static int slotOf(byte [] key) {
+        int off = 0;
+        int len = key.length;
+        if (len == 9) {
+            off = 1;
+            len = key[0];
+        }
+        int slot = 0;
+        for (int i = Math.max(0, len - BLOCK_BYTES); i < len; ++i)
+            slot = (slot << 8) | (0xff & key[off+i]);
+        return slot;
+    }
+    
+    /**
+     * Get a block, from the shared blocks or from the database.
+     * The caller must hold the read or write lock of the record.
+     * @return The block, or null if it is not in the cache
+     */
+    private Block getBlock(CacheManagerJdbm.ElevationSurfaceRecord r, long block_id) throws IOException {
+        Long id = new Long(block_id);
+        Block block = r.blocks.get(id);
+        if (block == null) {
+            block = MISSING;
+            Long recid = (Long)elevations.find(id);
+            if (recid != null) {
+                Block b = (Block)recman.fetch(recid.longValue(), BlockSerializer.INSTANCE);
+                if (b != null) {
+                    b.recid = recid.longValue();
+                    block = b;
+                }
+            }
+            if (r.blocks.size() >= MAX_CACHED_BLOCKS)
+                trimBlocks(r);
+            Block prev = r.blocks.putIfAbsent(id, block);
+            if (prev != null)
+                block = prev;
+        }
+        return block != MISSING ? block : null;
+    }
+    
+    /**
+     * Forget unchanged blocks until the shared blocks are down to three quarters of their max size
+     */
+    private static void trimBlocks(CacheManagerJdbm.ElevationSurfaceRecord r) {
+        Iterator<Block> it = r.blocks.values().iterator();
+        while (it.hasNext() && r.blocks.size() > MAX_CACHED_BLOCKS*3/4) {
+            if (!it.next().dirty)
+                it.remove();
+        }
+    }
+    
+    /**
+     * Write the changed blocks to the database.
+     * The caller must hold the write lock of the record.
+     */
+    private void flushBlocks(CacheManagerJdbm.ElevationSurfaceRecord r) throws IOException {
+        Iterator<Map.Entry<Long, Block>> it = r.dirty_blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Block> entry = it.next();
+            Block block = entry.getValue();
+            if (block.recid == 0) {
+                block.recid = recman.insert(block, BlockSerializer.INSTANCE);
+                elevations.insert(entry.getKey(), new Long(block.recid), true);
+            } else
+                recman.update(block.recid, block, BlockSerializer.INSTANCE);
+            block.dirty = false;
+        }
+        r.dirty_blocks.clear();
+    }
+    
+    /**
+     * Record an access to a block. Only a block not accessed within the
+     * last access epoch is marked, and it is not written to the database
+     * until the cache is unlocked.
+     */
+    private void touch(CacheManagerJdbm.ElevationSurfaceRecord r, long block_id) {
+        CacheManagerJdbm mgr = (CacheManagerJdbm)cache_mgr;
+        int ts = mgr.ts();
+        Long block = new Long(block_id);
+        Integer epoch = block_epochs.get(block);
+        int epoch_length = mgr.accessEpochLength();
+        if (epoch != null && ts - epoch.intValue() < epoch_length)
+            return;
+        if (block_epochs.size() >= MAX_BLOCKS)
+            trimEpochs(ts, epoch_length);
+        epoch = new Integer(ts);
+        block_epochs.put(block, epoch);
+        r.access_pending.put(block, epoch);
+    }
+    
+    /**
+     * Forget blocks until block_epochs is down to three quarters of its max size.
+     * The blocks whose epoch has run out go first, they are written on their next
+     * access anyway, then the blocks with the oldest epochs.
+     */
+    private void trimEpochs(int ts, int epoch_length) {
+        synchronized (block_epochs) {
+            int cut = ts - epoch_length;
+            while (block_epochs.size() > MAX_BLOCKS*3/4) {
+                Iterator<Integer> it = block_epochs.values().iterator();
+                while (it.hasNext() && block_epochs.size() > MAX_BLOCKS*3/4) {
+                    if (it.next().intValue() <= cut)
+                        it.remove();
+                }
+                if (cut >= ts)
+                    break;
+                cut = Math.min(ts, cut + Math.max(1, epoch_length/4));
+            }
+        }
+    }
+    
+    /**
+     * Store an elevation. The block is written when the cache is unlocked.
+     */
     public void set(byte [] key, int h, int dh) {
-        synchronized (rec) {
-            Record db_rec = new Record();
-            db_rec.h  = h;
-            db_rec.dh = dh;
-            db_rec.ts = cache_mgr.ts();
-            try {
-                if (((CacheManagerJdbm)cache_mgr).recman != recman)
-                    ((CacheManagerJdbm)cache_mgr).initElevationCache(this);
-                
-                if (cache_mgr.isOpen())
-                    elevations.insert(key, db_rec, true);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            } catch (Throwable ex) {
-                ++((CacheManagerJdbm)cache_mgr).bad_warnings;
-                System.err.println("Possibly bad cache database");
-                ex.printStackTrace();
-/*
+        long start_time = System.nanoTime();
+        try {
+            checkDatabase();
+            CacheManagerJdbm.ElevationSurfaceRecord r = rec;
+            if (r != null && cache_mgr.isOpen()) {
+                r.lock.writeLock().lock();
                 try {
-                    ((CacheManagerJdbm)cache_mgr).initElevationCache(this);
-                } catch (IOException io_ex) {
-                    io_ex.printStackTrace();
+                    Long id = new Long(blockOf(key));
+                    Block block = getBlock(r, id.longValue());
+                    if (block == null) {
+                        block = new Block();
+                        r.blocks.put(id, block);
+                    }
+                    block.put(slotOf(key), h, dh);
+                    block.ts = cache_mgr.ts();
+                    if (!block.dirty) {
+                        block.dirty = true;
+                        r.dirty_blocks.put(id, block);
+                    }
+                    if (r.dirty_blocks.size() >= MAX_DIRTY_BLOCKS)
+                        flushBlocks(r);
+                } finally {
+                    r.lock.writeLock().unlock();
                 }
- */
             }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            errors.incrementAndGet();
+        } catch (Throwable ex) {
+            errors.incrementAndGet();
+            ++((CacheManagerJdbm)cache_mgr).bad_warnings;
+            System.err.println("Possibly bad cache database");
+            ex.printStackTrace();
         }
+        writes.incrementAndGet();
+        writeNanos.addAndGet(System.nanoTime() - start_time);
     }
     
+    /**
+     * Start a batch of reads and writes. Several threads may hold the cache
+     * at the same time, the garbage collector waits until all have unlocked it.
+     */
     public  boolean lock() {
         if (!cache_mgr.isOpen())
             return false;
         synchronized (rec) {
-            rec.busy = true;
+            ++rec.busy;
         }
         return true;
     }
+    
+    /**
+     * End a batch, writing the changed blocks and the access epochs
+     */
     public  void unlock() {
-        if (rec != null) {
-            synchronized (rec) {
-                rec.busy = false;
-                rec.notifyAll();
+        CacheManagerJdbm.ElevationSurfaceRecord r = rec;
+        if (r == null)
+            return;
+        // dirty_blocks is changed under the write lock
+        boolean pending;
+        r.lock.readLock().lock();
+        try {
+            pending = !r.dirty_blocks.isEmpty() || !r.access_pending.isEmpty();
+        } finally {
+            r.lock.readLock().unlock();
+        }
+        if (pending) {
+            r.lock.writeLock().lock();
+            try {
+                if (((CacheManagerJdbm)cache_mgr).recman == recman && cache_mgr.isOpen()) {
+                    flushBlocks(r);
+                    ((CacheManagerJdbm)cache_mgr).flushAccessEpochs(r);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                errors.incrementAndGet();
+            } catch (Throwable ex) {
+                errors.incrementAndGet();
+                ++((CacheManagerJdbm)cache_mgr).bad_warnings;
+                System.err.println("Possibly bad cache database");
+                ex.printStackTrace();
+            } finally {
+                r.lock.writeLock().unlock();
             }
         }
+        synchronized (r) {
+            if (r.busy > 0)
+                --r.busy;
+            r.notifyAll();
+        }
     }
 }
@@ -0,0 +1,281 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.cache.jdbm;
+
+import com.norkart.virtualglobe.cache.CacheUtil;
+
+import jdbm.helper.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Append only store of texture tiles in a few large, memory mapped segment
+ * files. The location of each tile is kept in the tile set of the cache
+ * database, and a tile is read as a slice of the mapping of its segment.
+ * Tiles replaced or expired leave dead space behind, which is reclaimed by
+ * moving the live tiles out of a mostly dead segment and deleting its file.
+ * <p>
+ * A segment file starts with a magic number and the end of the data written,
+ * followed by the tiles. Only the last segment is written to.
+ *
+ * @author runaas
+ */
+final class TileSegmentStore {
+    // Size of the segment files
+    final static int SEGMENT_SIZE = 32*1024*1024;
+    final static int HEADER_SIZE  = 8;
+    final static int MAGIC        = 0x56475453;
+    // Maximum number of sealed segments mapped at once
+    final static int MAX_MAPPED   = 16;
+    // Sealed segments with less live data than this part are compacted
+    final static double MIN_LIVE_FRACTION = 0.5;
+    
+    /**
+     * The location of a tile, and its time stamps
+     */
+    static final class Location {
+        int  segment;
+        int  offset;
+        int  length;
+        // Cache time stamp of the last access
+        int  ts;
+        // Time the tile was written, in milliseconds
+        long modified;
+    }
+    
+    static final class LocationSerializer implements Serializer {
+        final static LocationSerializer INSTANCE = new LocationSerializer();
+        
+        public Object deserialize(byte[] buf) {
+            if (buf == null)
+                return null;
+            Location loc = new Location();
+            loc.segment  = CacheUtil.deserializeInt4(buf, 0);
+            loc.offset   = CacheUtil.deserializeInt4(buf, 4);
+            loc.length   = CacheUtil.deserializeInt4(buf, 8);
+            loc.ts       = CacheUtil.deserializeInt4(buf, 12) ^ 0x80000000;
+            loc.modified = CacheUtil.deserializeInt8(buf, 16);
+            return loc;
+        }
+        
+        public byte[] serialize(Object obj) {
+            Location loc = (Location) obj;
+            byte [] data = new byte[24];
+            CacheUtil.serializeInt4(loc.segment, data, 0);
+            CacheUtil.serializeInt4(loc.offset, data, 4);
+            CacheUtil.serializeInt4(loc.length, data, 8);
+            CacheUtil.serializeInt4(loc.ts ^ 0x80000000, data, 12);
+            CacheUtil.serializeInt8(loc.modified, data, 16);
+            return data;
+        }
+    }
+    
+    private final File dir;
+    private final TreeSet<Integer> segments = new TreeSet<Integer>();
+    // Deleted segments whose files could not be removed yet
+    private final TreeSet<Integer> undeleted = new TreeSet<Integer>();
+    private int next_segment = 0;
+    
+    // The segment written to, -1 if none
+    private int active = -1;
+    private MappedByteBuffer active_map;
+    private int end;
+    private boolean closed = false;
+    
+    // Mappings of sealed segments, least recently used first
+    private final LinkedHashMap<Integer, ByteBuffer> mapped = new LinkedHashMap<Integer, ByteBuffer>(MAX_MAPPED, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+            return size() > MAX_MAPPED;
+        }
+    };
+    
+    TileSegmentStore(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        File [] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; ++i) {
+            String name = files[i].getName();
+            if (!name.endsWith(".seg"))
+                continue;
+            try {
+                int seg = Integer.parseInt(name.substring(0, name.length()-4), 16);
+                segments.add(new Integer(seg));
+                next_segment = Math.max(next_segment, seg+1);
+            } catch (NumberFormatException ex) {}
+        }
+        
+        // Continue writing to the last segment
+        if (!segments.isEmpty()) {
+            int seg = segments.last().intValue();
+            MappedByteBuffer map = mapActive(seg);
+            int e = map.getInt(4);
+            if (map.getInt(0) == MAGIC && e >= HEADER_SIZE && e <= SEGMENT_SIZE) {
+                active     = seg;
+                active_map = map;
+                end        = e;
+            }
+        }
+    }
+    
+    private File getSegmentFile(int seg) {
+        return new File(dir, Integer.toHexString(seg) + ".seg");
+    }
+    
+    private MappedByteBuffer mapActive(int seg) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(getSegmentFile(seg), "rw");
+        try {
+            return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            f.close();
+        }
+    }
+    
+    /**
+     * Append a tile to the last segment, starting a new segment if it is full
+     * @param data The tile, from position to limit
+     * @return The location of the tile
+     */
+    synchronized Location append(ByteBuffer data, int ts, long modified) throws IOException {
+        int length = data.remaining();
+        if (length > SEGMENT_SIZE - HEADER_SIZE)
+            throw new IOException("Tile too large for the cache: " + length);
+        if (closed)
+            throw new IOException("Tile store closed");
+        if (active < 0 || end + length > SEGMENT_SIZE) {
+            int seg = next_segment++;
+            MappedByteBuffer map = mapActive(seg);
+            map.putInt(0, MAGIC);
+            map.putInt(4, HEADER_SIZE);
+            segments.add(new Integer(seg));
+            active     = seg;
+            active_map = map;
+            end        = HEADER_SIZE;
+        }
+        
+        ByteBuffer buf = active_map.duplicate();
+        buf.position(end);
+        buf.put(data.duplicate());
+        
+        Location loc = new Location();
+        loc.segment  = active;
+        loc.offset   = end;
+        loc.length   = length;
+        loc.ts       = ts;
+        loc.modified = modified;
+        
+        end += length;
+        active_map.putInt(4, end);
+        return loc;
+    }
+    
+    /**
+     * Read a tile
+     * @return A read only slice of the segment mapping, or null if the segment is gone
+     */
+    ByteBuffer read(Location loc) throws IOException {
+        ByteBuffer map = getMapping(loc.segment);
+        if (map == null || loc.offset < HEADER_SIZE || loc.offset + loc.length > map.capacity())
+            return null;
+        ByteBuffer buf = map.duplicate();
+        buf.limit(loc.offset + loc.length);
+        buf.position(loc.offset);
+        return buf.slice().asReadOnlyBuffer();
+    }
+    
+    private synchronized ByteBuffer getMapping(int seg) throws IOException {
+        if (closed)
+            return null;
+        if (seg == active)
+            return active_map;
+        Integer key = new Integer(seg);
+        ByteBuffer map = mapped.get(key);
+        if (map == null && segments.contains(key)) {
+            RandomAccessFile f = new RandomAccessFile(getSegmentFile(seg), "r");
+            try {
+                FileChannel ch = f.getChannel();
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            } finally {
+                f.close();
+            }
+            mapped.put(key, map);
+        }
+        return map;
+    }
+    
+    /**
+     * The segments no longer written to
+     */
+    synchronized int [] getSealedSegments() {
+        int [] sealed = new int[segments.size() - (active >= 0 ? 1 : 0)];
+        int i = 0;
+        Iterator<Integer> it = segments.iterator();
+        while (it.hasNext()) {
+            int seg = it.next().intValue();
+            if (seg != active)
+                sealed[i++] = seg;
+        }
+        return sealed;
+    }
+    
+    /**
+     * Delete a sealed segment, the tiles in it must have been moved or removed
+     */
+    synchronized void delete(int seg) {
+        if (seg == active)
+            return;
+        Integer key = new Integer(seg);
+        mapped.remove(key);
+        segments.remove(key);
+        File f = getSegmentFile(seg);
+        // A segment still mapped may not be deletable on all platforms,
+        // it is retried until the mapping is collected
+        if (!f.delete())
+            undeleted.add(key);
+        retryDeletes();
+    }
+    
+    private void retryDeletes() {
+        Iterator<Integer> it = undeleted.iterator();
+        while (it.hasNext()) {
+            File f = getSegmentFile(it.next().intValue());
+            if (f.delete() || !f.exists())
+                it.remove();
+        }
+    }
+    
+    /**
+     * The disk space used by the segments, including dead tiles and
+     * the deleted segments still on disk
+     */
+    synchronized long getSize() {
+        retryDeletes();
+        long sz = (long)(segments.size() + undeleted.size())*SEGMENT_SIZE;
+        if (active >= 0)
+            sz -= SEGMENT_SIZE - end;
+        return sz;
+    }
+    
+    synchronized void close() {
+        closed = true;
+        if (active_map != null)
+            active_map.force();
+        active_map = null;
+        active = -1;
+        mapped.clear();
+    }
+}
@@ -19,6 +19,7 @@ import java.security.AccessController;
 import org.w3c.dom.*;
 import java.awt.*;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import javax.swing.event.ChangeEvent;
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -42,11 +43,15 @@ import com.norkart.virtualglobe.globesurface.ElevationSource;
 
 public class GlobeSurface extends WorldComponent  {
     private String elevationsUrlStr;
+    // Local elevation grids used before the server, in order of precedence
+    private ArrayList<String> localElevationsUrlStr = new ArrayList<String>();
     private JLabel elevationUrlLabel = null;
     
     private BttSurface surface;
     private ElevationSource source;
     private GlobeSurfaceGraphics surface_graphics;
+    private File   snapshot_file = null;
+    private Thread snapshot_hook = null;
     
     // protected GeoRSSFeeds geoRSSFeeds;   
     
@@ -197,10 +202,41 @@ public class GlobeSurface extends WorldComponent  {
                 } catch (MalformedURLException ex) {
                     System.err.print("Rtten url " + elevationsUrlStr);
                 }
-                source = new ElevationSource(server_url, u.isCacheEnabled()?u.getCacheManager():null);
+                ArrayList<URL> local_urls = new ArrayList<URL>();
+                String snapshot_key = String.valueOf(server_url);
+                for (Node loc = chEle.getFirstChild(); loc != null; loc = loc.getNextSibling()) {
+                    if (!(loc instanceof Element) || !loc.getNodeName().equals("local-elevations")) continue;
+                    String href = ((Element)loc).getAttribute("href");
+                    localElevationsUrlStr.add(href);
+                    try {
+                        local_urls.add(new URL(getBaseUrl(), href));
+                        snapshot_key += " " + href;
+                    } catch (MalformedURLException ex) {
+                        System.err.print("Rtten url " + href);
+                    }
+                }
+                source = new ElevationSource(server_url, local_urls.toArray(new URL[local_urls.size()]),
+                        u.isCacheEnabled()?u.getCacheManager():null);
                 // surface = new BttSurface(14745, source);
                 synchronized (this) {
                     surface = new BttSurface(source);
+                    // Start with the terrain from the last session
+                    if (u.isCacheEnabled() && u.getCacheDir() != null && server_url != null) {
+                        snapshot_file = new File(u.getCacheDir(),
+                                "surface-" + Integer.toHexString(snapshot_key.hashCode()) + ".snapshot");
+                        try {
+                            surface.loadSnapshot(snapshot_file);
+                        } catch (IOException ex) {
+                            System.err.print("Problems loading terrain snapshot ");
+                            System.err.println(ex);
+                        }
+                        snapshot_hook = new Thread("GlobeSurface-snapshot") {
+                            public void run() {
+                                saveSnapshot();
+                            }
+                        };
+                        Runtime.getRuntime().addShutdownHook(snapshot_hook);
+                    }
                     notifyAll();
                 }
                 // surface = new BttSurface(1<<15, source);
@@ -255,6 +291,11 @@ public class GlobeSurface extends WorldComponent  {
         
         Element elev_ele = doc.createElement("elevations");
         elev_ele.setAttribute("href", elevationsUrlStr);
+        for (int i = 0; i < localElevationsUrlStr.size(); ++i) {
+            Element loc_ele = doc.createElement("local-elevations");
+            loc_ele.setAttribute("href", localElevationsUrlStr.get(i));
+            elev_ele.appendChild(loc_ele);
+        }
         ele.appendChild(elev_ele);
         return ele;
     }
@@ -267,7 +308,30 @@ public class GlobeSurface extends WorldComponent  {
         super.updateCache();
     }
     
+    /**
+     * Save the terrain for the next session
+     */
+    private void saveSnapshot() {
+        BttSurface s = surface;
+        if (s == null || snapshot_file == null || !getUniverse().isCacheEnabled())
+            return;
+        try {
+            s.saveSnapshot(snapshot_file);
+        } catch (IOException ex) {
+            System.err.print("Problems saving terrain snapshot ");
+            System.err.println(ex);
+        }
+    }
+    
     public void clear() {
+        if (snapshot_hook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(snapshot_hook);
+            } catch (IllegalStateException ex) { }
+            snapshot_hook = null;
+        }
+        saveSnapshot();
+        
         // Close data source
         try {
             source.close();
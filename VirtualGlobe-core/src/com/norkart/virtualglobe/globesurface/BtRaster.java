@@ -0,0 +1,385 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A memory mapped elevation grid in the VTP binary terrain (.bt) format.
+ * The grid is either geographic (degrees) or UTM. Minimum and maximum
+ * heights of blocks of grid cells are kept in a pyramid, built the first
+ * time a height range is asked for, so that the height range of any area
+ * is found by looking at a few values.
+ *
+ * @author runaas
+ */
+final class BtRaster {
+    private static final int   HEADER_SIZE = 256;
+    private static final int   MAX_CHUNK   = 1 << 30;  // The largest mapping of the file
+    private static final int   BASE_LEVEL  = 3;        // Block size 2^BASE_LEVEL of the first pyramid level
+    private static final float NO_DATA     = -32768.f;
+    static final int           MAX_ZONE    = 60;       // The UTM zones are 1 to MAX_ZONE, negative south
+    // Datum codes of WGS84, the EPSG code and the older USGS code of the first versions
+    private static final int   DATUM_WGS84      = 6326;
+    private static final int   DATUM_WGS84_USGS = 21;
+    
+    final File   file;
+    final int    cols, rows;
+    final int    zone;      // UTM zone, negative south of the equator, 0 for geographic grids
+    final double left, right, bottom, top;
+    final double dx, dy;    // The grid spacing
+    private final double    unit;      // Meters (or degrees) per horizontal unit
+    private final boolean   isFloat;
+    private final int       dataSize;
+    private final float     vScale;    // Meters per vertical unit
+    private final ByteBuffer [] chunks;
+    private final int       chunkCols; // Number of grid columns in each chunk
+    
+    // The pyramid levels from BASE_LEVEL and up
+    private volatile float [][] minLevels = null;
+    private volatile float [][] maxLevels = null;
+    
+    /**
+     * Open and map a .bt file. Only WGS84 grids in geographic coordinates or UTM
+     * are supported, grids with the projection in an external .prj file are rejected.
+     * @param file The file
+     * @throws java.io.IOException If the file could not be read, or is not a valid .bt file
+     */
+    BtRaster(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (hdr.hasRemaining() && ch.read(hdr) >= 0);
+            if (hdr.hasRemaining())
+                throw new IOException("Short header in " + file);
+            byte [] magic = new byte [10];
+            hdr.position(0);
+            hdr.get(magic);
+            String version = new String(magic, "ISO-8859-1");
+            if (!version.startsWith("binterr1."))
+                throw new IOException("Not a binary terrain file: " + file);
+            cols     = hdr.getInt(10);
+            rows     = hdr.getInt(14);
+            dataSize = hdr.getShort(18);
+            isFloat  = hdr.getShort(20) == 1;
+            int units = hdr.getShort(22);
+            int utm_zone = hdr.getShort(24);
+            int datum = version.compareTo("binterr1.1") >= 0 ? hdr.getShort(26) : DATUM_WGS84;
+            boolean external_prj = version.compareTo("binterr1.2") >= 0 && hdr.getShort(60) != 0;
+            left     = hdr.getDouble(28);
+            right    = hdr.getDouble(36);
+            bottom   = hdr.getDouble(44);
+            top      = hdr.getDouble(52);
+            float scale = version.compareTo("binterr1.3") >= 0 ? hdr.getFloat(62) : 0.f;
+            vScale   = scale > 0.f ? scale : 1.f;
+            
+            if (cols < 2 || rows < 2 || (dataSize != 2 && dataSize != 4) || (isFloat && dataSize != 4))
+                throw new IOException("Unsupported grid in " + file);
+            if (external_prj || (datum != DATUM_WGS84 && datum != DATUM_WGS84_USGS))
+                throw new IOException("Unsupported projection or datum in " + file);
+            // Degrees are geographic whatever the zone says
+            if (units == 0)
+                utm_zone = 0;
+            else if (units < 0 || units > 3 || utm_zone == 0 || Math.abs(utm_zone) > MAX_ZONE)
+                throw new IOException("Unsupported projection in " + file);
+            zone = utm_zone;
+            if (units == 2)
+                unit = 0.3048;
+            else if (units == 3)
+                unit = 1200./3937.;
+            else
+                unit = 1.;
+            dx = (right - left)/(cols - 1);
+            dy = (top - bottom)/(rows - 1);
+            
+            long col_size = (long)rows*dataSize;
+            if (col_size > MAX_CHUNK)
+                throw new IOException("Too many rows in " + file);
+            if (HEADER_SIZE + cols*col_size > ch.size())
+                throw new IOException("Short data in " + file);
+            chunkCols = (int)Math.min(cols, MAX_CHUNK/col_size);
+            chunks = new ByteBuffer [(cols + chunkCols - 1)/chunkCols];
+            for (int i = 0; i < chunks.length; ++i) {
+                long size = Math.min(chunkCols, cols - i*chunkCols)*col_size;
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + i*chunkCols*col_size, size);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * The grid spacing in meters, roughly
+     */
+    double getCellSize() {
+        return zone == 0 ? Math.min(dx, dy)*111000. : Math.min(dx, dy)*unit;
+    }
+    
+    /**
+     * Compute the geographic bounding box of the grid
+     * @param a The semi major axis of the ellipsoid
+     * @param f The flattening of the ellipsoid
+     * @return Minimum longitude, minimum latitude, maximum longitude and maximum latitude, in radians
+     */
+    double [] getFootprint(double a, double f) {
+        double [] fp = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        double [] lonlat = new double [2];
+        // The edges of an UTM grid are curved in geographic coordinates, follow them
+        int steps = zone == 0 ? 1 : 16;
+        for (int k = 0; k <= steps; ++k) {
+            double t = (double)k/steps;
+            for (int e = 0; e < 4; ++e) {
+                double x = (e == 0 ? 0 : e == 1 ? 1 : t)*(right - left) + left;
+                double y = (e == 2 ? 0 : e == 3 ? 1 : t)*(top - bottom) + bottom;
+                unproject(a, f, zone, x*unit, y*unit, lonlat);
+                fp[0] = Math.min(fp[0], lonlat[0]);
+                fp[1] = Math.min(fp[1], lonlat[1]);
+                fp[2] = Math.max(fp[2], lonlat[0]);
+                fp[3] = Math.max(fp[3], lonlat[1]);
+            }
+        }
+        // Room for the curvature between the steps
+        double pad = zone == 0 ? 0 : 0.01*Math.max(fp[2] - fp[0], fp[3] - fp[1]);
+        fp[0] -= pad;
+        fp[1] -= pad;
+        fp[2] += pad;
+        fp[3] += pad;
+        return fp;
+    }
+    
+    /**
+     * Interpolate the height at a position
+     * @param x The easting, in meters for UTM grids, degrees for geographic grids
+     * @param y The northing
+     * @return The height in meters, NaN if outside the grid or without data
+     */
+    float sample(double x, double y) {
+        double fx = (x/unit - left)/dx;
+        double fy = (y/unit - bottom)/dy;
+        if (!(fx >= 0 && fx <= cols-1 && fy >= 0 && fy <= rows-1))
+            return Float.NaN;
+        int i = Math.min((int)fx, cols-2);
+        int j = Math.min((int)fy, rows-2);
+        fx -= i;
+        fy -= j;
+        double sum = 0, w_sum = 0;
+        for (int k = 0; k < 4; ++k) {
+            int di = k & 1, dj = k >> 1;
+            double w = (di == 0 ? 1-fx : fx)*(dj == 0 ? 1-fy : fy);
+            float v = get(i+di, j+dj);
+            if (w > 0 && v == v && v > NO_DATA) {
+                sum   += w*v;
+                w_sum += w;
+            }
+        }
+        if (w_sum == 0)
+            return Float.NaN;
+        return (float)(sum/w_sum*vScale);
+    }
+    
+    /**
+     * Find the difference between the highest and lowest height in an area.
+     * The area is extended to whole pyramid blocks, so the range may be somewhat too large.
+     * @return The height range in meters, NaN if there is no data in the area
+     */
+    float range(double x0, double y0, double x1, double y1) {
+        int i0 = Math.max(0, (int)Math.floor((x0/unit - left)/dx));
+        int i1 = Math.min(cols-1, (int)Math.ceil((x1/unit - left)/dx));
+        int j0 = Math.max(0, (int)Math.floor((y0/unit - bottom)/dy));
+        int j1 = Math.min(rows-1, (int)Math.ceil((y1/unit - bottom)/dy));
+        if (i0 > i1 || j0 > j1)
+            return Float.NaN;
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        int size = Math.max(i1 - i0, j1 - j0) + 1;
+        if (size <= 2 << BASE_LEVEL) {
+            for (int i = i0; i <= i1; ++i) {
+                for (int j = j0; j <= j1; ++j) {
+                    float v = get(i, j);
+                    if (v == v && v > NO_DATA) {
+                        if (v < min) min = v;
+                        if (v > max) max = v;
+                    }
+                }
+            }
+        } else {
+            if (minLevels == null)
+                buildPyramid();
+            int level = BASE_LEVEL;
+            while ((size >> (level + 2)) > 0 && level - BASE_LEVEL + 1 < minLevels.length)
+                ++level;
+            float [] min_l = minLevels[level - BASE_LEVEL];
+            float [] max_l = maxLevels[level - BASE_LEVEL];
+            int l_rows = ((rows - 1) >> level) + 1;
+            for (int i = i0 >> level; i <= i1 >> level; ++i) {
+                for (int j = j0 >> level; j <= j1 >> level; ++j) {
+                    if (min_l[i*l_rows + j] < min) min = min_l[i*l_rows + j];
+                    if (max_l[i*l_rows + j] > max) max = max_l[i*l_rows + j];
+                }
+            }
+        }
+        if (min > max)
+            return Float.NaN;
+        return (max - min)*vScale;
+    }
+    
+    /**
+     * Get a grid value, in the file's vertical units
+     * @param i The column, from west
+     * @param j The row, from south
+     */
+    private float get(int i, int j) {
+        ByteBuffer chunk = chunks[i/chunkCols];
+        int offset = ((i%chunkCols)*rows + j)*dataSize;
+        if (isFloat)
+            return chunk.getFloat(offset);
+        if (dataSize == 4)
+            return chunk.getInt(offset);
+        return chunk.getShort(offset);
+    }
+    
+    /**
+     * Build the pyramid of block minimums and maximums, reading the entire grid.
+     * Blocks without data get a minimum above the maximum.
+     */
+    private synchronized void buildPyramid() {
+        if (minLevels != null)
+            return;
+        int num_levels = 1;
+        while ((Math.max(cols, rows) - 1) >> (BASE_LEVEL + num_levels - 1) > 0)
+            ++num_levels;
+        float [][] min_levels = new float [num_levels][];
+        float [][] max_levels = new float [num_levels][];
+        
+        int l_cols = ((cols - 1) >> BASE_LEVEL) + 1;
+        int l_rows = ((rows - 1) >> BASE_LEVEL) + 1;
+        float [] min_l = new float [l_cols*l_rows];
+        float [] max_l = new float [l_cols*l_rows];
+        Arrays.fill(min_l, Float.POSITIVE_INFINITY);
+        Arrays.fill(max_l, Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < cols; ++i) {
+            int base = (i >> BASE_LEVEL)*l_rows;
+            for (int j = 0; j < rows; ++j) {
+                float v = get(i, j);
+                if (v == v && v > NO_DATA) {
+                    int ix = base + (j >> BASE_LEVEL);
+                    if (v < min_l[ix]) min_l[ix] = v;
+                    if (v > max_l[ix]) max_l[ix] = v;
+                }
+            }
+        }
+        min_levels[0] = min_l;
+        max_levels[0] = max_l;
+        
+        for (int l = 1; l < num_levels; ++l) {
+            int p_rows = l_rows;
+            float [] p_min = min_l, p_max = max_l;
+            l_cols = ((cols - 1) >> (BASE_LEVEL + l)) + 1;
+            l_rows = ((rows - 1) >> (BASE_LEVEL + l)) + 1;
+            min_l = new float [l_cols*l_rows];
+            max_l = new float [l_cols*l_rows];
+            Arrays.fill(min_l, Float.POSITIVE_INFINITY);
+            Arrays.fill(max_l, Float.NEGATIVE_INFINITY);
+            for (int p = 0; p < p_min.length; ++p) {
+                int ix = ((p/p_rows) >> 1)*l_rows + ((p%p_rows) >> 1);
+                if (p_min[p] < min_l[ix]) min_l[ix] = p_min[p];
+                if (p_max[p] > max_l[ix]) max_l[ix] = p_max[p];
+            }
+            min_levels[l] = min_l;
+            max_levels[l] = max_l;
+        }
+        maxLevels = max_levels;
+        minLevels = min_levels;
+    }
+    
+    /**
+     * Project a geographic position to the coordinates of a grid zone
+     * @param a The semi major axis of the ellipsoid
+     * @param f The flattening of the ellipsoid
+     * @param zone The UTM zone, negative on the southern hemisphere, or 0 for geographic coordinates
+     * @param lon The longitude in radians
+     * @param lat The latitude in radians
+     * @param xy Easting and northing in meters, or longitude and latitude in degrees
+     */
+    static void project(double a, double f, int zone, double lon, double lat, double [] xy) {
+        if (zone == 0) {
+            xy[0] = Math.toDegrees(lon);
+            xy[1] = Math.toDegrees(lat);
+            return;
+        }
+        // Transverse Mercator with the series of Krueger
+        double n  = f/(2-f);
+        double n2 = n*n, n3 = n2*n;
+        double A  = a/(1+n)*(1 + n2/4 + n2*n2/64);
+        double a1 = n/2 - 2*n2/3 + 5*n3/16;
+        double a2 = 13*n2/48 - 3*n3/5;
+        double a3 = 61*n3/240;
+        double e  = 2*Math.sqrt(n)/(1+n);
+        double dl = Math.IEEEremainder(lon - Math.toRadians(Math.abs(zone)*6 - 183), 2*Math.PI);
+        double s  = Math.sin(lat);
+        double t  = Math.sinh(atanh(s) - e*atanh(e*s));
+        double xi  = Math.atan2(t, Math.cos(dl));
+        double eta = atanh(Math.sin(dl)/Math.sqrt(1 + t*t));
+        double k0A = 0.9996*A;
+        xy[0] = 500000. + k0A*(eta + a1*Math.cos(2*xi)*Math.sinh(2*eta)
+                + a2*Math.cos(4*xi)*Math.sinh(4*eta) + a3*Math.cos(6*xi)*Math.sinh(6*eta));
+        xy[1] = (zone < 0 ? 10000000. : 0.) + k0A*(xi + a1*Math.sin(2*xi)*Math.cosh(2*eta)
+                + a2*Math.sin(4*xi)*Math.cosh(4*eta) + a3*Math.sin(6*xi)*Math.cosh(6*eta));
+    }
+    
+    /**
+     * Compute the geographic position of coordinates in a grid zone
+     * @param a The semi major axis of the ellipsoid
+     * @param f The flattening of the ellipsoid
+     * @param zone The UTM zone, negative on the southern hemisphere, or 0 for geographic coordinates
+     * @param x The easting in meters, or longitude in degrees
+     * @param y The northing in meters, or latitude in degrees
+     * @param lonlat Longitude and latitude in radians
+     */
+    static void unproject(double a, double f, int zone, double x, double y, double [] lonlat) {
+        if (zone == 0) {
+            lonlat[0] = Math.toRadians(x);
+            lonlat[1] = Math.toRadians(y);
+            return;
+        }
+        double n  = f/(2-f);
+        double n2 = n*n, n3 = n2*n;
+        double A  = a/(1+n)*(1 + n2/4 + n2*n2/64);
+        double b1 = n/2 - 2*n2/3 + 37*n3/96;
+        double b2 = n2/48 + n3/15;
+        double b3 = 17*n3/480;
+        double d1 = 2*n - 2*n2/3 - 2*n3;
+        double d2 = 7*n2/3 - 8*n3/5;
+        double d3 = 56*n3/15;
+        double k0A = 0.9996*A;
+        double xi  = (y - (zone < 0 ? 10000000. : 0.))/k0A;
+        double eta = (x - 500000.)/k0A;
+        double xi1  = xi - b1*Math.sin(2*xi)*Math.cosh(2*eta)
+                - b2*Math.sin(4*xi)*Math.cosh(4*eta) - b3*Math.sin(6*xi)*Math.cosh(6*eta);
+        double eta1 = eta - b1*Math.cos(2*xi)*Math.sinh(2*eta)
+                - b2*Math.cos(4*xi)*Math.sinh(4*eta) - b3*Math.cos(6*xi)*Math.sinh(6*eta);
+        double chi = Math.asin(Math.sin(xi1)/Math.cosh(eta1));
+        lonlat[0] = Math.toRadians(Math.abs(zone)*6 - 183) + Math.atan2(Math.sinh(eta1), Math.cos(xi1));
+        lonlat[1] = chi + d1*Math.sin(2*chi) + d2*Math.sin(4*chi) + d3*Math.sin(6*chi);
+    }
+    
+    private static double atanh(double x) {
+        return 0.5*Math.log((1+x)/(1-x));
+    }
+}
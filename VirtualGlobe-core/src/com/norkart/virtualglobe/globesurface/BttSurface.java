@@ -12,11 +12,20 @@ import com.norkart.geopos.Ellipsoid;
 
 import com.norkart.virtualglobe.globesurface.texture.ImageBuffer;
 import com.norkart.virtualglobe.util.ApplicationSettings;
+import com.norkart.virtualglobe.util.WorkerPool;
 
 
 import java.lang.ref.WeakReference;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 // import java.nio.FloatBuffer;
 // import javax.media.opengl.util.BufferUtils;
 import javax.vecmath.*;
@@ -41,11 +50,32 @@ final public class BttSurface implements GlobeElevationModel {
     
     int[]   int_lonlat, int_h, int_dh;
     int[]   int_cartesian;
-    float[] own_obj_radius;
-    float[] tot_obj_radius;
-    float[] tot_dev;
-    
-    private int free = -1, top_free = 0, fill = 0;
+    // The bounds and deviation read by the refinement grow in chunks, without copying
+    NodeChunks.Floats own_obj_radius;
+    NodeChunks.Floats tot_obj_radius;
+    NodeChunks.Floats tot_dev;
+    NodeChunks.Ints   node_version;               // Changed with the position, bounds or deviation of a node
+    
+    private int free = -1, top_free = 0, fill = 0;  // fill includes the nodes in limbo
+    
+    // Concurrent readers
+    // The reader epoch each node was created in, the readers get it before looking at a node.
+    // A new node has Integer.MAX_VALUE before it is linked, until its data is set.
+    AtomicIntegerArray node_epoch;
+    
+    // Geomorphing, the shown height of a node is blended from morph_h to its
+    // elevation over the next morph_left updates
+    private int[]  morph_h;
+    private byte[] morph_left;
+    private int epoch = 0;                        // Guarded by readers
+    private final ArrayList<Reader> readers = new ArrayList<Reader>();
+    private volatile NodeArrays node_arrays = null;
+    private int [] limbo_nodes  = new int[1024];  // Nodes released while readers are open
+    private int [] limbo_epochs = new int[1024];
+    private int    num_limbo = 0;
+    
+    // Initial node pool size
+    static final int MIN_POOL_SIZE = 256*1024;
     
     // Timestamp
     static final int TS_INC = 6;
@@ -54,10 +84,12 @@ final public class BttSurface implements GlobeElevationModel {
     static final int TS_IS_VISIBLE   = 4;
     
     private int ts = TS_INC;
+    private volatile double [] prefetch_path = null;
     private int terrain_cut_ts = 0;
     private int texture_cut_ts = 0;
     private int uppercut_ts = TS_INC;
     private int gc_id = 0;
+    private int gc_lap = 0;                       // Nodes examined since the cut was last changed
     
     // Node index constants
     static final int ERROR = -1;
@@ -91,11 +123,34 @@ final public class BttSurface implements GlobeElevationModel {
     // The Elevation data source
     private ElevationSource source;
     
+    // Worker threads shared by the views, intersections and analyses of this surface
+    private final Object workers_lock = new Object();
+    private WorkerPool   workers = null;
+    private boolean      workers_created = false;
+    
     // Texture coverages
     TextureCoverage[] textures2D = new TextureCoverage[4];
     int               num_textures2D = 0;
     
     
+    /**
+     * Get the worker threads of this surface, created on first use with the
+     * number of threads given by ApplicationSettings.getUpdateThreads.
+     * The pool runs one job at a time, a job started while it is busy runs in the calling thread.
+     * @return The worker pool, or null if the work is done in one thread
+     */
+    WorkerPool getWorkerPool() {
+        synchronized (workers_lock) {
+            if (!workers_created) {
+                workers_created = true;
+                int num_threads = ApplicationSettings.getApplicationSettings().getUpdateThreads();
+                if (num_threads > 1)
+                    workers = new WorkerPool("BttSurface-worker", num_threads, Thread.NORM_PRIORITY-1);
+            }
+            return workers;
+        }
+    }
+    
     /**
      * Return the ellipsoid defining the datum surface for this globe
      * @return The datum ellipsoid
@@ -124,6 +179,34 @@ final public class BttSurface implements GlobeElevationModel {
         }
     }
     
+    /**
+     * Prefetch the terrain for upcoming camera positions, as along the path of a navigator.
+     * The views create the nodes and request the data needed at the positions
+     * while there is time and room left after their own updates.
+     * Replaces the positions given before. A path ending in the same destination
+     * continues from the positions already prefetched, so it may be resampled as the camera moves.
+     * @param path Longitude, latitude (radians) and ellipsoid height for each position,
+     * in the order the positions are reached, or null to stop prefetching
+     * @param n The number of positions
+     */
+    public void setPrefetchPath(double[] path, int n) {
+        if (path == null || n <= 0)
+            prefetch_path = null;
+        else {
+            double [] p = new double[3*n];
+            System.arraycopy(path, 0, p, 0, 3*n);
+            prefetch_path = p;
+        }
+    }
+    
+    /**
+     * Get the positions to prefetch, a new array each time the path is set
+     * @return Longitude, latitude and height for each position, or null
+     */
+    double [] getPrefetchPath() {
+        return prefetch_path;
+    }
+    
     void fireGlobeElevationUpdateListeners() {
         synchronized (elevation_update_listeners) {
             Iterator it = elevation_update_listeners.iterator();
@@ -151,7 +234,7 @@ final public class BttSurface implements GlobeElevationModel {
         ellps = source.getEllipsoid();
         initializeCoosys();
         
-        size = 256*1024;
+        size = MIN_POOL_SIZE;
         free = -1;
         top_free = 0;
         
@@ -164,11 +247,19 @@ final public class BttSurface implements GlobeElevationModel {
         
         int_cartesian = new int[size*3];
         
-        own_obj_radius = new float[size];
-        tot_obj_radius = new float[size];
-        tot_dev = new float[size];
+        own_obj_radius = new NodeChunks.Floats(size);
+        tot_obj_radius = new NodeChunks.Floats(size);
+        tot_dev = new NodeChunks.Floats(size);
+        node_version = new NodeChunks.Ints(size);
+        node_epoch = new AtomicIntegerArray(size);
+        morph_h    = new int[size];
+        morph_left = new byte[size];
         
         createBasemesh();
+        
+        // The base mesh is created in epoch 0, and seen by all readers
+        node_arrays = new NodeArrays();
+        epoch = 1;
     }
     
     /**
@@ -184,7 +275,7 @@ final public class BttSurface implements GlobeElevationModel {
                 BttSurfaceView v = (BttSurfaceView)view_it.next();
                 view_it.remove();
                 tmp_view_list.add(v);
-             
+            
             }*/
             view_list.clear();
         }
@@ -197,6 +288,13 @@ final public class BttSurface implements GlobeElevationModel {
         }
         tmp_view_list.clear();
         
+        synchronized (workers_lock) {
+            if (workers != null)
+                workers.close();
+            workers = null;
+            workers_created = true;
+        }
+        
         for (int i=0; i<num_textures2D; ++i) {
             textures2D[i].clearTextures();
             textures2D[i] = null;
@@ -211,6 +309,11 @@ final public class BttSurface implements GlobeElevationModel {
         own_obj_radius = null;
         tot_obj_radius = null;
         tot_dev = null;
+        node_version = null;
+        node_epoch = null;
+        morph_h    = null;
+        morph_left = null;
+        node_arrays = null;
         source = null;
         ellps = null;
     }
@@ -255,6 +358,54 @@ final public class BttSurface implements GlobeElevationModel {
         }
     }
     
+    /**
+     * Open addressing hash table holding a bit mask for each key
+     */
+    static private class MaskTab {
+        private int [] keys  = new int [1024];
+        private int [] masks = new int [1024];
+        private int size;
+        
+        MaskTab() {
+            clear();
+        }
+        
+        void clear() {
+            size = 0;
+            Arrays.fill(keys, -1);
+        }
+        
+        /**
+         * Add bits to the mask of a key
+         * @return The bits that were not set before
+         */
+        int add(int key, int mask) {
+            if (10*size >= 9*keys.length) {
+                int [] old_keys  = keys;
+                int [] old_masks = masks;
+                keys  = new int[old_keys.length*2];
+                masks = new int[old_keys.length*2];
+                clear();
+                for (int i = old_keys.length; --i >= 0; )
+                    if (old_keys[i] >= 0)
+                        add(old_keys[i], old_masks[i]);
+            }
+            int pos = key%keys.length;
+            while (keys[pos] != -1) {
+                if (keys[pos] == key) {
+                    int new_bits = mask & ~masks[pos];
+                    masks[pos] |= mask;
+                    return new_bits;
+                }
+                pos = (pos+1)%keys.length;
+            }
+            keys[pos]  = key;
+            masks[pos] = mask;
+            ++size;
+            return mask;
+        }
+    }
+    
     private class IntersectData {
         static final int INTERSECT_SORTED  = 0;
         static final int INTERSECT_ALL     = 1;
@@ -287,14 +438,14 @@ final public class BttSurface implements GlobeElevationModel {
             tmp_v.z -= v.z*t;
             double dist = tmp_v.length();
             
-            if (dist > tot_obj_radius[n])
+            if (dist > tot_obj_radius.get(n))
                 return;
             
             for (int ix = 0; ix < 4; ++ix) {
                 int ch_n = index[8*n+ix];
                 if (ch_n >= 0)
                     intersect(ch_n);
-                else if (dist > own_obj_radius[n])
+                else if (dist > own_obj_radius.get(n))
                     return;
                 else {
                     int l_n = index[8*n+4+(3*LEFT+ix)%4];
@@ -426,6 +577,507 @@ final public class BttSurface implements GlobeElevationModel {
         return result;
     }
     
+    // Mesh snapshots
+    static final int SNAPSHOT_MAGIC   = 0x42747453;   // "BttS"
+    static final int SNAPSHOT_VERSION = 2;
+    static final int SNAPSHOT_HEADER  = 8;            // Header size, in ints
+    static final int SNAPSHOT_DEAD      = 0;
+    static final int SNAPSHOT_LIVE      = 1;
+    static final int SNAPSHOT_PERMANENT = 2;
+    static final int SNAPSHOT_BUFFER    = 1 << 16;    // Size of the transfer buffer, in bytes
+    
+    /**
+     * The header of a snapshot of this surface. The integer elevations depend on the
+     * elevation model and its scale, so these are part of the header along with the
+     * ellipsoid.
+     */
+    private int [] snapshotHeader(int n) {
+        long a_bits = Double.doubleToLongBits(ellps.getA());
+        return new int [] {
+            SNAPSHOT_MAGIC, SNAPSHOT_VERSION,
+            (int)(a_bits >>> 32), (int)a_bits,
+            n, base_mesh.length,
+            source.getModelVersion(), Float.floatToIntBits(source.getHScale())
+        };
+    }
+    
+    private static void writeInts(FileChannel fc, ByteBuffer buf, int [] src, int off, int len) throws IOException {
+        while (len > 0) {
+            int cnt = Math.min(len, buf.capacity()/4);
+            buf.clear();
+            buf.asIntBuffer().put(src, off, cnt);
+            buf.limit(4*cnt);
+            while (buf.hasRemaining())
+                fc.write(buf);
+            off += cnt;
+            len -= cnt;
+        }
+    }
+    
+    private static void readInts(FileChannel fc, ByteBuffer buf, int [] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int cnt = Math.min(len, buf.capacity()/4);
+            buf.clear();
+            buf.limit(4*cnt);
+            while (buf.hasRemaining())
+                if (fc.read(buf) < 0)
+                    throw new EOFException("Truncated snapshot");
+            buf.flip();
+            buf.asIntBuffer().get(dst, off, cnt);
+            off += cnt;
+            len -= cnt;
+        }
+    }
+    
+    /**
+     * Write the refined node hierarchy to a snapshot file, to be loaded by loadSnapshot
+     * in the next session. The node connections, positions and elevations are saved,
+     * everything else is computed when loading. The file is written through a small
+     * heap buffer, not mapped, so that it can be renamed or deleted right away.
+     * @param file The snapshot file
+     * @throws IOException
+     */
+    public synchronized void saveSnapshot(File file) throws IOException {
+        if (index == null)
+            return;
+        int n = top_free;
+        int [] snap_status = new int[n];
+        for (int id = 0; id < n; ++id)
+            snap_status[id] = status[id] == Integer.MAX_VALUE ? SNAPSHOT_PERMANENT :
+                status[id] > 0 ? SNAPSHOT_LIVE : SNAPSHOT_DEAD;
+        
+        File tmp_file = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp_file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel fc = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_BUFFER);
+            writeInts(fc, buf, snapshotHeader(n), 0, SNAPSHOT_HEADER);
+            writeInts(fc, buf, base_mesh, 0, base_mesh.length);
+            writeInts(fc, buf, snap_status, 0, n);
+            writeInts(fc, buf, index, 0, 8*n);
+            writeInts(fc, buf, int_lonlat, 0, 2*n);
+            writeInts(fc, buf, int_h, 0, n);
+            writeInts(fc, buf, int_dh, 0, n);
+            fc.force(false);
+        } finally {
+            raf.close();
+        }
+        if (!tmp_file.renameTo(file)) {
+            file.delete();
+            if (!tmp_file.renameTo(file))
+                throw new IOException("Unable to replace snapshot " + file);
+        }
+    }
+    
+    /**
+     * Replace the node hierarchy with one saved by saveSnapshot. Must be called before
+     * any views are added to the surface. Only nodes without elevation data
+     * are queried from the elevation source, so the first frames show the terrain
+     * as it was when the snapshot was taken.
+     * @param file The snapshot file
+     * @return true if the snapshot was loaded, false if the file is missing or
+     * does not match this surface and its elevation model
+     * @throws IOException
+     */
+    public synchronized boolean loadSnapshot(File file) throws IOException {
+        if (!file.isFile() || !view_list.isEmpty())
+            return false;
+        synchronized (readers) {
+            if (!readers.isEmpty())
+                return false;
+        }
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            long len = fc.size();
+            if (len < 4L*SNAPSHOT_HEADER)
+                return false;
+            ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_BUFFER);
+            int [] header = new int[SNAPSHOT_HEADER];
+            readInts(fc, buf, header, 0, SNAPSHOT_HEADER);
+            int n = header[4];
+            int num_base = header[5];
+            int [] expected = snapshotHeader(n);
+            for (int i = 0; i < SNAPSHOT_HEADER; ++i)
+                if (header[i] != expected[i])
+                    return false;
+            if (n < top_free || len != 4L*(SNAPSHOT_HEADER + num_base + 13L*n))
+                return false;
+            int [] snap_base = new int[num_base];
+            readInts(fc, buf, snap_base, 0, num_base);
+            if (!Arrays.equals(snap_base, base_mesh))
+                return false;
+            
+            int [] new_status = new int[n];
+            int [] new_index  = new int[8*n];
+            readInts(fc, buf, new_status, 0, n);
+            readInts(fc, buf, new_index, 0, 8*n);
+            
+            // Live nodes may only refer to live nodes
+            for (int id = 0; id < n; ++id) {
+                if (new_status[id] == SNAPSHOT_DEAD)
+                    continue;
+                for (int i = 8*id; i < 8*id+8; ++i) {
+                    int ref = new_index[i];
+                    if (ref < -1 || ref >= n || (ref >= 0 && new_status[ref] == SNAPSHOT_DEAD))
+                        return false;
+                }
+            }
+            for (int i = 0; i < num_base; ++i)
+                if (new_status[base_mesh[i]] != SNAPSHOT_PERMANENT)
+                    return false;
+            
+            if (n > size - gcHeadroom())
+                setSize(Math.max(size*3/2, n + gcHeadroom()));
+            
+            System.arraycopy(new_index, 0, index, 0, 8*n);
+            readInts(fc, buf, int_lonlat, 0, 2*n);
+            readInts(fc, buf, int_h, 0, n);
+            readInts(fc, buf, int_dh, 0, n);
+            
+            free = -1;
+            fill = 0;
+            top_free = n;
+            num_dirty = 0;
+            num_limbo = 0;
+            num_morphing = 0;
+            for (int id = 0; id < n; ++id)
+                node_epoch.set(id, 0);
+            Arrays.fill(morph_left, (byte)0);
+            for (int id = n-1; id >= 0; --id) {
+                if (new_status[id] == SNAPSHOT_DEAD) {
+                    status[id] = 0;
+                    index[8*id] = free;
+                    free = id;
+                    continue;
+                }
+                status[id] = new_status[id] == SNAPSHOT_PERMANENT ? Integer.MAX_VALUE : ts;
+                ++fill;
+                computeCartesian(id);
+                computeTextureCoordinates2D(id);
+                if (int_h[id] == Integer.MIN_VALUE)
+                    source.addQuery(id);
+            }
+        } finally {
+            raf.close();
+        }
+        
+        for (int i = 0; i < base_mesh.length; ++i)
+            computeAllObjectRadius(i, -2, 0);
+        synchronized (readers) {
+            ++epoch;
+            node_arrays = new NodeArrays();
+        }
+        return true;
+    }
+    
+    // Batched ray intersections
+    static final int RAY_PACKET_SIZE = 32;   // Rays traversing the node tree together, at most 32
+    private static final int [] ray_seq = new int[RAY_PACKET_SIZE];
+    static {
+        for (int i = 0; i < RAY_PACKET_SIZE; ++i)
+            ray_seq[i] = i;
+    }
+    private ArrayList<RayPacket>      ray_packets       = new ArrayList<RayPacket>();
+    private ArrayList<IntersectBatch> intersect_batches = new ArrayList<IntersectBatch>();
+    
+    /**
+     * A bundle of rays traversing the node tree together. The bounding spheres of a node
+     * are tested against all the rays still active, and only the rays passing through
+     * a sphere go on to the children of the node.
+     */
+    private class RayPacket {
+        int num_rays;
+        double [] px = new double[RAY_PACKET_SIZE];
+        double [] py = new double[RAY_PACKET_SIZE];
+        double [] pz = new double[RAY_PACKET_SIZE];
+        double [] vx = new double[RAY_PACKET_SIZE];
+        double [] vy = new double[RAY_PACKET_SIZE];
+        double [] vz = new double[RAY_PACKET_SIZE];
+        double [] t2 = new double[RAY_PACKET_SIZE];
+        boolean[] hit = new boolean[RAY_PACKET_SIZE];
+        
+        // The active rays, and their squared distances from the node, for each level
+        int    [][] active = new int[32][];
+        double [][] dist2  = new double[32][];
+        // The rays that have visited each node
+        MaskTab visited = new MaskTab();
+        
+        // The node arrays of the reader
+        int []   r_index, r_lonlat, r_cartesian;
+        AtomicIntegerArray r_epoch;
+        float [][] r_own_radius, r_tot_radius;
+        int      r_size, r_max_epoch;
+        double   r_h_scale;
+        Reader   reader;
+        Point3d  r_p = new Point3d();
+        double[] q   = new double[9];
+        
+        void set(Reader reader, double[] origins, double[] dirs, int first, int n) {
+            this.reader  = reader;
+            r_index      = reader.arrays.index;
+            r_lonlat     = reader.arrays.lonlat;
+            r_cartesian  = reader.arrays.cartesian;
+            r_epoch      = reader.arrays.epoch;
+            r_own_radius = reader.arrays.own_radius;
+            r_tot_radius = reader.arrays.tot_radius;
+            r_size       = reader.arrays.size;
+            r_max_epoch  = reader.epoch;
+            r_h_scale    = h_scale;
+            num_rays = n;
+            for (int r = 0; r < n; ++r) {
+                int i = 3*(first+r);
+                px[r] = origins[i];
+                py[r] = origins[i+1];
+                pz[r] = origins[i+2];
+                double l = Math.sqrt(dirs[i]*dirs[i] + dirs[i+1]*dirs[i+1] + dirs[i+2]*dirs[i+2]);
+                vx[r] = dirs[i]/l;
+                vy[r] = dirs[i+1]/l;
+                vz[r] = dirs[i+2]/l;
+                t2[r] = Double.MAX_VALUE;
+                hit[r] = false;
+            }
+            visited.clear();
+        }
+        
+        void get(double[] out, int first) {
+            reader = null;
+            r_index = r_lonlat = r_cartesian = null;
+            r_epoch = null;
+            r_own_radius = r_tot_radius = null;
+            for (int r = 0; r < num_rays; ++r) {
+                int i = 3*(first+r);
+                if (hit[r]) {
+                    out[i]   = px[r] + vx[r]*t2[r];
+                    out[i+1] = py[r] + vy[r]*t2[r];
+                    out[i+2] = pz[r] + vz[r]*t2[r];
+                } else
+                    out[i] = out[i+1] = out[i+2] = Double.NaN;
+            }
+        }
+        
+        /**
+         * Get the position of a node. The position of a node waiting for the updates
+         * to recompute it is computed here, as computeCartesian.
+         * @return true if the node is waiting for the updates
+         */
+        boolean position(int id, double [] xyz, int i) {
+            int x = r_cartesian[id*3];
+            if (x != Integer.MAX_VALUE) {
+                xyz[i]   = scale*x;
+                xyz[i+1] = scale*r_cartesian[id*3+1];
+                xyz[i+2] = scale*r_cartesian[id*3+2];
+                return false;
+            }
+            reader.ellps.toCartesian(intToLat(r_lonlat[id*2+1]), intToLon(r_lonlat[id*2]),
+                    reader.walk.intH(id, 0)*scale*r_h_scale, r_p);
+            xyz[i]   = r_p.x;
+            xyz[i+1] = r_p.y;
+            xyz[i+2] = r_p.z;
+            return true;
+        }
+        
+        void intersect(int n, int depth, int [] in, int num_in) {
+            int mask = 0;
+            for (int k = 0; k < num_in; ++k)
+                mask |= 1 << in[k];
+            mask = visited.add(n, mask);
+            if (mask == 0)
+                return;
+            if (depth >= active.length) {
+                int [][]    new_active = new int[active.length*2][];
+                double [][] new_dist2  = new double[active.length*2][];
+                System.arraycopy(active, 0, new_active, 0, active.length);
+                System.arraycopy(dist2,  0, new_dist2,  0, dist2.length);
+                active = new_active;
+                dist2  = new_dist2;
+            }
+            if (active[depth] == null) {
+                active[depth] = new int[RAY_PACKET_SIZE];
+                dist2[depth]  = new double[RAY_PACKET_SIZE];
+            }
+            int []    out = active[depth];
+            double [] d2  = dist2[depth];
+            
+            // A node moved by the updates, or with its radies not yet recomputed, can not be culled
+            boolean moving = position(n, q, 0);
+            double cx = q[0];
+            double cy = q[1];
+            double cz = q[2];
+            double tot_r = r_tot_radius[n >> NodeChunks.SHIFT][n & NodeChunks.MASK];
+            double tot_r2 = tot_r*tot_r;
+            if (moving || tot_r2 == 0)
+                tot_r2 = Double.POSITIVE_INFINITY;
+            int num = 0;
+            for (int k = 0; k < num_in; ++k) {
+                int r = in[k];
+                if ((mask & (1 << r)) == 0)
+                    continue;
+                double dx = cx - px[r], dy = cy - py[r], dz = cz - pz[r];
+                double t = vx[r]*dx + vy[r]*dy + vz[r]*dz;
+                if (t < 0) t = 0;
+                if (t > t2[r]) t = t2[r];
+                dx -= vx[r]*t;
+                dy -= vy[r]*t;
+                dz -= vz[r]*t;
+                double dd = dx*dx + dy*dy + dz*dz;
+                if (dd <= tot_r2) {
+                    out[num] = r;
+                    d2[num]  = dd;
+                    ++num;
+                }
+            }
+            if (num == 0)
+                return;
+            
+            double own_r = r_own_radius[n >> NodeChunks.SHIFT][n & NodeChunks.MASK];
+            double own_r2 = own_r*own_r;
+            if (moving || own_r2 == 0)
+                own_r2 = Double.POSITIVE_INFINITY;
+            for (int ix = 0; ix < 4; ++ix) {
+                int ch_n = r_index[8*n+ix];
+                if (ch_n >= 0 && ch_n < r_size && r_epoch.get(ch_n) < r_max_epoch) {
+                    intersect(ch_n, depth+1, out, num);
+                    continue;
+                }
+                // Rays outside the own radius are done with this node
+                int m = 0;
+                for (int k = 0; k < num; ++k) {
+                    if (d2[k] <= own_r2) {
+                        out[m] = out[k];
+                        d2[m]  = d2[k];
+                        ++m;
+                    }
+                }
+                num = m;
+                if (num == 0)
+                    return;
+                
+                int l_n = r_index[8*n+4+(3*LEFT+ix)%4];
+                int r_n = r_index[8*n+4+(3*RIGHT+ix)%4];
+                if (l_n < 0 || l_n >= r_size || r_n < 0 || r_n >= r_size)
+                    continue;
+                position(l_n, q, 3);
+                position(r_n, q, 6);
+                double e1x = q[3] - cx;
+                double e1y = q[4] - cy;
+                double e1z = q[5] - cz;
+                double e2x = q[6] - cx;
+                double e2y = q[7] - cy;
+                double e2z = q[8] - cz;
+                double nx = e1y*e2z - e1z*e2y;
+                double ny = e1z*e2x - e1x*e2z;
+                double nz = e1x*e2y - e1y*e2x;
+                for (int k = 0; k < num; ++k) {
+                    int r = out[k];
+                    // Solve p + v*t = c + e1*a + e2*b
+                    double qx = e2y*vz[r] - e2z*vy[r];
+                    double qy = e2z*vx[r] - e2x*vz[r];
+                    double qz = e2x*vy[r] - e2y*vx[r];
+                    double det = e1x*qx + e1y*qy + e1z*qz;
+                    if (det == 0)
+                        continue;
+                    double sx = px[r] - cx, sy = py[r] - cy, sz = pz[r] - cz;
+                    double a = (sx*qx + sy*qy + sz*qz)/det;
+                    if (a < 0 || a > 1)
+                        continue;
+                    double b = (e1x*(sy*vz[r] - sz*vy[r]) +
+                            e1y*(sz*vx[r] - sx*vz[r]) +
+                            e1z*(sx*vy[r] - sy*vx[r]))/det;
+                    if (b < 0 || a + b > 1)
+                        continue;
+                    double t = -(sx*nx + sy*ny + sz*nz)/det;
+                    if (t >= 0 && t <= t2[r]) {
+                        t2[r]  = t;
+                        hit[r] = true;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * One call to getIntersections, the parts are the ray packets
+     */
+    private class IntersectBatch implements WorkerPool.Task {
+        Reader reader;
+        double [] origins, dirs, out;
+        int n;
+        
+        public void run(int part) {
+            RayPacket rp;
+            synchronized (ray_packets) {
+                rp = ray_packets.isEmpty() ? new RayPacket() : ray_packets.remove(ray_packets.size()-1);
+            }
+            int first = part*RAY_PACKET_SIZE;
+            rp.set(reader, origins, dirs, first, Math.min(RAY_PACKET_SIZE, n - first));
+            for (int i = 0; i < base_mesh.length; ++i)
+                rp.intersect(base_mesh[i], 0, ray_seq, rp.num_rays);
+            rp.get(out, first);
+            synchronized (ray_packets) {
+                ray_packets.add(rp);
+            }
+        }
+    }
+    
+    /**
+     * Compute the nearest intersections between a number of rays and this surface.
+     * The rays are traversed in packets of neighbouring rays, so rays close together
+     * (a pick region, a line to be draped) should be given in sequence.
+     * The packets are shared among the update threads.
+     * @param origins The start points of the rays, x, y and z for each ray
+     * @param dirs The direction vectors of the rays, x, y and z for each ray
+     * @param n The number of rays
+     * @param out The intersection points, x, y and z for each ray, NaN if the ray does not hit the surface
+     * @return The number of rays hitting the surface
+     */
+    public int getIntersections(double[] origins, double[] dirs, int n, double[] out) {
+        Reader reader = openReader();
+        try {
+            return reader.getIntersections(origins, dirs, n, out);
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private int getIntersections(Reader reader, double[] origins, double[] dirs, int n, double[] out) {
+        if (n <= 0)
+            return 0;
+        IntersectBatch batch;
+        synchronized (intersect_batches) {
+            batch = intersect_batches.isEmpty() ? new IntersectBatch() : intersect_batches.remove(intersect_batches.size()-1);
+        }
+        WorkerPool wp = getWorkerPool();
+        batch.reader  = reader;
+        batch.origins = origins;
+        batch.dirs    = dirs;
+        batch.out     = out;
+        batch.n       = n;
+        int num_packets = (n + RAY_PACKET_SIZE - 1)/RAY_PACKET_SIZE;
+        try {
+            if (wp != null)
+                wp.execute(batch, num_packets);
+            else {
+                for (int i = 0; i < num_packets; ++i)
+                    batch.run(i);
+            }
+        } finally {
+            batch.reader  = null;
+            batch.origins = batch.dirs = batch.out = null;
+            synchronized (intersect_batches) {
+                intersect_batches.add(batch);
+            }
+        }
+        
+        int num_hits = 0;
+        for (int i = 0; i < n; ++i)
+            if (!Double.isNaN(out[3*i]))
+                ++num_hits;
+        return num_hits;
+    }
+    
     /**
      * Find the triangle that contains this point
      * @param lon The longitude (radians)
@@ -571,7 +1223,422 @@ final public class BttSurface implements GlobeElevationModel {
             return (int)((1-u-v)*getIntH(id) + u*getIntH(id_l) + v*getIntH(id_r));
         ix = (ix+(u>v?LEFT:RIGHT))%4;
         return getTriangleH((bn << ID_SHIFT) | ix , lon, lat);
+    
+    }
+    
+    // Elevation sampling
+    static final int MAX_WALK_STEPS = 64;    // Steps between neighbours before searching from the base mesh
+    static final int MAX_WALK_DEPTH = 128;   // Levels descended in the triangle hierarchy
+    
+    /**
+     * Elevation sampling walking from the triangle of the previous position
+     * to its neighbours. Works on the node arrays of a reader, without locking the surface;
+     * nodes created after the reader was opened are not seen. All node ids read are
+     * checked against the array sizes, and the walk is limited.
+     */
+    private class ElevationWalk {
+        final int [] w_index;
+        final int [] w_lonlat;
+        final int [] w_h;
+        final AtomicIntegerArray w_epoch;
+        final int    w_size;
+        final int    w_max_epoch;
+        int t = ERROR;      // The triangle of the previous position
+        double u, v;        // Position in the last triangle tested
+        int    id_l, id_r;  // Left and right corners of the last triangle tested
+        
+        static final int INVALID = -1;
+        static final int OUTSIDE = 0;
+        static final int INSIDE  = 1;
+        
+        ElevationWalk(NodeArrays arrays, int max_epoch) {
+            w_index     = arrays.index;
+            w_lonlat    = arrays.lonlat;
+            w_h         = arrays.h;
+            w_epoch     = arrays.epoch;
+            w_size      = arrays.size;
+            w_max_epoch = max_epoch;
+        }
+        
+        boolean valid(int id) {
+            return id >= 0 && id < w_size;
+        }
+        
+        boolean visible(int id) {
+            return valid(id) && w_epoch.get(id) < w_max_epoch;
+        }
+        
+        int test(int t, int lon, int lat) {
+            int id = t >> ID_SHIFT;
+            int ix = t & IX_MASK;
+            if (!valid(id)) return INVALID;
+            id_l = w_index[8*id+4+(ix+3)%4];
+            id_r = w_index[8*id+4+ix];
+            if (!valid(id_l) || !valid(id_r)) return INVALID;
+            int lon_t = w_lonlat[2*id];
+            int lat_t = w_lonlat[2*id+1];
+            int lon_l = w_lonlat[2*id_l]   - lon_t;
+            int lat_l = w_lonlat[2*id_l+1] - lat_t;
+            int lon_r = w_lonlat[2*id_r]   - lon_t;
+            int lat_r = w_lonlat[2*id_r+1] - lat_t;
+            
+            double d = (double)lat_l*lon_r - (double)lat_r*lon_l;
+            if (d == 0) return INVALID;
+            u = lon_r/d*(lat-lat_t) - lat_r/d*(lon-lon_t);
+            v = lat_l/d*(lon-lon_t) - lon_l/d*(lat-lat_t);
+            
+            if (u < 0 || v < 0 || u+v > 1)
+                return OUTSIDE;
+            return INSIDE;
+        }
+        
+        int child(int t, int ch_ix) {
+            int id = t >> ID_SHIFT;
+            int ix = t & IX_MASK;
+            int bn = w_index[8*id+ix];
+            if (!visible(bn)) return ERROR;
+            return (bn << ID_SHIFT) | ((ix+ch_ix)%4);
+        }
+        
+        /**
+         * Same as getNeighbour, without creating nodes or touching the timestamps
+         */
+        int neighbour(int t, int n_ix) {
+            int id = t >> ID_SHIFT;
+            int ix = t & IX_MASK;
+            if (n_ix == LEFT || n_ix == RIGHT) {
+                if (w_index[8*id+4+(n_ix+1+ix)%4] < 0) return ERROR;
+                ix = (ix+2*n_ix+1)%4;
+                t = (id << ID_SHIFT) | ix;
+                int n_id = child(t, (n_ix+1)%2);
+                return n_id >= 0 ? n_id : t;
+            }
+            int ch_ix = ERROR;
+            int p_ix  = ix;
+            int p_id  = w_index[8*id+4+p_ix];
+            if (valid(p_id) && w_index[8*p_id+p_ix] == id)
+                ch_ix = RIGHT;
+            else {
+                p_ix = (ix+3)%4;
+                p_id = w_index[8*id+4+p_ix];
+                if (valid(p_id) && w_index[8*p_id+p_ix] == id)
+                    ch_ix = LEFT;
+            }
+            if (ch_ix == ERROR) return ERROR;
+            if (w_index[8*p_id+4+(ch_ix+1+p_ix)%4] < 0) return ERROR;
+            p_ix = (p_ix+2*ch_ix+1)%4;
+            int p_t = (p_id << ID_SHIFT) | p_ix;
+            int n_id = child(p_t, (ch_ix+1)%2);
+            return n_id >= 0 ? n_id : p_t;
+        }
+        
+        /**
+         * Same as getIntH
+         */
+        int intH(int id, int depth) {
+            if (w_h[id] > Integer.MIN_VALUE+1 || depth >= MAX_WALK_DEPTH)
+                return w_h[id];
+            
+            for (int i = 0; i < 2; i++) {
+                int p_id_1 = w_index[8*id+4+i];
+                int p_id_2 = w_index[8*id+4+(i+2)%4];
+                if (valid(p_id_1) && w_index[8*p_id_1+i] != id &&
+                        valid(p_id_2) && w_index[8*p_id_2+(i+2)%4] != id)
+                    return (intH(p_id_1, depth+1) + intH(p_id_2, depth+1))/2;
+            }
+            return 0;
+        }
+        
+        /**
+         * Same as getTriangleH, remember the leaf triangle found
+         */
+        int descend(int t, int lon, int lat) {
+            for (int depth = 0; depth < MAX_WALK_DEPTH; ++depth) {
+                if (test(t, lon, lat) != INSIDE)
+                    return Integer.MIN_VALUE;
+                int id = t >> ID_SHIFT;
+                int ix = t & IX_MASK;
+                int bn = w_index[8*id+ix];
+                if (bn >= 0 && !valid(bn))
+                    return Integer.MIN_VALUE;
+                if (bn < 0 || w_epoch.get(bn) >= w_max_epoch) {
+                    this.t = t;
+                    return (int)((1-u-v)*intH(id, 0) + u*intH(id_l, 0) + v*intH(id_r, 0));
+                }
+                t = (bn << ID_SHIFT) | ((ix+(u>v?LEFT:RIGHT))%4);
+            }
+            return Integer.MIN_VALUE;
+        }
         
+        double getElevation(double lon, double lat) {
+            // Grids crossing the date line go past +-180 degrees
+            int int_lon = lonToInt(Math.IEEEremainder(lon, 2*Math.PI));
+            int int_lat = latToInt(lat);
+            
+            // Walk from the previous triangle towards the position
+            int cur = t;
+            for (int step = 0; cur >= 0 && step < MAX_WALK_STEPS; ++step) {
+                int r = test(cur, int_lon, int_lat);
+                if (r == INVALID)
+                    break;
+                if (r == INSIDE) {
+                    int h = descend(cur, int_lon, int_lat);
+                    if (h != Integer.MIN_VALUE)
+                        return h*scale;
+                    break;
+                }
+                // Cross the edge the position is farthest outside of
+                double w = 1-u-v;
+                if (u <= v && u <= w)
+                    cur = neighbour(cur, RIGHT);
+                else if (v <= w)
+                    cur = neighbour(cur, LEFT);
+                else
+                    cur = neighbour(cur, BASE);
+            }
+            
+            // Search from the base mesh
+            for (int i=0; i<base_mesh.length; ++i) {
+                for (int j=0; j<4; j++) {
+                    int h = descend((base_mesh[i]<<ID_SHIFT)|j, int_lon, int_lat);
+                    if (h != Integer.MIN_VALUE)
+                        return h*scale;
+                }
+            }
+            t = ERROR;
+            return 0;
+        }
+    }
+    
+    /**
+     * Compute terrain elevations for a sequence of positions, as getElevation.
+     * The search for a position starts in the triangle found for the previous one,
+     * so positions close to each other, as along a line, should follow each other.
+     * Does not lock the surface, may be called from any thread.
+     * @param lonlat Longitude and latitude (radians) for each position
+     * @param n The number of positions
+     * @param out The terrain elevations
+     */
+    public void getElevations(double[] lonlat, int n, double[] out) {
+        Reader reader = openReader();
+        try {
+            reader.getElevations(lonlat, n, out);
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Compute terrain elevations for a regular grid of positions, as getElevation.
+     * Does not lock the surface, may be called from any thread.
+     * @param lon The longitude of the first position (radians)
+     * @param lat The latitude of the first position (radians)
+     * @param dlon The longitude step (radians)
+     * @param dlat The latitude step (radians)
+     * @param num_lon The number of positions along each row
+     * @param num_lat The number of rows
+     * @param out The terrain elevations, row by row
+     */
+    public void getElevations(double lon, double lat, double dlon, double dlat,
+            int num_lon, int num_lat, double[] out) {
+        Reader reader = openReader();
+        try {
+            reader.getElevations(lon, lat, dlon, dlat, num_lon, num_lat, out);
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * The node arrays of one generation. The arrays are replaced when the pool grows,
+     * readers keep using the arrays they were opened with.
+     */
+    private final class NodeArrays {
+        final int []   index     = BttSurface.this.index;
+        final int []   lonlat    = int_lonlat;
+        final int []   h         = int_h;
+        final int []   cartesian = int_cartesian;
+        final AtomicIntegerArray epoch = node_epoch;
+        final float [][] own_radius = own_obj_radius.chunks();
+        final float [][] tot_radius = tot_obj_radius.chunks();
+        final int      size      = Math.min(Math.min(Math.min(index.length/8, lonlat.length/2),
+                Math.min(Math.min(h.length, cartesian.length/3), epoch.length())),
+                Math.min(own_radius.length, tot_radius.length) << NodeChunks.SHIFT);
+    }
+    
+    /**
+     * A read-only view of the surface, for threads analysing the terrain in the background
+     * while the views keep refining it. The reader sees the nodes that existed when it was opened:
+     * nodes created later are not seen, and nodes released by the collector are not reused
+     * until all readers that could see them are closed. Elevations and positions arriving
+     * while the reader is open may be seen.
+     * A reader is used by one thread, except getIntersections which may be called by several
+     * threads at once. The reader should be closed when done, as open readers
+     * keep the released nodes from being reused:
+     * <pre>
+     * BttSurface.Reader reader = surface.openReader();
+     * try {
+     *     ...
+     * } finally {
+     *     reader.close();
+     * }
+     * </pre>
+     */
+    public final class Reader {
+        private final NodeArrays arrays;
+        private final int        epoch;
+        private final Ellipsoid  ellps = BttSurface.this.ellps;
+        private ElevationWalk    walk;
+        private boolean          closed = false;
+        private double []        ray_p = new double[3], ray_v = new double[3], ray_out = new double[3];
+        
+        private Reader(NodeArrays arrays, int epoch) {
+            this.arrays = arrays;
+            this.epoch  = epoch;
+            walk = new ElevationWalk(arrays, epoch);
+        }
+        
+        /**
+         * Compute terrain elevation for position, as BttSurface.getElevation.
+         * The search starts in the triangle found by the previous call.
+         * @param lon longitude (radians)
+         * @param lat latitude (radians)
+         * @return terrain elevation
+         */
+        public double getElevation(double lon, double lat) {
+            return walk.getElevation(lon, lat);
+        }
+        
+        /**
+         * Compute terrain elevations for a sequence of positions, as BttSurface.getElevations
+         * @param lonlat Longitude and latitude (radians) for each position
+         * @param n The number of positions
+         * @param out The terrain elevations
+         */
+        public void getElevations(double[] lonlat, int n, double[] out) {
+            walk.t = ERROR;
+            for (int i = 0; i < n; ++i)
+                out[i] = walk.getElevation(lonlat[2*i], lonlat[2*i+1]);
+        }
+        
+        /**
+         * Compute terrain elevations for a regular grid of positions, as BttSurface.getElevations
+         * @param lon The longitude of the first position (radians)
+         * @param lat The latitude of the first position (radians)
+         * @param dlon The longitude step (radians)
+         * @param dlat The latitude step (radians)
+         * @param num_lon The number of positions along each row
+         * @param num_lat The number of rows
+         * @param out The terrain elevations, row by row
+         */
+        public void getElevations(double lon, double lat, double dlon, double dlat,
+                int num_lon, int num_lat, double[] out) {
+            int row_t = ERROR;
+            for (int j = 0; j < num_lat; ++j) {
+                // Start each row from the triangle of the first position of the row before
+                walk.t = row_t;
+                for (int i = 0; i < num_lon; ++i) {
+                    out[j*num_lon+i] = walk.getElevation(lon + i*dlon, lat + j*dlat);
+                    if (i == 0)
+                        row_t = walk.t;
+                }
+            }
+        }
+        
+        /**
+         * Compute the nearest intersection between a ray and the surface
+         * @param p The start point of the ray
+         * @param v The direction of the ray
+         * @param result The intersection point
+         * @return true if the ray hits the surface
+         */
+        public boolean getIntersection(Point3d p, Vector3d v, Point3d result) {
+            p.get(ray_p);
+            v.get(ray_v);
+            if (BttSurface.this.getIntersections(this, ray_p, ray_v, 1, ray_out) == 0)
+                return false;
+            result.set(ray_out);
+            return true;
+        }
+        
+        /**
+         * Compute the nearest intersections between a number of rays and the surface,
+         * as BttSurface.getIntersections
+         * @param origins The start points of the rays, x, y and z for each ray
+         * @param dirs The direction vectors of the rays, x, y and z for each ray
+         * @param n The number of rays
+         * @param out The intersection points, x, y and z for each ray, NaN if the ray does not hit the surface
+         * @return The number of rays hitting the surface
+         */
+        public int getIntersections(double[] origins, double[] dirs, int n, double[] out) {
+            return BttSurface.this.getIntersections(this, origins, dirs, n, out);
+        }
+        
+        /**
+         * Close the reader, the nodes released while it was open may now be reused
+         */
+        public void close() {
+            synchronized (readers) {
+                if (closed)
+                    return;
+                closed = true;
+                readers.remove(this);
+            }
+        }
+    }
+    
+    /**
+     * Open a read-only view of the surface, that may be used from any thread
+     * without locking the surface. The reader must be closed when done.
+     * @return The reader
+     */
+    public Reader openReader() {
+        synchronized (readers) {
+            NodeArrays arrays = node_arrays;
+            if (arrays == null)
+                throw new IllegalStateException("The surface is cleared");
+            Reader reader = new Reader(arrays, epoch);
+            readers.add(reader);
+            return reader;
+        }
+    }
+    
+    /**
+     * Start a new reader epoch, called between the updates and when the views
+     * have refined the surface. The nodes created before this are seen by the readers opened after it.
+     */
+    synchronized void newReaderEpoch() {
+        synchronized (readers) {
+            ++epoch;
+        }
+        reclaimNodes();
+    }
+    
+    /**
+     * Put the released nodes no open reader can see on the free list
+     */
+    private void reclaimNodes() {
+        if (num_limbo == 0)
+            return;
+        int min_epoch = Integer.MAX_VALUE;
+        synchronized (readers) {
+            for (int i = 0; i < readers.size(); ++i)
+                min_epoch = Math.min(min_epoch, readers.get(i).epoch);
+        }
+        int m = 0;
+        for (int k = 0; k < num_limbo; ++k) {
+            int id = limbo_nodes[k];
+            if (limbo_epochs[k] < min_epoch) {
+                index[id*8] = free;
+                free = id;
+                --fill;
+            } else {
+                limbo_nodes[m]  = id;
+                limbo_epochs[m] = limbo_epochs[k];
+                ++m;
+            }
+        }
+        num_limbo = m;
     }
     
     /**
@@ -600,40 +1667,32 @@ final public class BttSurface implements GlobeElevationModel {
     
     /**
      * Allocate a new node
-     * @return
-     * @throws OutOfNodeMemory
+     * The allocation never sweeps the whole node pool. If the pool is full
+     * collector slices are run within the time budget of one slice, and if that
+     * does not release any nodes the pool is grown. While growth is deferred
+     * the allocation fails instead, and the pool is grown by endDeferGrowth.
+     * @return The new node, or ERROR if the pool is full and growth is deferred
      */
     private int allocNode() {
         int retval = -1;
         
-        if (fill >= size) {
-            int fill_red_target = Math.min(10000, (int)(size*.05));
-            // System.out.print("Out of nodes, GC'ing");
-            // System.out.println(" Terrain GC Cut: " + terrain_cut_ts + " Upper cut: " + uppercut_ts);
-            gc((int)(size-2*fill_red_target));
-            while (terrain_cut_ts < uppercut_ts && fill > size-fill_red_target) {
-                // System.out.print("Gc - fill fr : " + fill);
-                terrain_cut_ts += 10+(uppercut_ts - terrain_cut_ts)/2;
-                if (terrain_cut_ts >= uppercut_ts) terrain_cut_ts = uppercut_ts;
-                gc((int)(size-fill_red_target));
-                // System.out.print(" etter : " + fill);
-                // System.out.println(" Cut: " + terrain_cut_ts);
-            }
-        }
-    /*
-    while (terrain_cut_ts < uppercut_ts && fill >= size) {
-      // System.out.print("Gc - fill fr : " + fill);
-      terrain_cut_ts += TS_INC;
-      if (terrain_cut_ts >= uppercut_ts) terrain_cut_ts = uppercut_ts;
-      gc(size-1000);
-      // System.out.println(" etter : " + fill);
-    }*/
+        if (fill >= size)
+            collectNodes(1);
+        if (free < 0 && num_limbo > 0)
+            reclaimNodes();
+        
         if (free >= 0) {
             retval = free;
             free = index[8*free];
         } else {
-            if (top_free >= size)
+            if (top_free >= size) {
+                if (defer_growth > 0) {
+                    growth_deferred = true;
+                    ++alloc_failures;
+                    return ERROR;
+                }
                 setSize(size*3/2);
+            }
             retval = top_free;
             ++top_free;
         }
@@ -644,13 +1703,50 @@ final public class BttSurface implements GlobeElevationModel {
         status[retval] = ts;
         int_h[retval]  = Integer.MIN_VALUE;
         int_dh[retval] = 0;
+        node_version.increment(retval);
+        // Hidden from the readers until filled with data, set before the node is linked
+        node_epoch.set(retval, Integer.MAX_VALUE);
+        // A released node may still be in the morph list, until its count runs out
+        morph_h[retval] = Integer.MIN_VALUE;
         
         ++fill;
         return retval;
     }
     
+    // Deferred growth of the node pool
+    static final int GROWTH_RESERVE = 256;       // Free nodes needed to start creating a base node
+    private int     defer_growth = 0;
+    private boolean growth_deferred = false;
+    private int     create_depth = 0;
+    private int     alloc_failures = 0;          // Allocations failed because growth was deferred
+    
+    /**
+     * Do not grow the node pool until endDeferGrowth is called. While growth is deferred
+     * the node arrays are not replaced, but getBaseNode may fail if the pool is full.
+     * Used while the views refine the surface, so that the pool only grows between
+     * the refinement passes.
+     */
+    synchronized void beginDeferGrowth() {
+        ++defer_growth;
+    }
+    
+    /**
+     * End deferring growth of the node pool, grow if node creation has failed
+     * @return true if the pool was grown
+     */
+    synchronized boolean endDeferGrowth() {
+        if (--defer_growth > 0 || !growth_deferred)
+            return false;
+        growth_deferred = false;
+        setSize(size*3/2);
+        return true;
+    }
+    
     /**
      * Deallocate a node
+     * While readers are open the node is not reused until the readers
+     * that could see it are closed, see reclaimNodes. The node is counted
+     * in fill until it reaches the free list.
      * @param id
      */
     private void freeNode(int id) {
@@ -660,40 +1756,101 @@ final public class BttSurface implements GlobeElevationModel {
                 index[p_id*8+i] = -1;
         }
         status[id] = 0;
+        synchronized (readers) {
+            if (!readers.isEmpty()) {
+                if (num_limbo == limbo_nodes.length) {
+                    int [] new_limbo_nodes  = new int[num_limbo*2];
+                    int [] new_limbo_epochs = new int[num_limbo*2];
+                    System.arraycopy(limbo_nodes,  0, new_limbo_nodes,  0, num_limbo);
+                    System.arraycopy(limbo_epochs, 0, new_limbo_epochs, 0, num_limbo);
+                    limbo_nodes  = new_limbo_nodes;
+                    limbo_epochs = new_limbo_epochs;
+                }
+                limbo_nodes[num_limbo]  = id;
+                limbo_epochs[num_limbo] = epoch;
+                ++num_limbo;
+                return;
+            }
+        }
         index[id*8] = free;
         free = id;
         --fill;
     }
     
+    // Incremental garbage collection
+    static final int  GC_FRAME_SLICE = 1 << 15;   // Max nodes examined per frame
+    static final int  GC_ALLOC_SLICE = 1 << 12;   // Max nodes examined per allocation
+    static final long GC_SLICE_NANOS = 2000000L;  // Max time used per slice
+    
+    private long gc_last_pause = 0, gc_max_pause = 0, gc_tot_pause = 0;
+    private long gc_num_slices = 0, gc_num_freed = 0;
+    
+    /**
+     * The number of free nodes the collector tries to keep in the pool
+     */
+    private int gcHeadroom() {
+        return 2*Math.min(10000, (int)(size*.05));
+    }
+    
+    /**
+     * Run collector slices, within the time budget of one slice, until
+     * there is room for the given number of nodes. Nodes waiting in limbo
+     * for the readers are not collected again.
+     * @param num_nodes The number of nodes needed
+     */
+    private void collectNodes(int num_nodes) {
+        long start_time = System.nanoTime();
+        int fill_target = size - gcHeadroom();
+        do {
+            gcSlice(fill_target, GC_ALLOC_SLICE);
+        } while (size - fill < num_nodes && fill - num_limbo >= fill_target &&
+                terrain_cut_ts < uppercut_ts &&
+                System.nanoTime() - start_time < GC_SLICE_NANOS);
+    }
+    
+    /**
+     * Run one collector slice per frame, called from cleanupData.
+     * Keeps the pool below the high water mark, so that allocations normally
+     * are served from the free list.
+     */
+    private void gcFrame() {
+        int headroom = gcHeadroom();
+        if (fill > size - headroom)
+            gcSlice(size - headroom, GC_FRAME_SLICE);
+    }
+    
     /**
      * Preform garbage collection of nodes,
-     * free all nodes that has not been used for a while
+     * free nodes that has not been used for a while.
+     * The pool is examined from a cursor, at most max_scan nodes is examined
+     * and the slice stops when its time budget is used. The cut timestamp is only
+     * advanced when the cursor has made a whole lap of the pool at the current cut
+     * without reaching the fill target, so that the nodes below the cut are all
+     * examined before nodes newer than it are considered.
+     * @param fill_target Stop when the nodes in use, not counting those in limbo,
+     * are below this value
+     * @param max_scan Max number of nodes to examine
+     * @return The number of nodes freed
      */
     private int [] gc_nodes = new int [1 << 12];
-    private synchronized void gc(int fill_target) {
-        // System.out.print("GC: ");
-        // long start_time = System.currentTimeMillis();
-        // int num_hi_ts = 0;
-        // int num_has_children = 0;
-        // int num_removed = 0;
+    private synchronized int gcSlice(int fill_target, int max_scan) {
+        long start_time = System.nanoTime();
         int gc_nodes_num = 0;
-        for (int i = size; i >= 0; --i) {
+        int num_freed = 0;
+        int scanned = 0;
+        for (; scanned < max_scan && fill - num_limbo - gc_nodes_num >= fill_target; ++scanned) {
+            if ((scanned & 0x3ff) == 0x3ff && System.nanoTime() - start_time > GC_SLICE_NANOS)
+                break;
             if (++gc_id >= size) gc_id = 0;
-            if (fill - gc_nodes_num < fill_target) break;
-            if (i%1000 == 0) {
-        /*
-        if (System.currentTimeMillis() - start_time > 100)
-          return; */
-                Thread.yield();
-            }
+            
             if (status[gc_id] == 0);
             else if (status[gc_id] >= terrain_cut_ts - TS_INC)
-                ; //num_hi_ts++;
+                ;
             else if (!(index[gc_id*8] < 0 &&
                     index[gc_id*8+1] < 0 &&
                     index[gc_id*8+2] < 0 &&
                     index[gc_id*8+3] < 0))
-                ; //num_has_children++;
+                ;
             else if (int_h[gc_id] == Integer.MIN_VALUE) {
                 if (gc_nodes_num >= gc_nodes.length) {
                     int [] tmp = new int [gc_nodes.length*2];
@@ -701,26 +1858,110 @@ final public class BttSurface implements GlobeElevationModel {
                     gc_nodes = tmp;
                 }
                 gc_nodes[gc_nodes_num++] = gc_id;
-/*
-        if (i < size && source.removeQuery(gc_id)) {
-          num_removed++;
-          freeNode(gc_id);
-        }
- */
-            } else {
-                // num_removed++;
-                freeNode(gc_id);
-            }
+            } else
+                num_freed += freeUnusedLeaf(gc_id);
         }
         if (gc_nodes_num > 0) {
             gc_nodes_num = source.removeQueries(gc_nodes, gc_nodes_num);
             for (int i = 0; i < gc_nodes_num; ++i)
                 freeNode(gc_nodes[i]);
+            num_freed += gc_nodes_num;
+        }
+        gc_lap += scanned;
+        if (gc_lap >= size && fill - num_limbo >= fill_target && terrain_cut_ts < uppercut_ts) {
+            // A whole lap did not reach the target; increase the cut for the next lap
+            terrain_cut_ts += 10+(uppercut_ts - terrain_cut_ts)/2;
+            if (terrain_cut_ts >= uppercut_ts) terrain_cut_ts = uppercut_ts;
+            gc_lap = 0;
         }
-        // System.out.println((System.currentTimeMillis() - start_time) + " ms");
         
+        gc_last_pause = System.nanoTime() - start_time;
+        if (gc_last_pause > gc_max_pause)
+            gc_max_pause = gc_last_pause;
+        gc_tot_pause += gc_last_pause;
+        ++gc_num_slices;
+        gc_num_freed += num_freed;
+        return num_freed;
     }
     
+    /**
+     * Free a leaf node, and the parents that become unused leafs as a consequence,
+     * so that an unused branch is released in one slice rather than one level per pass.
+     * @param id An unused leaf node
+     * @return The number of nodes freed
+     */
+    private int [] gc_stack = new int [64];
+    private int freeUnusedLeaf(int id) {
+        int cut = terrain_cut_ts - TS_INC;
+        int num_freed = 0;
+        int top = 0;
+        gc_stack[top++] = id;
+        while (top > 0) {
+            id = gc_stack[--top];
+            if (status[id] == 0) continue;
+            if (top + 4 > gc_stack.length) {
+                int [] tmp = new int [gc_stack.length*2];
+                System.arraycopy(gc_stack, 0, tmp, 0, top);
+                gc_stack = tmp;
+            }
+            int num_parents = 0;
+            for (int i=0; i<4; i++) {
+                int p_id = index[id*8+4+i];
+                if (p_id >= 0 && index[p_id*8+i] == id)
+                    gc_stack[top + num_parents++] = p_id;
+            }
+            freeNode(id);
+            ++num_freed;
+            for (int i = 0; i < num_parents; ++i) {
+                int p_id = gc_stack[top + i];
+                if (status[p_id] != 0 && status[p_id] < cut &&
+                        index[p_id*8] < 0 && index[p_id*8+1] < 0 &&
+                        index[p_id*8+2] < 0 && index[p_id*8+3] < 0 &&
+                        int_h[p_id] != Integer.MIN_VALUE)
+                    gc_stack[top++] = p_id;
+            }
+        }
+        return num_freed;
+    }
+    
+    /**
+     * Get the duration of the last node collector slice
+     * @return The pause in milliseconds
+     */
+    public double getGcLastPauseMillis() { return gc_last_pause*1e-6; }
+    /**
+     * Get the longest node collector slice seen so far
+     * @return The pause in milliseconds
+     */
+    public double getGcMaxPauseMillis() { return gc_max_pause*1e-6; }
+    /**
+     * Get the mean duration of the node collector slices
+     * @return The pause in milliseconds
+     */
+    public double getGcMeanPauseMillis() {
+        return gc_num_slices > 0 ? gc_tot_pause*1e-6/gc_num_slices : 0;
+    }
+    /**
+     * Get the number of node collector slices run
+     */
+    public long getGcSliceCount() { return gc_num_slices; }
+    /**
+     * Get the total number of nodes freed by the collector
+     */
+    public long getGcFreedCount() { return gc_num_freed; }
+    /**
+     * Reset the maximum pause statistics
+     */
+    public void resetGcMaxPause() { gc_max_pause = 0; }
+    /**
+     * Get the number of nodes in use
+     */
+    public int getNodeCount() { return fill; }
+    /**
+     * Get the current capacity of the node pool
+     */
+    public int getNodeCapacity() { return size; }
+    
     /**
      * Get child triangle, create base node if necessary.
      *
@@ -804,11 +2045,11 @@ final public class BttSurface implements GlobeElevationModel {
             p_id = (p_id<<ID_SHIFT) | p_ix;
             int n_id = getChild(p_id, (ch_ix+1)%2, false);
             return n_id >=0 ? n_id : p_id;
-            
+        
         /*
             int p_id = ERROR;
             int ch_ix = ERROR;
-         
+            
             int tmp_id = index[8*id+4+ix];
             if (tmp_id >= 0 && index[8*tmp_id+ix] == id) {
                 p_id = (tmp_id << ID_SHIFT) | ix;
@@ -948,11 +2189,65 @@ final public class BttSurface implements GlobeElevationModel {
         if (!create)
             return ERROR;
         
+        if (defer_growth > 0 && create_depth == 0 && size - fill < GROWTH_RESERVE) {
+            // Growth is not allowed now, make sure the whole chain of forced splits can be created
+            collectNodes(GROWTH_RESERVE);
+            if (size - fill < GROWTH_RESERVE) {
+                growth_deferred = true;
+                return ERROR;
+            }
+        }
+        ++create_depth;
+        try {
+            return createBaseNode(t_id);
+        } finally {
+            --create_depth;
+        }
+    }
+    
+    /**
+     * Get, and possibly create base node for prefetching.
+     * The node gets a timestamp just below the current one, so its elevation query
+     * is answered after the queries of the nodes used by the views.
+     * @param t_id
+     * @return
+     */
+    synchronized int getPrefetchNode(int t_id) {
+        if (t_id < 0) return ERROR;
+        
+        int bn = index[8*(t_id >> ID_SHIFT)+(t_id & IX_MASK)];
+        if (bn < 0) {
+            bn = getBaseNode(t_id, true);
+            if (bn >= 0 && status[bn] == ts)
+                status[bn] = ts-1;
+        } else if (status[bn] < ts-1)
+            status[bn] = ts-1;
+        return bn;
+    }
+    
+    /**
+     * Check if there is room for prefetching nodes,
+     * without growing the node pool or collecting nodes in use
+     */
+    synchronized boolean hasPrefetchRoom() {
+        return size - fill > gcHeadroom() + GROWTH_RESERVE;
+    }
+    
+    private int createBaseNode(int t_id) {
+        int id = t_id >> ID_SHIFT;
+        int ix = t_id & IX_MASK;
+        
         // Search for neighbour to share basenode with
+        int failures = alloc_failures;
         int bt_id = getBaseNeighbour(t_id);
+        // A neighbour that could not be created is not the same as no neighbour
+        if (alloc_failures != failures)
+            return ERROR;
         
         // Create new base node
-        bn = allocNode();
+        int bn = allocNode();
+        if (bn < 0)
+            return ERROR;
         if (bt_id != ERROR) {
             int p_id = bt_id >> ID_SHIFT;
             int p_ix = bt_id & IX_MASK;
@@ -990,11 +2285,23 @@ final public class BttSurface implements GlobeElevationModel {
         computeObjectRadius(bn);
         computeTextureCoordinates2D(bn);
         
+        // The readers opened from the next epoch on may see the node
+        node_epoch.set(bn, epoch);
+        
         // Post query for updated data
         source.addQuery(bn);
         return bn;
     }
     
+    /**
+     * Tell the elevation source how much a node waiting for elevations is needed
+     * @param id The node
+     * @param error The screen space error of the node
+     */
+    void prioritizeQuery(int id, float error) {
+        source.prioritizeQuery(id, error);
+    }
+    
     /**
      * Set the height and height uncertainty for a node
      *
@@ -1004,11 +2311,17 @@ final public class BttSurface implements GlobeElevationModel {
      */
     void setNodeValues(int id, int h, int dh) {
         if (int_h[id] == h && int_dh[id] == dh) return;
+        // Morph from the height shown until now, the interpolated one for a new node
+        if (morph_frames > 0 && int_cartesian[id*3] != Integer.MAX_VALUE) {
+            int shown_h = getMorphIntH(id);
+            if (shown_h != h)
+                startMorph(id, shown_h);
+        }
         int_h[id]  = h;
         int_dh[id] = dh;
         
         // Set cartesian invalid
-        int_cartesian[id*3] = Integer.MAX_VALUE;
+        markDirty(id);
         
         clearGrandchildCartesian(id);
         
@@ -1016,14 +2329,54 @@ final public class BttSurface implements GlobeElevationModel {
         // computeObjectRadius(id);
     }
     
+    /**
+     * Set the cartesian position of a node invalid, and add the node to the list
+     * of nodes recomputed in the next updateData
+     * @param id
+     */
+    private void markDirty(int id) {
+        if (int_cartesian[id*3] == Integer.MAX_VALUE)
+            return;
+        // The bounding spheres do not hold for the new position
+        invalidateRadies(id);
+        int_cartesian[id*3] = Integer.MAX_VALUE;
+        if (num_dirty == dirty.length) {
+            int [] new_dirty = new int[dirty.length*2];
+            System.arraycopy(dirty, 0, new_dirty, 0, num_dirty);
+            dirty = new_dirty;
+        }
+        dirty[num_dirty++] = id;
+    }
+    
+    /**
+     * Set the object radies of a node, its parents and its children invalid,
+     * they are recomputed by computeAllObjectRadius
+     * @param id
+     */
+    private void invalidateRadies(int id) {
+        own_obj_radius.set(id, 0);
+        tot_obj_radius.set(id, 0);
+        clearParentRadies(id);
+        
+        // Set child radies invalid
+        for (int i=0; i<4; ++i) {
+            int ch_id = index[8*id+i];
+            if (ch_id >= 0) {
+                own_obj_radius.set(ch_id, 0);
+                tot_obj_radius.set(ch_id, 0);
+                clearParentRadies(ch_id);
+            }
+        }
+    }
+    
     private void clearParentRadies(int id) {
         for (int i=0; i<4; ++i) {
             int p_id = index[8*id+4+i];
             if (p_id >= 0 && index[8*p_id+i] == id) {
-                if (own_obj_radius[p_id] == 0 && tot_obj_radius[p_id] == 0)
+                if (own_obj_radius.get(p_id) == 0 && tot_obj_radius.get(p_id) == 0)
                     continue;
-                own_obj_radius[p_id] = 0;
-                tot_obj_radius[p_id] = 0;
+                own_obj_radius.set(p_id, 0);
+                tot_obj_radius.set(p_id, 0);
                 clearParentRadies(p_id);
             }
         }
@@ -1037,7 +2390,7 @@ final public class BttSurface implements GlobeElevationModel {
                     int gch_id = index[8*ch_id+j];
                     if (gch_id >= 0 && int_h[gch_id] <= Integer.MIN_VALUE+1 &&
                             (index[8*gch_id+4+(j+1)%4] == id || index[8*gch_id+4+(j+3)%4] == id)) {
-                        int_cartesian[gch_id*3] = Integer.MAX_VALUE;
+                        markDirty(gch_id);
                         clearGrandchildCartesian(gch_id);
                     }
                 }
@@ -1122,15 +2475,15 @@ final public class BttSurface implements GlobeElevationModel {
     double lat1 = intToLon(int_lat1);
     double lon2 = intToLon(int_lon2);
     double lat2 = intToLon(int_lat2);
- 
+    
     double dlon = ellps.adjlon(lon2-lon1)*Math.cos((lat2+lat1)/2);
     double dlat = lat2-lat1;
     double dist2 = ellps.getA()*Math.sqrt(dlon*dlon+dlat*dlat);
- 
+    
     if (dist2 < 10000.) {
       System.out.println("Dist1 : " + dist + " dist2 : " + dist2 + " dist1/dist2 : " + dist/dist2);
     }
- 
+    
     return dist2;
  */
     }
@@ -1159,19 +2512,112 @@ final public class BttSurface implements GlobeElevationModel {
         if (int_h[id] > Integer.MIN_VALUE+1)
             return int_h[id];
         
+        int h = getMidpointIntH(id, false);
+        return h != Integer.MIN_VALUE ? h : 0;
+    }
+    
+    /**
+     * The height at the midpoint of the edge this node splits
+     * @param id
+     * @param morphed Use the shown, morphed heights of the edge nodes
+     * @return The height, Integer.MIN_VALUE for the nodes of the base mesh
+     */
+    private int getMidpointIntH(int id, boolean morphed) {
         for (int i = 0; i < 2; i++) {
             int p_id_1 = index[8*id+4+i];
             int p_id_2 = index[8*id+4+(i+2)%4];
             if (p_id_1 >= 0 && index[8*p_id_1+i] != id &&
                     p_id_2 >= 0 && index[8*p_id_2+(i+2)%4] != id) {
-                int h_1 = getIntH(p_id_1);
-                int h_2 = getIntH(p_id_2);
+                int h_1 = morphed ? getMorphIntH(p_id_1) : getIntH(p_id_1);
+                int h_2 = morphed ? getMorphIntH(p_id_2) : getIntH(p_id_2);
                 
                 return (h_1 + h_2)/2;
             }
         }
         
-        return 0;
+        return Integer.MIN_VALUE;
+    }
+    
+    /**
+     * The height a node is shown with, between the height it is morphing from
+     * and its elevation. Nodes without elevation are interpolated from the shown heights.
+     * @param id
+     * @return
+     */
+    private int getMorphIntH(int id) {
+        if (int_h[id] <= Integer.MIN_VALUE+1) {
+            int h = getMidpointIntH(id, true);
+            return h != Integer.MIN_VALUE ? h : 0;
+        }
+        int h = int_h[id];
+        int left = morph_left[id];
+        if (left > 0 && morph_h[id] != Integer.MIN_VALUE)
+            h += (int)((long)(morph_h[id] - h)*left/Math.max(left, morph_frames));
+        return h;
+    }
+    
+    /**
+     * Start morphing a node from the given height to its elevation
+     * @param id
+     * @param from_h
+     */
+    private void startMorph(int id, int from_h) {
+        morph_h[id] = from_h;
+        if (morph_left[id] == 0) {
+            if (num_morphing == morphing.length) {
+                int [] new_morphing = new int[morphing.length*2];
+                System.arraycopy(morphing, 0, new_morphing, 0, num_morphing);
+                morphing = new_morphing;
+            }
+            morphing[num_morphing++] = id;
+        }
+        morph_left[id] = (byte)morph_frames;
+    }
+    
+    /**
+     * Let nodes that have just been split by a view morph from the midpoint of
+     * their edge, where the view showed the surface until now
+     * @param ids The split nodes
+     * @param num The number of nodes
+     */
+    synchronized void morphSplitNodes(int [] ids, int num) {
+        if (morph_frames <= 0)
+            return;
+        boolean started = false;
+        for (int i = 0; i < num; ++i) {
+            int id = ids[i];
+            if (status[id] <= 0 || int_h[id] <= Integer.MIN_VALUE+1 || morph_left[id] > 0)
+                continue;
+            int from_h = getMidpointIntH(id, true);
+            if (from_h == Integer.MIN_VALUE || from_h == int_h[id])
+                continue;
+            startMorph(id, from_h);
+            markDirty(id);
+            clearGrandchildCartesian(id);
+            started = true;
+        }
+        if (!started)
+            return;
+        computeDirty();
+        for (int i = 0; i < base_mesh.length; ++i)
+            computeAllObjectRadius(i, -2, 0);
+    }
+    
+    /**
+     * Set the number of updates used for morphing nodes to new heights, when split
+     * and when they get their elevations. The views refine to a coarser resolution
+     * when morphing, as the changes are not seen as popping.
+     * @param frames The number of updates, 0 to show new heights at once
+     */
+    public synchronized void setMorphFrames(int frames) {
+        morph_frames = Math.max(0, Math.min(frames, Byte.MAX_VALUE));
+    }
+    
+    /**
+     * @return The number of updates used for morphing nodes to new heights
+     */
+    public int getMorphFrames() {
+        return morph_frames;
     }
     
     /**
@@ -1179,16 +2625,36 @@ final public class BttSurface implements GlobeElevationModel {
      * @param id
      */
     private void computeCartesian(int id) {
+        computeCartesian(id, h_scale, int_cartesian);
+        if (rescaled_cartesian != null)
+            computeCartesian(id, h_scale_staged, rescaled_cartesian);
+        own_obj_radius.set(id, 0);
+        tot_obj_radius.set(id, 0);
+        // Compute perspective texture coordinates
+    }
+    
+    /**
+     * Compute the cartesian position of this node with a given elevation scale,
+     * leave the object radies
+     * @param id
+     * @param hs The elevation scale
+     * @param cartesian The array receiving the position
+     * @return true if the position has changed
+     */
+    private boolean computeCartesian(int id, double hs, int [] cartesian) {
         ellps.toCartesian(intToLat(int_lonlat[id*2+1]),
                 intToLon(int_lonlat[id*2+0]),
-                intToH(getIntH(id)), p);
-        
-        int_cartesian[id*3+0] = (int)(p.x/scale);
-        int_cartesian[id*3+1] = (int)(p.y/scale);
-        int_cartesian[id*3+2] = (int)(p.z/scale);
-        own_obj_radius[id] = 0;
-        tot_obj_radius[id] = 0;
-        // Compute perspective texture coordinates
+                getMorphIntH(id)*scale*hs, p);
+        
+        int x = (int)(p.x/scale);
+        int y = (int)(p.y/scale);
+        int z = (int)(p.z/scale);
+        if (cartesian[id*3+0] == x && cartesian[id*3+1] == y && cartesian[id*3+2] == z)
+            return false;
+        cartesian[id*3+0] = x;
+        cartesian[id*3+1] = y;
+        cartesian[id*3+2] = z;
+        return true;
     }
     
     /**
@@ -1224,12 +2690,12 @@ final public class BttSurface implements GlobeElevationModel {
             int n_id = index[8*id+4+i];
             if (n_id >= 0) {
                 double dist_sqr = distanceSqr(id, n_id);
-                if (dist_sqr > own_obj_radius[id]*own_obj_radius[id])
-                    own_obj_radius[id] = (float)Math.sqrt(dist_sqr);
+                if (dist_sqr > own_obj_radius.get(id)*own_obj_radius.get(id))
+                    own_obj_radius.set(id, (float)Math.sqrt(dist_sqr));
             }
         }
-        if (own_obj_radius[id] > tot_obj_radius[id])
-            tot_obj_radius[id] = own_obj_radius[id];
+        if (own_obj_radius.get(id) > tot_obj_radius.get(id))
+            tot_obj_radius.set(id, own_obj_radius.get(id));
         
         for (int i = 0; i < 4; i++) {
             int ch_id = index[8*id+i];
@@ -1237,31 +2703,35 @@ final public class BttSurface implements GlobeElevationModel {
                 if (int_dh[ch_id] > int_dh[id])
                     int_dh[id] = int_dh[ch_id];
                 float dist = (float)Math.sqrt(distanceSqr(id, ch_id));
-                if (tot_obj_radius[id] < dist + tot_obj_radius[ch_id])
-                    tot_obj_radius[id] = dist + tot_obj_radius[ch_id];
+                if (tot_obj_radius.get(id) < dist + tot_obj_radius.get(ch_id))
+                    tot_obj_radius.set(id, dist + tot_obj_radius.get(ch_id));
             }
         }
         
         // updateParentObjectRadius(id);
-        float dist = own_obj_radius[id]*2;
+        float dist = own_obj_radius.get(id)*2;
         float r = (float)ellps.getA();
-        tot_dev[id] = dist*dist/(8*r) + (float)(int_dh[id]*scale*h_scale);
+        tot_dev.set(id, dist*dist/(8*r) + (float)(int_dh[id]*scale*h_scale));
+        node_version.increment(id);
     }
     
     private void computeAllObjectRadius(int id, int p_id, float p_dist) {
-        if (tot_obj_radius[id] > 0)
+        if (tot_obj_radius.get(id) > 0)
             return;
-        if (p_dist > own_obj_radius[id])
-            own_obj_radius[id] = p_dist;
+        // The radies are stored when complete, as readers may use them meanwhile
+        float own = own_obj_radius.get(id);
+        if (p_dist > own)
+            own = p_dist;
         for (int i = 0; i < 4; i++) {
             int n_id = index[8*id+4+i];
             if (n_id >= 0 && n_id != p_id) {
                 double dist_sqr = distanceSqr(id, n_id);
-                if (dist_sqr > own_obj_radius[id]*own_obj_radius[id])
-                    own_obj_radius[id] = (float)Math.sqrt(dist_sqr);
+                if (dist_sqr > own*own)
+                    own = (float)Math.sqrt(dist_sqr);
             }
         }
-        tot_obj_radius[id] = own_obj_radius[id];
+        own_obj_radius.set(id, own);
+        float tot = own;
         for (int i = 0; i < 4; i++) {
             int ch_id = index[8*id+i];
             if (ch_id >= 0) {
@@ -1269,13 +2739,15 @@ final public class BttSurface implements GlobeElevationModel {
                     int_dh[id] = int_dh[ch_id];
                 float dist = (float)Math.sqrt(distanceSqr(id, ch_id));
                 computeAllObjectRadius(ch_id, id, dist);
-                if (tot_obj_radius[id] < dist + tot_obj_radius[ch_id])
-                    tot_obj_radius[id] = dist + tot_obj_radius[ch_id];
+                if (tot < dist + tot_obj_radius.get(ch_id))
+                    tot = dist + tot_obj_radius.get(ch_id);
             }
         }
-        float dist = own_obj_radius[id]*2;
+        tot_obj_radius.set(id, tot);
+        float dist = own*2;
         float r = (float)ellps.getA();
-        tot_dev[id] = dist*dist/(8*r) + (float)(int_dh[id]*scale*h_scale);
+        tot_dev.set(id, dist*dist/(8*r) + (float)(int_dh[id]*scale*h_scale));
+        node_version.increment(id);
     }
     
     
@@ -1287,7 +2759,7 @@ final public class BttSurface implements GlobeElevationModel {
   private void updateParentObjectRadius(int id) {
    //  int num_parents = 0;
     // float parent_h = 0;
-   
+    
     for (int i = 0; i < 4; i++) {
       int p_id = index[8*id+4+i];
       if (p_id >= 0 && index[8*p_id+i] == id) {
@@ -1327,6 +2799,7 @@ final public class BttSurface implements GlobeElevationModel {
                 
                 computeCartesian(p_id);
                 computeTextureCoordinates2D(p_id);
+                node_epoch.set(p_id, epoch);
                 source.addQuery(p_id);
             }
         }
@@ -1700,7 +3173,10 @@ final public class BttSurface implements GlobeElevationModel {
     }
     
     /**
-     * Initialize data arrays
+     * Grow the data arrays. The views do not allow this while they refine the surface,
+     * so the pool normally grows from cleanupData or endDeferGrowth between the updates.
+     * The arrays are replaced one at a time, so that unless a reader keeps the old
+     * arrays only one of them is held twice during the growth.
      * @param size
      */
     private synchronized void setSize(int sz) {
@@ -1708,6 +3184,22 @@ final public class BttSurface implements GlobeElevationModel {
         if (sz < size)
             return;
         
+        synchronized (readers) {
+            if (readers.isEmpty())
+                node_arrays = null;
+            growArrays(sz);
+            // The open readers keep the old arrays
+            node_arrays = new NodeArrays();
+        }
+        
+        for (BttSurfaceView v : view_list)
+            v.setSize();
+        
+        for (int i = 0; i < this.num_textures2D; ++i)
+            textures2D[i].setSize();
+    }
+    
+    private void growArrays(int sz) {
         size = sz;
         
         int [] new_index   = new int[size*8];
@@ -1734,24 +3226,30 @@ final public class BttSurface implements GlobeElevationModel {
         System.arraycopy(int_cartesian, 0, new_int_cartesian, 0, int_cartesian.length);
         int_cartesian = new_int_cartesian;
         
-        float [] new_own_obj_radius = new float[size];
-        System.arraycopy(own_obj_radius, 0, new_own_obj_radius, 0, own_obj_radius.length);
-        own_obj_radius = new_own_obj_radius;
-        
-        float [] new_tot_obj_radius = new float[size];
-        System.arraycopy(tot_obj_radius, 0, new_tot_obj_radius, 0, tot_obj_radius.length);
-        tot_obj_radius = new_tot_obj_radius;
+        if (rescaled_cartesian != null) {
+            int [] new_rescaled_cartesian = new int[size*3];
+            System.arraycopy(rescaled_cartesian, 0, new_rescaled_cartesian, 0, rescaled_cartesian.length);
+            rescaled_cartesian = new_rescaled_cartesian;
+        }
         
-        float [] new_tot_dev = new float[size];
-        System.arraycopy(tot_dev, 0, new_tot_dev, 0, tot_dev.length);
-        tot_dev = new_tot_dev;
+        // The chunked arrays keep their chunks, and the readers keep seeing them
+        own_obj_radius.grow(size);
+        tot_obj_radius.grow(size);
+        tot_dev.grow(size);
+        node_version.grow(size);
         
-        for (BttSurfaceView v : view_list)
-            v.setSize();
+        AtomicIntegerArray new_node_epoch = new AtomicIntegerArray(size);
+        for (int i = 0; i < node_epoch.length(); ++i)
+            new_node_epoch.set(i, node_epoch.get(i));
+        node_epoch = new_node_epoch;
         
-        for (int i = 0; i < this.num_textures2D; ++i)
-            textures2D[i].setSize();
+        int [] new_morph_h = new int[size];
+        System.arraycopy(morph_h, 0, new_morph_h, 0, morph_h.length);
+        morph_h = new_morph_h;
         
+        byte [] new_morph_left = new byte[size];
+        System.arraycopy(morph_left, 0, new_morph_left, 0, morph_left.length);
+        morph_left = new_morph_left;
     }
     
     /**
@@ -1807,10 +3305,32 @@ final public class BttSurface implements GlobeElevationModel {
             textures2D[i-1] = textures2D[i];
     }
     
+    // Nodes with new elevations, set by setNodeValues
+    private int [] dirty = new int[1024];
+    private int    num_dirty = 0;
+    
+    // Nodes morphing to new heights, with morph_left > 0
+    static final int MORPH_FRAMES = 8;      // Default number of updates used for morphing
+    private volatile int morph_frames = MORPH_FRAMES;
+    private int [] morphing = new int[1024];
+    private int    num_morphing = 0;
+    
+    // Frames used for computing the positions with a new elevation scale
+    static final int RESCALE_FRAMES = 5;
+    
+    // Positions with a new elevation scale, staged until all nodes are computed
+    private int [] rescaled_cartesian = null;
+    private double h_scale_staged;
+    private int    rescale_pos = 0;
+    
     /**
-     * Update internal data, call in a 'bounds update' listener in a per frame basis
+     * Update internal data, call in a 'bounds update' listener in a per frame basis.
+     * Only the nodes that have got new elevations since the last call are recomputed,
+     * so the cost follows the number of changed nodes, not the size of the pool.
+     * The positions for a new elevation scale are computed over RESCALE_FRAMES frames,
+     * and applied to all nodes at once. Mixing scales in the mesh would make the
+     * views refine without limit along the seams.
      */
-    int upd_cnt = 0;
     synchronized void updateData() {
         /*
         if (terrain_res_factor > 1 && fill <= size*.95) {
@@ -1823,38 +3343,66 @@ final public class BttSurface implements GlobeElevationModel {
         
         // Hent inn nye hydedata
         source.processReplies();
-        boolean h_scale_changed = false;
-        if (h_scale_new != h_scale) {
-            h_scale = h_scale_new;
-            h_scale_changed = true;
-        }
-        if (h_scale_changed || ++upd_cnt%30 == 0) {
-            for (int id=size-1; id >= 0; --id)
-                if (status[id] > 0)
-                    computeCartesian(id);
-        } else {
-            for (int id=size-1; id >= 0; --id) {
-                if (status[id] > 0 && int_cartesian[id*3] == Integer.MAX_VALUE) {
-                    computeCartesian(id);
-                    clearParentRadies(id);
-                    
-                    // Set child radies invalid
-                    for (int i=0; i<4; ++i) {
-                        int ch_id = index[8*id+i];
-                        if (ch_id >= 0) {
-                            own_obj_radius[ch_id] = 0;
-                            tot_obj_radius[ch_id] = 0;
-                            clearParentRadies(ch_id);
-                        }
-                    }
-                }
+        
+        // Next step of the morphing nodes, and the nodes interpolated from them
+        int num_left = 0;
+        for (int i = 0; i < num_morphing; ++i) {
+            int id = morphing[i];
+            int left = morph_frames > 0 ? morph_left[id] - 1 : 0;
+            morph_left[id] = (byte)left;
+            if (status[id] <= 0)
+                morph_left[id] = 0;
+            else {
+                markDirty(id);
+                clearGrandchildCartesian(id);
             }
+            if (morph_left[id] > 0)
+                morphing[num_left++] = id;
         }
-        // }
+        num_morphing = num_left;
+        
+        // Nodes with new elevations
+        computeDirty();
+        
+        if (rescaled_cartesian == null && h_scale_new != h_scale) {
+            h_scale_staged = h_scale_new;
+            rescaled_cartesian = new int[size*3];
+            rescale_pos = 0;
+        }
+        
+        if (rescaled_cartesian != null) {
+            // Compute the next slice with the new elevation scale
+            int end = Math.min(size, rescale_pos + (size + RESCALE_FRAMES - 1)/RESCALE_FRAMES);
+            for (; rescale_pos < end; ++rescale_pos)
+                if (status[rescale_pos] > 0)
+                    computeCartesian(rescale_pos, h_scale_staged, rescaled_cartesian);
+            if (rescale_pos >= size) {
+                System.arraycopy(rescaled_cartesian, 0, int_cartesian, 0, size*3);
+                rescaled_cartesian = null;
+                h_scale = h_scale_staged;
+                own_obj_radius.fill(0);
+                tot_obj_radius.fill(0);
+            }
+        }
+        
         for (int i = 0; i < base_mesh.length; ++i)
             computeAllObjectRadius(i, -2, 0);
     }
     
+    /**
+     * Recompute the cartesian positions of the dirty nodes
+     */
+    private void computeDirty() {
+        for (int i = 0; i < num_dirty; ++i) {
+            int id = dirty[i];
+            if (status[id] > 0 && int_cartesian[id*3] == Integer.MAX_VALUE) {
+                computeCartesian(id);
+                invalidateRadies(id);
+            }
+        }
+        num_dirty = 0;
+    }
+    
     synchronized void cleanupData() {
         uppercut_ts = ts;
         // System.out.print("Ny GC:");
@@ -1867,8 +3415,14 @@ final public class BttSurface implements GlobeElevationModel {
             }
         }
         
-        
         // kjr gc
+        gcFrame();
+        newReaderEpoch();
+        
+        // Grow the node pool here, between the updates, if all nodes are in use by the views
+        if (defer_growth == 0 && fill > size - gcHeadroom()/2 && terrain_cut_ts >= uppercut_ts)
+            setSize(size*3/2);
+        
         /*
         if (terrain_res_factor > 1) {
             // System.out.println("Terrain GC Cut: " + terrain_cut_ts + " Upper cut: " + uppercut_ts);
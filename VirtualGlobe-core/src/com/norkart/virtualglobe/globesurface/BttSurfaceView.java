@@ -11,7 +11,9 @@ package com.norkart.virtualglobe.globesurface;
 import com.norkart.geopos.Ellipsoid;
 import com.norkart.virtualglobe.util.GJK;
 import com.norkart.virtualglobe.util.GJKBody;
+import com.norkart.virtualglobe.util.GJKPoint3d;
 import com.norkart.virtualglobe.util.ApplicationSettings;
+import com.norkart.virtualglobe.util.WorkerPool;
 import com.norkart.virtualglobe.viewer.CullFrustum;
 import com.norkart.virtualglobe.viewer.OriginUpdateListener;
 
@@ -57,6 +59,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
     
     // Timestamp for this surface view
     int ts         = BttSurface.TS_INC;
+    private int prev_ts = 0;
     int render_ts  = BttSurface.TS_INC;
     
     // Update counter before next yield
@@ -66,7 +69,17 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
     private BttSurface surface;
     
     // Node status array
-    private int[]   status;
+    private NodeChunks.Ints status;
+    
+    // Frame to frame coherence: the refinement decision of each node holds until
+    // the camera has travelled to lod_deadline, or the node has changed
+    private NodeChunks.Booleans lod_visible;
+    private NodeChunks.Ints     lod_version;
+    private NodeChunks.Doubles  lod_deadline;
+    private double    odometer = 0;          // Length of the camera path
+    private Point3d   lod_camera = new Point3d();
+    private float     lod_resolution = 0;
+    private boolean   lod_perspective = false;
     
     // Normal vector array
     private float[]     normals;
@@ -130,6 +143,9 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
     // The background updater thread
     private Thread updater;
     
+    // Worker threads of the surface sharing the update work, null if updating in one thread
+    private WorkerPool workers = null;
+    
     
     private Point3d p = new Point3d();
     
@@ -160,12 +176,17 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         
         // box_buffer = BufferUtils.newFloatBuffer(1024*8*3);
         int_tex_coo = new int[surface.size*2];
-        status = new int[surface.size];
+        status = new NodeChunks.Ints(surface.size);
         index  = new int[surface.size];
         normals = new float[surface.size*3];
+        lod_visible  = new NodeChunks.Booleans(surface.size);
+        lod_version  = new NodeChunks.Ints(surface.size);
+        lod_deadline = new NodeChunks.Doubles(surface.size);
         
         strip_list = new StripList(surface.size/2);
         
+        workers = surface.getWorkerPool();
+        
         updater = new Thread(this, "BttSurfaceView-updater");
         updater.setPriority(thread_priority);
         updater.start();
@@ -180,9 +201,8 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         System.arraycopy(int_tex_coo, 0, new_int_tex_coo, 0, int_tex_coo.length);
         int_tex_coo = new_int_tex_coo;
         
-        int [] new_status = new int[surface.size];
-        System.arraycopy(status, 0, new_status, 0, status.length);
-        status = new_status;
+        // The refinement arrays only add chunks
+        status.grow(surface.size);
         
         int [] new_index  = new int[surface.size];
         System.arraycopy(index, 0, new_index, 0, index.length);
@@ -191,6 +211,10 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         float [] new_normals = new float[surface.size*3];
         System.arraycopy(normals, 0, new_normals, 0, normals.length);
         normals = new_normals;
+        
+        lod_visible.grow(surface.size);
+        lod_version.grow(surface.size);
+        lod_deadline.grow(surface.size);
     }
     
     /**
@@ -271,7 +295,6 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
      * @param p
      */
     private void addTriangleToStripList(StripList strip, int id, int p) {
-        id = getIndex(id);
         // Add point
         if (id != strip.back1() &&
                 id != strip.back2()) {
@@ -295,7 +318,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             Thread.yield();
         int p = n%2;
         int base = surface.index[8*top+ix];
-        boolean active_tri = (base >= 0 && status[base] >= ts+BttSurface.TS_IS_VISIBLE);
+        boolean active_tri = (base >= 0 && status.get(base) >= ts+BttSurface.TS_IS_VISIBLE);
         
         // Descend into children
         if (active_tri)
@@ -310,18 +333,19 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
     }
     
     /**
-     * Generate triangle strips for the quadrangle centered at the center_node
+     * Generate triangle strips for the quadrangle centered at the center_node.
+     * The strips contain node ids, they are compressed by getIndex when merged.
      * @param strip
      * @param center_node
      * @return
      */
     private int meshRefine(StripList strip, int center_node) {
-        if (center_node < 0 || status[center_node] < ts+BttSurface.TS_IS_VISIBLE)
+        if (center_node < 0 || status.get(center_node) < ts+BttSurface.TS_IS_VISIBLE)
             return 0;
         
         int old_strip_len = strip.num_nodes;
-        strip.append(getIndex(surface.index[center_node*8+4]));
-        strip.append(getIndex(surface.index[center_node*8+4]));
+        strip.append(surface.index[center_node*8+4]);
+        strip.append(surface.index[center_node*8+4]);
         subMeshRefine(strip, center_node, 1, 0);
         addTriangleToStripList(strip, surface.index[center_node*8+5], 1);
         subMeshRefine(strip, center_node, 2, 0);
@@ -329,7 +353,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         subMeshRefine(strip, center_node, 3, 0);
         addTriangleToStripList(strip, surface.index[center_node*8+7], 1);
         subMeshRefine(strip, center_node, 0, 0);
-        strip.append(getIndex(surface.index[center_node*8+4]));
+        strip.append(surface.index[center_node*8+4]);
         strip.parity = (strip.parity+1)%2;
         
         return strip.num_nodes - old_strip_len;
@@ -343,15 +367,15 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
      * @return
      */
     private int meshRefine(StripList strip, int id, int ix) {
-        if (id < 0 || status[id] < ts+BttSurface.TS_IS_VISIBLE)
+        if (id < 0 || status.get(id) < ts+BttSurface.TS_IS_VISIBLE)
             return 0;
         
         int old_strip_len = strip.num_nodes;
-        strip.append(getIndex(surface.index[id*8+4+(ix+3)%4]));
-        strip.append(getIndex(surface.index[id*8+4+(ix+3)%4]));
+        strip.append(surface.index[id*8+4+(ix+3)%4]);
+        strip.append(surface.index[id*8+4+(ix+3)%4]);
         subMeshRefine(strip, id, (ix+0)%4, 0);
-        strip.append(getIndex(surface.index[id*8+4+(ix+0)%4]));
-        strip.append(getIndex(surface.index[id*8+4+(ix+0)%4]));
+        strip.append(surface.index[id*8+4+(ix+0)%4]);
+        strip.append(surface.index[id*8+4+(ix+0)%4]);
         return strip.num_nodes - old_strip_len;
     }
     
@@ -419,10 +443,14 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         normals = null;
         status = null;
         index = null;
+        lod_visible  = null;
+        lod_version  = null;
+        lod_deadline = null;
         strip_list = null;
         render_geometry_buffer = null;
         update_geometry_buffer = null;
         index_buffer = null;
+        workers = null;
         
         requestCleanup();
     }
@@ -545,13 +573,13 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
      * @param camera
      * @param angular_resolution
      */
-    private boolean update(CullFrustum frustum) /* Vector4f[] planes, Point3f camera, float angular_resolution) */ {
+    boolean update(CullFrustum frustum) /* Vector4f[] planes, Point3f camera, float angular_resolution) */ {
         ycnt = 0;
         
         // Set values of cull frustum
         cull_frustum.setValues(frustum);
         
-
+        
         // Clear datastructures
         {
             Iterator t_it = update_normal_tiles.iterator();
@@ -566,6 +594,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         }
         
         // Set new timestamp
+        prev_ts = ts;
         ts = surface.newTs();
         
         // Update base structures
@@ -578,22 +607,63 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         // Scaled angular resolution, dependent on the surface resolution
         // reduction due to little free memory
         // this.angular_resolution = angular_resolution * surface.res_factor;
-        // cull_frustum.setTerrainResFactor(surface.terrain_res_factor);
+        // Coarser terrain when the new nodes are morphed into place
+        cull_frustum.setTerrainResFactor(surface.getMorphFrames() > 0 ? MORPH_RES_FACTOR : 1);
         cull_frustum.setTextureResFactor(surface.texture_res_factor);
         
+        // The refinement decisions of the last updates hold for a camera moving
+        // within their margins, unless the resolution has changed
+        float resolution = cull_frustum.getResolution()*cull_frustum.getTerrainResFactor();
+        if (resolution != lod_resolution || cull_frustum.isPerspective() != lod_perspective) {
+            lod_resolution  = resolution;
+            lod_perspective = cull_frustum.isPerspective();
+            lod_deadline.fill(0);
+        }
+        odometer += lod_camera.distance(cull_frustum.getCameraCenter());
+        lod_camera.set(cull_frustum.getCameraCenter());
+        
         // For each triangle in basemesh, do update
         // try {
         for (int i = 0; i < surface.base_mesh.length; ++i) {
             int id = surface.base_mesh[i];
-            if (status[id] > ts && status[id]%2 == BttSurface.TS_HAS_NORMAL)
-                status[id] = ts+BttSurface.TS_IS_VISIBLE+BttSurface.TS_HAS_NORMAL;
+            if (status.get(id) > ts && status.get(id)%2 == BttSurface.TS_HAS_NORMAL)
+                status.set(id, ts+BttSurface.TS_IS_VISIBLE+BttSurface.TS_HAS_NORMAL);
             else
-                status[id] = ts+BttSurface.TS_IS_VISIBLE;
-            for (int ix=0; ix < 4; ix++) {
-                int p_id = surface.index[id*8+4+ix];
-                if (p_id >= 0 && surface.index[p_id*8+ix] == id)
-                    update(p_id << BttSurface.ID_SHIFT | ix);
+                status.set(id, ts+BttSurface.TS_IS_VISIBLE);
+        }
+        if (refine_states.length < surface.base_mesh.length) {
+            refine_states = new RefineState[surface.base_mesh.length];
+            for (int i = 0; i < refine_states.length; ++i)
+                refine_states[i] = new RefineState();
+        }
+        for (int i = 0; i < surface.base_mesh.length; ++i)
+            refine_states[i].num_splits = 0;
+        // The node arrays are not replaced while refining,
+        // the node pool is grown between the refinement passes if it is full
+        boolean grown;
+        do {
+            surface.beginDeferGrowth();
+            try {
+                refine();
+            } finally {
+                grown = surface.endDeferGrowth();
             }
+        } while (grown && !stop_updating);
+        if (stop_updating) return false;
+        // Let the readers opened from now on see the refined surface
+        surface.newReaderEpoch();
+        
+        // Morph the nodes shown for the first time from the edges they split
+        for (int i = 0; i < surface.base_mesh.length; ++i) {
+            RefineState rs = refine_states[i];
+            surface.morphSplitNodes(rs.splits, rs.num_splits);
+        }
+        
+        // Compute normals of the triangles to be shown
+        for (int i = 0; i < surface.base_mesh.length; ++i) {
+            RefineState rs = refine_states[i];
+            for (int j = 0; j < rs.num_leafs; ++j)
+                addNormals(rs.leafs[j]);
         }
         
         // Update objects that are dependent on updated elevations
@@ -608,7 +678,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             
             // Create/use tile
             RenderTile tile = newRenderTile(base, surface.num_textures2D);
-
+            
             float min_pix_sz = Float.MAX_VALUE;
             for (int i=0; i < surface.num_textures2D; ++i) {
                 if (surface.textures2D[i].base_tiles[ix] == null ||
@@ -647,19 +717,32 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         
         // Stripifiser tiles her, antipoder frst
         {
-            max_node = 0;
+            int num_tiles = update_antipode_tiles.size() + update_normal_tiles.size();
+            if (mesh_tiles.length < num_tiles)
+                mesh_tiles = new RenderTile[num_tiles*2];
+            int num_antipode = 0;
             Iterator t_it = update_antipode_tiles.iterator();
-            while (t_it.hasNext()) {
-                RenderTile t = (RenderTile)t_it.next();
-                t.meshRefine();
-            }
+            while (t_it.hasNext())
+                mesh_tiles[num_antipode++] = (RenderTile)t_it.next();
+            num_tiles = num_antipode;
+            t_it = update_normal_tiles.iterator();
+            while (t_it.hasNext())
+                mesh_tiles[num_tiles++] = (RenderTile)t_it.next();
+            
+            // Generate the strips of each tile
+            runParts(mesh_task, num_tiles);
+            
+            // Merge and compress indexes, in the same order as the tiles
+            max_node = 0;
+            strip_list.clear();
+            for (int i = 0; i < num_antipode; ++i)
+                mesh_tiles[i].mergeStrip();
             // max_node er n antall noder som skal vre i antipode texcoo arrayen
             max_antipode_node = max_node;
-            t_it = update_normal_tiles.iterator();
-            while (t_it.hasNext()) {
-                RenderTile t = (RenderTile)t_it.next();
-                t.meshRefine();
-            }
+            for (int i = num_antipode; i < num_tiles; ++i)
+                mesh_tiles[i].mergeStrip();
+            for (int i = 0; i < num_tiles; ++i)
+                mesh_tiles[i] = null;
         }
         
         // surface.cleanupData();
@@ -684,188 +767,628 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         }
         update_geometry_buffer.clear();
         synchronized (surface) {
-            double orig_x = orig.x;
-            double orig_y = orig.y;
-            double orig_z = orig.z;
-            int    orig_s = int_tex_orig[0];
-            int    orig_t = int_tex_orig[1];
-            double scale  = surface.scale;
-            FloatBuffer local_buffer = update_geometry_buffer.asFloatBuffer();
-            int [] local_status = status;
-            int local_ts = ts;
-            float[] local_normals = normals;
-            int [] local_int_cartesian = surface.int_cartesian;
-            int [] local_int_tex_coo = int_tex_coo;
-            int [] local_surface_int_tex_coo = surface.textures2D[0].int_tex_coo;
-            int [] local_index = index;
-            int local_ycnt = 1;
-            int local_max_node = max_node;
-            int local_max_antipode = max_antipode_node;
-            int id, pos;
-            float x, y, z, ss;
-            for (int i = surface.size-1; i >= 0; --i) {
-                if (local_status[i] > local_ts && local_status[i]%2 == BttSurface.TS_HAS_NORMAL) {
-                    if ((local_ycnt++)%1000 == 0)
-                        Thread.yield();
-                    
-                    if (local_int_cartesian[i*3] == Integer.MAX_VALUE) {
-                        System.err.println("Undefined Cartesian value");
-                        surface.getEllipsoid().toCartesian(surface.intToLat(surface.int_lonlat[i*2+1]),
-                                surface.intToLon(surface.int_lonlat[i*2+0]),
-                                surface.intToH(surface.getIntH(i)), p);
-                        
-                        local_int_cartesian[i*3+0] = (int)(p.x/scale);
-                        local_int_cartesian[i*3+1] = (int)(p.y/scale);
-                        local_int_cartesian[i*3+2] = (int)(p.z/scale);
-                    }
+            int num_parts = workers == null ? 1 : 4*workers.getNumThreads();
+            fill_part_size = (surface.size + num_parts - 1)/num_parts;
+            runParts(fill_task, num_parts);
+        }
+        
+        // Use the time left for the positions the camera is heading for
+        prefetch();
+        
+        return true;
+    }
+    
+    /**
+     * Fill the vertex, normal and texture coordinate sections of the geometry buffer
+     * for the nodes from and including start to end
+     * @param start
+     * @param end
+     */
+    private void fillGeometry(int start, int end) {
+        ByteBuffer b = update_geometry_buffer.duplicate();
+        b.order(ByteOrder.nativeOrder());
+        FloatBuffer local_buffer = b.asFloatBuffer();
+        Point3d p = new Point3d();
+        double orig_x = orig.x;
+        double orig_y = orig.y;
+        double orig_z = orig.z;
+        int    orig_s = int_tex_orig[0];
+        int    orig_t = int_tex_orig[1];
+        double scale  = surface.scale;
+        NodeChunks.Ints local_status = status;
+        int local_ts = ts;
+        float[] local_normals = normals;
+        int [] local_int_cartesian = surface.int_cartesian;
+        int [] local_surface_int_tex_coo = surface.textures2D[0].int_tex_coo;
+        int [] local_index = index;
+        int local_ycnt = 1;
+        int local_max_node = max_node;
+        int local_max_antipode = max_antipode_node;
+        int id, pos;
+        float x, y, z, ss;
+        for (int i = end-1; i >= start; --i) {
+            if (local_status.get(i) > local_ts && local_status.get(i)%2 == BttSurface.TS_HAS_NORMAL) {
+                if ((local_ycnt++)%1000 == 0)
+                    Thread.yield();
+                
+                if (local_int_cartesian[i*3] == Integer.MAX_VALUE) {
+                    System.err.println("Undefined Cartesian value");
+                    surface.getEllipsoid().toCartesian(surface.intToLat(surface.int_lonlat[i*2+1]),
+                            surface.intToLon(surface.int_lonlat[i*2+0]),
+                            surface.intToH(surface.getIntH(i)), p);
                     
-                    x = local_normals[i*3];
-                    y = local_normals[i*3+1];
-                    z = local_normals[i*3+2];
+                    local_int_cartesian[i*3+0] = (int)(p.x/scale);
+                    local_int_cartesian[i*3+1] = (int)(p.y/scale);
+                    local_int_cartesian[i*3+2] = (int)(p.z/scale);
+                }
+                
+                x = local_normals[i*3];
+                y = local_normals[i*3+1];
+                z = local_normals[i*3+2];
+                ss = x*x+y*y+z*z;
+                if (ss < 0.01) {
+                    x = local_int_cartesian[i*3];
+                    y = local_int_cartesian[i*3+1];
+                    z = local_int_cartesian[i*3+2];
                     ss = x*x+y*y+z*z;
-                    if (ss < 0.01) {
-                        x = local_int_cartesian[i*3];
-                        y = local_int_cartesian[i*3+1];
-                        z = local_int_cartesian[i*3+2];
-                        ss = x*x+y*y+z*z;
-                    }
-                    ss = (float)Math.sqrt(ss);
-                    
-                    id = local_index[i];
-                    if (id < 0)
-                        continue;
-                    // throw new IllegalStateException("Impossible vertex index");
-                    
-                    pos = local_max_node*3 + id*3;
-                    local_buffer.put(pos,   x/ss);
-                    local_buffer.put(pos+1, y/ss);
-                    local_buffer.put(pos+2, z/ss);
-                    
-                    // Compute scaled and shifted (float) cartesian coordinates for this node
-                    pos = id*3;
-                    local_buffer.put(pos,   (float)(local_int_cartesian[i*3  ]*scale-orig_x));
-                    local_buffer.put(pos+1, (float)(local_int_cartesian[i*3+1]*scale-orig_y));
-                    local_buffer.put(pos+2, (float)(local_int_cartesian[i*3+2]*scale-orig_z));
-                    
-                    pos = local_max_node*6 + id*2;
-                    local_buffer.put(pos,   local_surface_int_tex_coo[i*2+0] - orig_s);
+                }
+                ss = (float)Math.sqrt(ss);
+                
+                id = local_index[i];
+                if (id < 0)
+                    continue;
+                // throw new IllegalStateException("Impossible vertex index");
+                
+                pos = local_max_node*3 + id*3;
+                local_buffer.put(pos,   x/ss);
+                local_buffer.put(pos+1, y/ss);
+                local_buffer.put(pos+2, z/ss);
+                
+                // Compute scaled and shifted (float) cartesian coordinates for this node
+                pos = id*3;
+                local_buffer.put(pos,   (float)(local_int_cartesian[i*3  ]*scale-orig_x));
+                local_buffer.put(pos+1, (float)(local_int_cartesian[i*3+1]*scale-orig_y));
+                local_buffer.put(pos+2, (float)(local_int_cartesian[i*3+2]*scale-orig_z));
+                
+                pos = local_max_node*6 + id*2;
+                local_buffer.put(pos,   local_surface_int_tex_coo[i*2+0] - orig_s);
+                local_buffer.put(pos+1, local_surface_int_tex_coo[i*2+1] - orig_t);
+                
+                if (id < local_max_antipode) {
+                    pos = local_max_node*8 + id*2;
+                    local_buffer.put(pos,   local_surface_int_tex_coo[i*2+0] - orig_s - Integer.MIN_VALUE);
                     local_buffer.put(pos+1, local_surface_int_tex_coo[i*2+1] - orig_t);
-                    
-                    if (id < local_max_antipode) {
-                        pos = local_max_node*8 + id*2;
-                        local_buffer.put(pos,   local_surface_int_tex_coo[i*2+0] - orig_s - Integer.MIN_VALUE);
-                        local_buffer.put(pos+1, local_surface_int_tex_coo[i*2+1] - orig_t);
-                    }
                 }
             }
         }
+    }
+    
+    /**
+     * Share the update work with the threads of the given pool, instead of those of the surface
+     * @param workers The worker pool, or null to update in one thread
+     */
+    void setWorkerPool(WorkerPool workers) {
+        this.workers = workers;
+    }
+    
+    /**
+     * @return The number of triangles shown by the last update
+     */
+    int getNumTriangles() {
+        int num = 0;
+        for (int i = 0; i < surface.base_mesh.length && i < refine_states.length; ++i)
+            num += refine_states[i].num_leafs;
+        return num;
+    }
+    
+    /**
+     * Run the parts of a task, on the worker threads if there are any
+     * @param task
+     * @param num_parts
+     */
+    private void runParts(WorkerPool.Task task, int num_parts) {
+        if (workers != null)
+            workers.execute(task, num_parts);
+        else {
+            for (int i = 0; i < num_parts; ++i)
+                task.run(i);
+        }
+    }
+    
+    /**
+     * Refinement state for one triangle of the base mesh.
+     * The triangles to show are collected, and their normals computed
+     * when all refinement is completed.
+     */
+    private final class RefineState {
+        private int[]     t_stack  = new int[65];
+        private int[]     leafs    = new int[64];
+        private int       num_leafs = 0;
+        private int[]     splits   = new int[64];  // Base nodes of leafs in the last update, split now
+        private int       num_splits = 0;
+        
+        private void addLeaf(int t) {
+            if (num_leafs == leafs.length) {
+                int[] tmp = new int[num_leafs*2];
+                System.arraycopy(leafs, 0, tmp, 0, num_leafs);
+                leafs = tmp;
+            }
+            leafs[num_leafs++] = t;
+        }
         
-        return true;
+        private void addSplit(int bn) {
+            if (num_splits == splits.length) {
+                int[] tmp = new int[num_splits*2];
+                System.arraycopy(splits, 0, tmp, 0, num_splits);
+                splits = tmp;
+            }
+            splits[num_splits++] = bn;
+        }
     }
+    private RefineState[] refine_states = new RefineState[0];
     
     /**
-     * Check this node for visibility, descend down into hierarchy
-     * @param t
-     * @param totally_in
-     * @throws BttSurface.OutOfNodeMemory
+     * The triangles of one level of the refinement
+     */
+    private static final class RefineLevel {
+        private int[]     t           = new int[256];
+        private int[]     part        = new int[256];     // The base mesh triangle it descends from
+        private boolean[] in          = new boolean[256]; // Totally inside the frustum
+        private int[]     bn          = new int[256];     // The base node, ERROR if the pool is full
+        private boolean[] eval        = new boolean[256]; // Evaluates the base node
+        private int[]     prev_status = new int[256];     // Status of the base node before it was evaluated
+        private boolean[] split       = new boolean[256]; // The base node was a leaf in the last update
+        private int       len = 0;
+        
+        private void add(int t, int part, boolean in) {
+            if (len == this.t.length) {
+                int sz = len*2;
+                int[] tmp = new int[sz];
+                System.arraycopy(this.t, 0, tmp, 0, len);
+                this.t = tmp;
+                tmp = new int[sz];
+                System.arraycopy(this.part, 0, tmp, 0, len);
+                this.part = tmp;
+                boolean[] btmp = new boolean[sz];
+                System.arraycopy(this.in, 0, btmp, 0, len);
+                this.in = btmp;
+                bn          = new int[sz];
+                eval        = new boolean[sz];
+                prev_status = new int[sz];
+                split       = new boolean[sz];
+            }
+            this.t[len]    = t;
+            this.part[len] = part;
+            this.in[len]   = in;
+            ++len;
+        }
+    }
+    private final RefineLevel[] refine_levels = { new RefineLevel(), new RefineLevel() };
+    
+    // Terrain resolution factor when morphing, the popping of coarser refinement is not seen
+    static final float MORPH_RES_FACTOR = 1.5f;
+    
+    // Prefetching along the path of the camera
+    static final long  PREFETCH_NANOS      = 4000000; // Time for prefetching in each update
+    static final float PREFETCH_RES_FACTOR = 2;       // Coarser than the view, the camera may look any way
+    static final float PREFETCH_PRI        = 1e8f;    // Texture loading priority, after the tiles in view
+    static final double PREFETCH_SAME_DEST = 1e-7;  // Radians, the path still leads to the same destination
+    private double []  prefetch_path = null;
+    private double []  prefetch_rest = null; // Length of the path from each position to its end
+    private int        prefetch_next = 0;
+    private int        prefetch_tri  = 0;    // 4*base mesh index + ix of the triangle to prefetch next
+    private final CullFrustum prefetch_frustum = new CullFrustum();
+    private final Point3f     prefetch_camera  = new Point3f();
+    private final RefineState prefetch_state   = new RefineState();
+    
+    /**
+     * Evaluate the base nodes of a range of the triangles of a refinement level
+     */
+    static final int    EVAL_PART_SIZE = 256;  // Least number of triangles in a part
+    private RefineLevel eval_level;
+    private int         eval_part_size;
+    private final WorkerPool.Task refine_task = new WorkerPool.Task() {
+        public void run(int part) {
+            RefineLevel level = eval_level;
+            int end = Math.min((part+1)*eval_part_size, level.len);
+            for (int i = part*eval_part_size; i < end; ++i) {
+                if ((i & 0x3ff) == 0 && stop_updating)
+                    return;
+                if (level.eval[i])
+                    evaluate(level, i);
+            }
+        }
+    };
+    
+    /**
+     * Generate triangle strips for a render tile
      */
-    private int[] t_stack = new int[65];
-    private boolean [] in_stack = new boolean[65];
-    private void update(int t) {
-        boolean totally_in = false;
-        int top = 0;
-        int local_ts   = ts;
+    private RenderTile[] mesh_tiles = new RenderTile[0];
+    private final WorkerPool.Task mesh_task = new WorkerPool.Task() {
+        public void run(int part) {
+            mesh_tiles[part].meshRefine();
+        }
+    };
+    
+    /**
+     * Fill the geometry buffer for a range of nodes
+     */
+    private int fill_part_size;
+    private final WorkerPool.Task fill_task = new WorkerPool.Task() {
+        public void run(int part) {
+            int start = part*fill_part_size;
+            fillGeometry(start, Math.min(start + fill_part_size, surface.size));
+        }
+    };
+    
+    /**
+     * Refine the surface one level of the triangle tree at a time, starting with the
+     * triangles having a node of the base mesh as base node. The base nodes of a level
+     * are created in the calling thread, and each is evaluated by the first triangle of
+     * the level having it, so that the parts evaluated in parallel never share a node.
+     * The triangles to show are added to the refinement state of their base mesh triangle.
+     */
+    private void refine() {
+        RefineLevel level = refine_levels[0];
+        level.len = 0;
+        for (int part = 0; part < surface.base_mesh.length; ++part) {
+            refine_states[part].num_leafs = 0;
+            int id = surface.base_mesh[part];
+            for (int ix=0; ix < 4; ix++) {
+                int p_id = surface.index[id*8+4+ix];
+                if (p_id >= 0 && surface.index[p_id*8+ix] == id)
+                    level.add(p_id << BttSurface.ID_SHIFT | ix, part, false);
+            }
+        }
+        
+        int local_ts = ts;
         int local_ycnt = 1;
-        double scale = surface.scale;
-        do {
-            if ((local_ycnt++)%1000 == 0)
-                Thread.yield();
+        while (level.len > 0) {
+            // Create the base nodes, the first triangle having a base node evaluates it
+            for (int i = 0; i < level.len; ++i) {
+                if ((local_ycnt++)%1000 == 0)
+                    Thread.yield();
+                if (stop_updating) return;
+                // bn < 0 if the node pool is full, show this triangle until the pool has grown
+                int bn = surface.getBaseNode(level.t[i]);
+                level.bn[i]    = bn;
+                level.split[i] = false;
+                level.eval[i]  = bn >= 0 && status.get(bn) < local_ts+BttSurface.TS_IS_INVISIBLE;
+                if (level.eval[i]) {
+                    level.prev_status[i] = status.get(bn);
+                    status.set(bn, local_ts+BttSurface.TS_IS_VISIBLE);
+                }
+            }
+            
+            eval_level = level;
+            int num_parts = workers == null ? 1 :
+                Math.min(4*workers.getNumThreads(), (level.len + EVAL_PART_SIZE - 1)/EVAL_PART_SIZE);
+            eval_part_size = (level.len + num_parts - 1)/num_parts;
+            runParts(refine_task, num_parts);
+            eval_level = null;
             if (stop_updating) return;
-            int bn = surface.getBaseNode(t);
-            int bn_status = status[bn];
-            if (bn_status < ts+BttSurface.TS_IS_INVISIBLE) {
-                float tot_obj_radius = surface.tot_obj_radius[bn];
-                // Find out if this is outside or inside
-                int norm = (bn_status == local_ts+BttSurface.TS_HAS_NORMAL)?BttSurface.TS_HAS_NORMAL:0;
-                double x = scale*surface.int_cartesian[bn*3];
-                double y = scale*surface.int_cartesian[bn*3+1];
-                double z = scale*surface.int_cartesian[bn*3+2];
-                int intersect = CullFrustum.TOTALLY_IN;
-                if (!totally_in)
-                    intersect = cull_frustum.checkIntersection(x, y, z, tot_obj_radius);
-                
-                if (intersect == CullFrustum.TOTALLY_OUT)
-                    bn_status = local_ts+BttSurface.TS_IS_INVISIBLE+norm;
+            
+            // Show the triangles of invisible base nodes, go to the children of the others
+            RefineLevel next = level == refine_levels[0] ? refine_levels[1] : refine_levels[0];
+            next.len = 0;
+            for (int i = 0; i < level.len; ++i) {
+                int t  = level.t[i];
+                int bn = level.bn[i];
+                RefineState rs = refine_states[level.part[i]];
+                if (level.split[i])
+                    rs.addSplit(bn);
+                if (bn < 0 || status.get(bn) < local_ts+BttSurface.TS_IS_VISIBLE)
+                    rs.addLeaf(t);
                 else {
-                    if (intersect == CullFrustum.TOTALLY_IN)
-                        totally_in = true;
-                    
-                    int top_n   = surface.getNode(t, BttSurface.TOP);
-                    int left_n  = surface.getNode(t, BttSurface.LEFT);
-                    int right_n = surface.getNode(t, BttSurface.RIGHT);
-                    
-                    int lon = surface.int_lonlat[2*bn];
-                    int lat = surface.int_lonlat[2*bn+1];
-                    double dev2D = 2;
-                    dev2D = Math.max(dev2D,
-                            surface.dist2D(lon, lat,
-                            surface.int_lonlat[2*top_n],
-                            surface.int_lonlat[2*top_n+1]));
-                    dev2D = Math.max(dev2D,
-                            surface.dist2D(lon, lat,
-                            surface.int_lonlat[2*left_n],
-                            surface.int_lonlat[2*left_n+1]));
-                    dev2D = Math.max(dev2D,
-                            surface.dist2D(lon, lat,
-                            surface.int_lonlat[2*right_n],
-                            surface.int_lonlat[2*right_n+1]));
-                    float tot_dev = surface.tot_dev[bn];
-                    if (!cull_frustum.isVisible(x, y, z, tot_obj_radius,
-                            tot_dev, dev2D))
-                        bn_status = local_ts+BttSurface.TS_IS_INVISIBLE+norm;
-                    else
-                        bn_status = local_ts+BttSurface.TS_IS_VISIBLE+norm;
+                    int ix = t & BttSurface.IX_MASK;
+                    next.add(bn << BttSurface.ID_SHIFT | (ix+BttSurface.RIGHT)%4, level.part[i], level.in[i]);
+                    next.add(bn << BttSurface.ID_SHIFT | (ix+BttSurface.LEFT)%4,  level.part[i], level.in[i]);
                 }
-                status[bn] = bn_status;
             }
-            if (bn_status < local_ts+BttSurface.TS_IS_VISIBLE) {
-                // This triangle shall be shown, but not any of its children. Compute normals
-                int tn = surface.getNode(t, BttSurface.TOP);
-                int ln = surface.getNode(t, BttSurface.LEFT);
-                int rn = surface.getNode(t, BttSurface.RIGHT);
-                float dxl, dyl, dzl, dxr, dyr, dzr;
-                dxl = dxr = -surface.int_cartesian[tn*3+0];
-                dyl = dyr = -surface.int_cartesian[tn*3+1];
-                dzl = dzr = -surface.int_cartesian[tn*3+2];
-                dxl += surface.int_cartesian[ln*3+0];
-                dyl += surface.int_cartesian[ln*3+1];
-                dzl += surface.int_cartesian[ln*3+2];
-                dxr += surface.int_cartesian[rn*3+0];
-                dyr += surface.int_cartesian[rn*3+1];
-                dzr += surface.int_cartesian[rn*3+2];
-                
-                float dx = dyr*dzl-dzr*dyl;
-                float dy = dzr*dxl-dxr*dzl;
-                float dz = dxr*dyl-dyr*dxl;
-                
-                addNormal(tn, dx, dy, dz);
-                addNormal(ln, dx, dy, dz);
-                addNormal(rn, dx, dy, dz);
-                t = -1;
-            } else {
-                // Go to children instead
-                t_stack[top] = surface.getChild(t, BttSurface.LEFT);
-                in_stack[top] = totally_in;
-                ++top;
-                t = surface.getChild(t, BttSurface.RIGHT);
-                // update(surface.getChild(t, BttSurface.LEFT),  totally_in);
-                // update(surface.getChild(t, BttSurface.RIGHT), totally_in);
+            level = next;
+        }
+    }
+    
+    /**
+     * Check the base node of a triangle of the level for visibility.
+     * Only the node and the entry of the triangle in the level are written.
+     * @param level
+     * @param i The triangle in the level
+     */
+    private void evaluate(RefineLevel level, int i) {
+        int t  = level.t[i];
+        int bn = level.bn[i];
+        int local_ts = ts;
+        double scale = surface.scale;
+        int bn_status = level.prev_status[i];
+        float tot_obj_radius = surface.tot_obj_radius.get(bn);
+        // Find out if this is outside or inside
+        int norm = (bn_status == local_ts+BttSurface.TS_HAS_NORMAL)?BttSurface.TS_HAS_NORMAL:0;
+        double x = scale*surface.int_cartesian[bn*3];
+        double y = scale*surface.int_cartesian[bn*3+1];
+        double z = scale*surface.int_cartesian[bn*3+2];
+        int intersect = CullFrustum.TOTALLY_IN;
+        if (!level.in[i])
+            intersect = cull_frustum.checkIntersection(x, y, z, tot_obj_radius);
+        
+        if (intersect == CullFrustum.TOTALLY_OUT)
+            bn_status = local_ts+BttSurface.TS_IS_INVISIBLE+norm;
+        else {
+            if (intersect == CullFrustum.TOTALLY_IN)
+                level.in[i] = true;
+            
+            float tot_dev = surface.tot_dev.get(bn);
+            double dev2D = -1;
+            boolean visible;
+            int version = surface.node_version.get(bn);
+            if (lod_version.get(bn) == version && lod_deadline.get(bn) > odometer)
+                visible = lod_visible.get(bn);
+            else {
+                dev2D = dev2D(t, bn);
+                visible = cull_frustum.isVisible(x, y, z, tot_obj_radius,
+                        tot_dev, dev2D);
+                lod_visible.set(bn, visible);
+                lod_version.set(bn, version);
+                lod_deadline.set(bn, odometer + cull_frustum.getVisibilityMargin(x, y, z, tot_obj_radius,
+                        tot_dev, dev2D));
+            }
+            if (!visible)
+                bn_status = local_ts+BttSurface.TS_IS_INVISIBLE+norm;
+            else {
+                // A leaf in the last update is split
+                int prev_status = level.prev_status[i];
+                if (prev_status >= prev_ts+BttSurface.TS_IS_INVISIBLE &&
+                        prev_status <  prev_ts+BttSurface.TS_IS_VISIBLE)
+                    level.split[i] = true;
+                bn_status = local_ts+BttSurface.TS_IS_VISIBLE+norm;
+            }
+            if (surface.int_h[bn] == Integer.MIN_VALUE)
+                surface.prioritizeQuery(bn, screenError(x, y, z, tot_dev,
+                        dev2D >= 0 ? dev2D : dev2D(t, bn)));
+        }
+        status.set(bn, bn_status);
+    }
+    
+    /**
+     * The screen space error of a triangle, used to order the elevation queries
+     * @param x Base node position
+     * @param y Base node position
+     * @param z Base node position
+     * @param tot_dev Deviation of the triangle
+     * @param dev2D Size of the triangle
+     * @return
+     */
+    private float screenError(double x, double y, double z, double tot_dev, double dev2D) {
+        if (!cull_frustum.isPerspective())
+            return (float)(tot_dev + dev2D);
+        GJKPoint3d camera = cull_frustum.getCameraCenter();
+        x -= camera.x;
+        y -= camera.y;
+        z -= camera.z;
+        return (float)((tot_dev + dev2D)/Math.sqrt(x*x+y*y+z*z+1));
+    }
+    
+    /**
+     * The largest distance from the base node of a triangle to its vertices
+     * @param t
+     * @param bn
+     * @return
+     */
+    private double dev2D(int t, int bn) {
+        int top_n   = surface.getNode(t, BttSurface.TOP);
+        int left_n  = surface.getNode(t, BttSurface.LEFT);
+        int right_n = surface.getNode(t, BttSurface.RIGHT);
+        
+        int lon = surface.int_lonlat[2*bn];
+        int lat = surface.int_lonlat[2*bn+1];
+        double dev2D = 2;
+        dev2D = Math.max(dev2D,
+                surface.dist2D(lon, lat,
+                surface.int_lonlat[2*top_n],
+                surface.int_lonlat[2*top_n+1]));
+        dev2D = Math.max(dev2D,
+                surface.dist2D(lon, lat,
+                surface.int_lonlat[2*left_n],
+                surface.int_lonlat[2*left_n+1]));
+        dev2D = Math.max(dev2D,
+                surface.dist2D(lon, lat,
+                surface.int_lonlat[2*right_n],
+                surface.int_lonlat[2*right_n+1]));
+        return dev2D;
+    }
+    
+    /**
+     * Create the nodes and start loading the textures needed at the upcoming
+     * positions of the camera, see BttSurface.setPrefetchPath.
+     * The positions are handled in order, within the time left for prefetching
+     * in this update, and continued in the next.
+     */
+    private void prefetch() {
+        double [] path = surface.getPrefetchPath();
+        if (path != prefetch_path) {
+            // The navigators resample their path from the camera as it moves.
+            // With the same destination, continue beyond the positions already prefetched.
+            double [] rest = path != null ? pathRest(path) : null;
+            int next = 0;
+            if (rest != null && prefetch_next > 0 && sameDestination(path, prefetch_path)) {
+                double done = prefetch_rest[prefetch_next-1];
+                while (next < rest.length && rest[next] >= done)
+                    ++next;
+            }
+            prefetch_path = path;
+            prefetch_rest = rest;
+            prefetch_next = next;
+            prefetch_tri  = 0;
+        }
+        if (path == null || !cull_frustum.isPerspective())
+            return;
+        
+        long deadline = System.nanoTime() + PREFETCH_NANOS;
+        float resolution = cull_frustum.getResolution()*PREFETCH_RES_FACTOR;
+        Point3d eye = new Point3d();
+        while (prefetch_next < path.length/3 && !stop_updating) {
+            double lon = path[3*prefetch_next];
+            double lat = path[3*prefetch_next+1];
+            double h   = path[3*prefetch_next+2];
+            surface.getEllipsoid().toCartesian(lat, lon, h, eye);
+            
+            boolean completed;
+            surface.beginDeferGrowth();
+            try {
+                completed = prefetchTerrain(eye, resolution, deadline);
+            } finally {
+                surface.endDeferGrowth();
             }
-            if (t < 0 && --top >= 0) {
-                t          = t_stack[top];
-                totally_in = in_stack[top];
+            if (!completed)
+                return;
+            prefetchTextures(lon, lat, h, resolution,
+                    (float)(PREFETCH_PRI + eye.distance(cull_frustum.getCameraCenter())));
+            ++prefetch_next;
+            prefetch_tri = 0;
+        }
+    }
+    
+    /**
+     * The length along the path from each position to the last one
+     */
+    private double [] pathRest(double [] path) {
+        int n = path.length/3;
+        double [] rest = new double[n];
+        Point3d p = new Point3d();
+        Point3d q = new Point3d();
+        for (int i = n-1; i >= 0; --i) {
+            surface.getEllipsoid().toCartesian(path[3*i+1], path[3*i], path[3*i+2], p);
+            rest[i] = i == n-1 ? 0 : rest[i+1] + p.distance(q);
+            q.set(p);
+        }
+        return rest;
+    }
+    
+    /**
+     * True if both paths end in the same longitude and latitude.
+     * The height of the destination may follow the terrain as it is refined.
+     */
+    private static boolean sameDestination(double [] a, double [] b) {
+        if (a.length < 3 || b.length < 3)
+            return false;
+        int ia = a.length-3;
+        int ib = b.length-3;
+        return Math.abs(Math.IEEEremainder(a[ia]-b[ib], 2*Math.PI)) < PREFETCH_SAME_DEST &&
+                Math.abs(a[ia+1]-b[ib+1]) < PREFETCH_SAME_DEST;
+    }
+    
+    /**
+     * Create the nodes the views will need with the camera in the given position,
+     * looking in any direction.
+     * When stopped, the next call continues with the triangle of the base mesh it was
+     * working on, as the nodes below it may have been collected in the meantime.
+     * @param eye The camera position
+     * @param resolution The angular resolution
+     * @param deadline Stop at this time (System.nanoTime)
+     * @return false if stopped before all nodes were created
+     */
+    private boolean prefetchTerrain(Point3d eye, float resolution, long deadline) {
+        prefetch_frustum.setValues(cull_frustum.getPlanes(), prefetch_camera, eye, resolution, true);
+        prefetch_frustum.setTerrainResFactor(cull_frustum.getTerrainResFactor());
+        int[] t_stack = prefetch_state.t_stack;
+        double scale = surface.scale;
+        int cnt = 0;
+        for (; prefetch_tri < 4*surface.base_mesh.length; ++prefetch_tri) {
+            int id = surface.base_mesh[prefetch_tri/4];
+            int ix = prefetch_tri%4;
+            int p_id = surface.index[id*8+4+ix];
+            if (p_id < 0 || surface.index[p_id*8+ix] != id)
+                continue;
+            int t = p_id << BttSurface.ID_SHIFT | ix;
+            int top = 0;
+            do {
+                if ((++cnt & 0x3f) == 0 && (stop_updating ||
+                        System.nanoTime() > deadline || !surface.hasPrefetchRoom()))
+                    return false;
+                int bn = surface.getPrefetchNode(t);
+                if (bn < 0)
+                    return false;
+                double x = scale*surface.int_cartesian[bn*3];
+                double y = scale*surface.int_cartesian[bn*3+1];
+                double z = scale*surface.int_cartesian[bn*3+2];
+                if (prefetch_frustum.isVisible(x, y, z, surface.tot_obj_radius.get(bn),
+                        surface.tot_dev.get(bn), dev2D(t, bn))) {
+                    t_stack[top++] = surface.getChild(t, BttSurface.LEFT);
+                    t = surface.getChild(t, BttSurface.RIGHT);
+                } else
+                    t = -1;
+                if (t < 0 && --top >= 0)
+                    t = t_stack[top];
+            } while (t >= 0);
+        }
+        return true;
+    }
+    
+    /**
+     * Start loading the texture tiles below the camera in the given position,
+     * down to the resolution needed there
+     * @param lon The camera longitude
+     * @param lat The camera latitude
+     * @param h The camera ellipsoid height
+     * @param resolution The angular resolution
+     * @param pri The loading priority of the tiles
+     */
+    private void prefetchTextures(double lon, double lat, double h, float resolution, float pri) {
+        int ilon = surface.lonToInt(lon);
+        int ilat = surface.latToInt(lat);
+        double dist = Math.max(h - surface.getElevation(lon, lat)*surface.getElevationScale(), 1);
+        double pix_sz = dist*resolution*cull_frustum.getTextureResFactor();
+        for (int i = 0; i < surface.num_textures2D; ++i) {
+            TextureTile[] base_tiles = surface.textures2D[i].base_tiles;
+            for (int j = 0; j < base_tiles.length; ++j) {
+                TextureTile tile = base_tiles[j];
+                if (((ilon - tile.lon) & 0xffffffffL) >= tile.d_lon ||
+                        ((ilat - tile.lat) & 0xffffffffL) >= tile.d_lat)
+                    continue;
+                for (int depth = 0; depth < 32; ++depth) {
+                    if (tile.isOutsideOfArea() || tile.isOutsideOfResolution())
+                        break;
+                    tile.useTexture(ts, pri, true);
+                    if (tile.getPixelSize() <= pix_sz)
+                        break;
+                    int ch_ix = 0;
+                    if (((ilon - tile.lon) & 0xffffffffL) >= tile.d_lon/2)
+                        ch_ix += 1;
+                    if (((ilat - tile.lat) & 0xffffffffL) >= tile.d_lat/2)
+                        ch_ix += 2;
+                    tile = tile.getChild(ch_ix, ts);
+                }
+                break;
             }
-        } while (t >= 0);
+        }
+    }
+    
+    /**
+     * Add the normal of a triangle to be shown to its vertices
+     * @param t
+     */
+    private void addNormals(int t) {
+        int tn = surface.getNode(t, BttSurface.TOP);
+        int ln = surface.getNode(t, BttSurface.LEFT);
+        int rn = surface.getNode(t, BttSurface.RIGHT);
+        float dxl, dyl, dzl, dxr, dyr, dzr;
+        dxl = dxr = -surface.int_cartesian[tn*3+0];
+        dyl = dyr = -surface.int_cartesian[tn*3+1];
+        dzl = dzr = -surface.int_cartesian[tn*3+2];
+        dxl += surface.int_cartesian[ln*3+0];
+        dyl += surface.int_cartesian[ln*3+1];
+        dzl += surface.int_cartesian[ln*3+2];
+        dxr += surface.int_cartesian[rn*3+0];
+        dyr += surface.int_cartesian[rn*3+1];
+        dzr += surface.int_cartesian[rn*3+2];
+        
+        float dx = dyr*dzl-dzr*dyl;
+        float dy = dzr*dxl-dxr*dzl;
+        float dz = dxr*dyl-dyr*dxl;
+        
+        addNormal(tn, dx, dy, dz);
+        addNormal(ln, dx, dy, dz);
+        addNormal(rn, dx, dy, dz);
     }
     
     /**
@@ -877,7 +1400,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
      * @param z
      */
     private void addNormal(int id, float x, float y, float z) {
-        if (status[id] > ts && status[id]%2 == BttSurface.TS_HAS_NORMAL) {
+        if (status.get(id) > ts && status.get(id)%2 == BttSurface.TS_HAS_NORMAL) {
             normals[id*3+0] += x;
             normals[id*3+1] += y;
             normals[id*3+2] += z;
@@ -886,10 +1409,10 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             normals[id*3+1] = y;
             normals[id*3+2] = z;
             index[id] = -1;
-            if (status[id] < ts)
-                status[id] = ts+BttSurface.TS_HAS_NORMAL;
+            if (status.get(id) < ts)
+                status.set(id, ts+BttSurface.TS_HAS_NORMAL);
             else
-                status[id] += BttSurface.TS_HAS_NORMAL;
+                status.set(id, status.get(id) + BttSurface.TS_HAS_NORMAL);
         }
     }
     
@@ -913,6 +1436,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
         private int num_textures;
         private int[] tris;
         private int num_tris;
+        private StripList strip = null;
         private Buffer tile_index_buffer = null;
         
         private int min_element, max_element;
@@ -964,7 +1488,7 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             int base_i = (left_i + right_i);
             int base_j = (left_j + right_j);
             
-            float dh = bn < 0 ? 0 : surface.tot_dev[bn];
+            float dh = bn < 0 ? 0 : surface.tot_dev.get(bn);
             if (dh > dh_tol && bn >= 0 && base_i % 2 == 0 && base_j % 2 == 0) {
                 base_i /= 2;
                 base_j /= 2;
@@ -1134,21 +1658,35 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
                 update_normal_tiles.add(this);
         }
         
+        /**
+         * Generate the triangle strips of this tile, may be run in parallel with other tiles
+         */
         private void meshRefine() {
-            // Collect indexes
-            strip_list.newStrip();
-            start_index = strip_list.num_nodes;
+            // Collect node ids
+            if (strip == null)
+                strip = new StripList(64);
+            strip.clear();
             if (num_tris == 0)
                 // If there are no independent triangles,
                 // render the whole quadrangle centered at the Center_node
-                BttSurfaceView.this.meshRefine(strip_list, center_node);
+                BttSurfaceView.this.meshRefine(strip, center_node);
             else {
                 // Else, render the individual sub triangles
                 for (int i=0; i<num_tris; ++i)
-                    BttSurfaceView.this.meshRefine(strip_list,
+                    BttSurfaceView.this.meshRefine(strip,
                             tris[i] >> BttSurface.ID_SHIFT,
                             tris[i] &  BttSurface.IX_MASK);
             }
+        }
+        
+        /**
+         * Append the strips of this tile to the strip list, compressing the node indexes
+         */
+        private void mergeStrip() {
+            strip_list.newStrip();
+            start_index = strip_list.num_nodes;
+            for (int i = 0; i < strip.num_nodes; ++i)
+                strip_list.append(getIndex(strip.nodes[i]));
             num_elements = strip_list.num_nodes - start_index;
             max_element = strip_list.max_element;
             min_element = strip_list.min_element;
@@ -1257,13 +1795,13 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
                 }
             }
             tile.addSupportPoints(cn, min_pix_sz);
-
+            
             GJK gjk = GJK.getInstance();
             
             // Point3d tile_center = tile.getCenterPoint();
             if (intersect != CullFrustum.TOTALLY_IN)
                 intersect = cull_frustum.checkIntersection(tile);
-
+            
             
             boolean show_me = true;
             if (intersect != CullFrustum.TOTALLY_OUT) {
@@ -1303,28 +1841,28 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             
             
             boolean show_me = false;
-            if (ch0 >= 0 && status[ch0] >= ts+BttSurface.TS_IS_VISIBLE) {
+            if (ch0 >= 0 && status.get(ch0) >= ts+BttSurface.TS_IS_VISIBLE) {
                 cn3 = surface.index[ch0*8+1];
                 cn0 = surface.index[ch0*8];
             } else {
                 addTri((center_node << BttSurface.ID_SHIFT) | 0);
                 show_me = true;
             }
-            if (ch1 >= 0 && status[ch1] >= ts+BttSurface.TS_IS_VISIBLE) {
+            if (ch1 >= 0 && status.get(ch1) >= ts+BttSurface.TS_IS_VISIBLE) {
                 cn0 = surface.index[ch1*8+2];
                 cn1 = surface.index[ch1*8+1];
             } else {
                 addTri((center_node << BttSurface.ID_SHIFT) | 1);
                 show_me = true;
             }
-            if (ch2 >= 0 && status[ch2] >= ts+BttSurface.TS_IS_VISIBLE) {
+            if (ch2 >= 0 && status.get(ch2) >= ts+BttSurface.TS_IS_VISIBLE) {
                 cn1 = surface.index[ch2*8+3];
                 cn2 = surface.index[ch2*8+2];
             } else {
                 addTri((center_node << BttSurface.ID_SHIFT) | 2);
                 show_me = true;
             }
-            if (ch3 >= 0 && status[ch3] >= ts+BttSurface.TS_IS_VISIBLE) {
+            if (ch3 >= 0 && status.get(ch3) >= ts+BttSurface.TS_IS_VISIBLE) {
                 cn2 = surface.index[ch3*8];
                 cn3 = surface.index[ch3*8+3];
             } else {
@@ -1332,40 +1870,40 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
                 show_me = true;
             }
             
-            if (cn0 >= 0 && status[cn0] >= ts+BttSurface.TS_IS_VISIBLE &&
+            if (cn0 >= 0 && status.get(cn0) >= ts+BttSurface.TS_IS_VISIBLE &&
                     updateChild(cn0, intersect));
             else {
                 show_me = true;
-                if (ch0 >= 0 && status[ch0] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch0 >= 0 && status.get(ch0) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch0 << BttSurface.ID_SHIFT) | 0);
-                if (ch1 >= 0 && status[ch1] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch1 >= 0 && status.get(ch1) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch1 << BttSurface.ID_SHIFT) | 2);
             }
-            if (cn1 >= 0 && status[cn1] >= ts+BttSurface.TS_IS_VISIBLE &&
+            if (cn1 >= 0 && status.get(cn1) >= ts+BttSurface.TS_IS_VISIBLE &&
                     updateChild(cn1, intersect));
             else {
                 show_me = true;
-                if (ch1 >= 0 && status[ch1] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch1 >= 0 && status.get(ch1) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch1 << BttSurface.ID_SHIFT) | 1);
-                if (ch2 >= 0 && status[ch2] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch2 >= 0 && status.get(ch2) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch2 << BttSurface.ID_SHIFT) | 3);
             }
-            if (cn2 >= 0 && status[cn2] >= ts+BttSurface.TS_IS_VISIBLE &&
+            if (cn2 >= 0 && status.get(cn2) >= ts+BttSurface.TS_IS_VISIBLE &&
                     updateChild(cn2, intersect));
             else {
                 show_me = true;
-                if (ch2 >= 0 && status[ch2] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch2 >= 0 && status.get(ch2) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch2 << BttSurface.ID_SHIFT) | 2);
-                if (ch3 >= 0 && status[ch3] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch3 >= 0 && status.get(ch3) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch3 << BttSurface.ID_SHIFT) | 0);
             }
-            if (cn3 >= 0 && status[cn3] >= ts+BttSurface.TS_IS_VISIBLE &&
+            if (cn3 >= 0 && status.get(cn3) >= ts+BttSurface.TS_IS_VISIBLE &&
                     updateChild(cn3, intersect));
             else {
                 show_me = true;
-                if (ch0 >= 0 && status[ch0] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch0 >= 0 && status.get(ch0) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch0 << BttSurface.ID_SHIFT) | 1);
-                if (ch3 >= 0 && status[ch3] >= ts+BttSurface.TS_IS_VISIBLE)
+                if (ch3 >= 0 && status.get(ch3) >= ts+BttSurface.TS_IS_VISIBLE)
                     addTri((ch3 << BttSurface.ID_SHIFT) | 3);
             }
             return show_me;
@@ -1556,10 +2094,10 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
                 index_buffer_id = 0;
                 // vbo_off = true;
             }
-            
+        
         }
     }
-    
+
 /*
   public void render(GL gl, GLU glu) {
     render(gl, glu, 10);
@@ -1662,6 +2200,6 @@ public final class BttSurfaceView extends GLCleanup  implements Runnable, Origin
             gl.glDisable(GL.GL_TEXTURE_2D);
             curr_texture = null;
         }
-        
+    
     }
 }
@@ -0,0 +1,338 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.virtualglobe.cache.CacheManager;
+import com.norkart.virtualglobe.cache.CacheManagerFactory;
+import com.norkart.virtualglobe.cache.jdbm.CacheManagerJdbmFactory;
+
+import java.awt.geom.GeneralPath;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * Command line tool filling the elevation cache for a region, so that the globe
+ * can be used offline there. The surface is refined inside a polygon down to a
+ * given node spacing, without any view, and the elevations are fetched from the
+ * server into the cache.
+ * <p>
+ * The region is split into tiles, and a round of tiles is refined and fetched at a time.
+ * The queries of a round are served in parallel by the connections of the elevation
+ * source. The number of tiles done is stored in the cache directory after each round,
+ * a new run with the same arguments continues from there.
+ * <p>
+ * Usage: ElevationSeeder [-cachesize MB] [-tiles n] server-url cache-dir resolution lon,lat lon,lat lon,lat ...
+ * <br>The resolution is the node spacing in meters, the polygon corners are in degrees.
+ *
+ * @author runaas
+ */
+public class ElevationSeeder {
+    private static final int  TILE_LEVELS  = 14;     // Levels of refinement below a tile
+    private static final long STALL_MILLIS = 120000; // Give up a round when no elevations arrive for this long
+    
+    private BttSurface      surface;
+    private ElevationSource source;
+    private GeneralPath     region = new GeneralPath();
+    private double          resolution;
+    // Root triangle, path of child choices and depth of each tile
+    private ArrayList<long[]> tiles = new ArrayList<long[]>();
+    private int [] t_stack = new int[256];
+    
+    /**
+     * Create a seeder
+     * @param source The elevation source, with the cache to fill
+     * @param polygon Longitude, latitude (degrees) of the polygon corners
+     * @param resolution The node spacing to refine to (meters)
+     */
+    public ElevationSeeder(ElevationSource source, double [] polygon, double resolution) {
+        this.source     = source;
+        this.resolution = resolution;
+        surface = new BttSurface(source);
+        for (int i = 0; i < polygon.length/2; ++i) {
+            float x = surface.lonToInt(Math.toRadians(polygon[2*i]));
+            float y = surface.latToInt(Math.toRadians(polygon[2*i+1]));
+            if (i == 0)
+                region.moveTo(x, y);
+            else
+                region.lineTo(x, y);
+        }
+        region.closePath();
+        
+        for (int r = 0; r < 4*surface.base_mesh.length; ++r) {
+            int t = rootTriangle(r);
+            if (t >= 0)
+                findTiles(r, t, 0, 0);
+        }
+    }
+    
+    /**
+     * @return The number of tiles covering the region
+     */
+    public int getNumTiles() {
+        return tiles.size();
+    }
+    
+    /**
+     * Refine and fetch the tiles
+     * @param progress_file File keeping the number of tiles done, or null
+     * @param round_tiles The number of tiles to fetch at a time
+     * @return true if all tiles are done
+     */
+    public boolean run(File progress_file, int round_tiles) throws IOException, InterruptedException {
+        Properties progress = new Properties();
+        if (progress_file != null && progress_file.exists()) {
+            InputStream in = new FileInputStream(progress_file);
+            try {
+                progress.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        int  done  = Integer.parseInt(progress.getProperty("done", "0"));
+        long nodes = Long.parseLong(progress.getProperty("nodes", "0"));
+        if (done > 0)
+            System.out.println("Continuing after " + done + " of " + tiles.size() + " tiles");
+        
+        long start_time = System.currentTimeMillis();
+        int  start_done = done;
+        long start_nodes = nodes;
+        IntegerArray round = new IntegerArray(1, 1 << 16);
+        while (done < tiles.size()) {
+            round.clear();
+            int end = Math.min(done + round_tiles, tiles.size());
+            for (int i = done; i < end; ++i)
+                refineTile(tiles.get(i), round);
+            if (!waitForElevations(round)) {
+                System.err.println("No elevations received for " + STALL_MILLIS/1000 + " s, stopping");
+                return false;
+            }
+            done   = end;
+            nodes += round.size();
+            
+            if (progress_file != null) {
+                progress.setProperty("tiles", Integer.toString(tiles.size()));
+                progress.setProperty("done",  Integer.toString(done));
+                progress.setProperty("nodes", Long.toString(nodes));
+                OutputStream out = new FileOutputStream(progress_file);
+                try {
+                    progress.store(out, "Elevation seeding progress");
+                } finally {
+                    out.close();
+                }
+            }
+            
+            long secs = Math.max(1, (System.currentTimeMillis() - start_time)/1000);
+            long left = secs*(tiles.size() - done)/(done - start_done);
+            System.out.println(String.format("Tiles %d/%d  nodes %d  %.0f nodes/s  elapsed %s  remaining %s",
+                    done, tiles.size(), nodes, (double)(nodes - start_nodes)/secs,
+                    formatTime(secs), formatTime(left)));
+            
+            // Let the nodes of the round be collected
+            surface.newTs();
+            surface.cleanupData();
+        }
+        return true;
+    }
+    
+    private static String formatTime(long secs) {
+        return String.format("%d:%02d:%02d", secs/3600, (secs/60)%60, secs%60);
+    }
+    
+    /**
+     * Get a triangle of the base mesh
+     * @param r 4*base mesh index + ix
+     * @return The triangle, -1 if the base node has no triangle in this direction
+     */
+    private int rootTriangle(int r) {
+        int id = surface.base_mesh[r/4];
+        int ix = r%4;
+        int p_id = surface.index[id*8+4+ix];
+        if (p_id < 0 || surface.index[p_id*8+ix] != id)
+            return -1;
+        return p_id << BttSurface.ID_SHIFT | ix;
+    }
+    
+    /**
+     * Collect the triangles that are small enough to be tiles,
+     * and intersects the region
+     */
+    private void findTiles(int r, int t, long path, int depth) {
+        if (t < 0 || !intersects(t))
+            return;
+        if (hypotenuse(t) <= resolution*(1 << TILE_LEVELS/2) || depth >= 63) {
+            tiles.add(new long[] {r, path, depth});
+            return;
+        }
+        findTiles(r, surface.getChild(t, BttSurface.LEFT),  path | (1L << depth), depth+1);
+        findTiles(r, surface.getChild(t, BttSurface.RIGHT), path, depth+1);
+    }
+    
+    /**
+     * Create the nodes of a tile, and the nodes above it
+     * @param tile Root triangle, path and depth
+     * @param nodes The nodes created
+     */
+    private void refineTile(long [] tile, IntegerArray nodes) {
+        int t = rootTriangle((int)tile[0]);
+        for (int i = 0; t >= 0 && i < tile[2]; ++i) {
+            addNode(t, nodes);
+            t = surface.getChild(t, ((tile[1] >> i) & 1) != 0 ? BttSurface.LEFT : BttSurface.RIGHT);
+        }
+        int top = 0;
+        while (t >= 0) {
+            if (intersects(t) && hypotenuse(t) > resolution) {
+                addNode(t, nodes);
+                if (top+2 > t_stack.length) {
+                    int [] tmp = new int [t_stack.length*2];
+                    System.arraycopy(t_stack, 0, tmp, 0, top);
+                    t_stack = tmp;
+                }
+                t_stack[top++] = surface.getChild(t, BttSurface.LEFT);
+                t_stack[top++] = surface.getChild(t, BttSurface.RIGHT);
+            }
+            t = --top >= 0 ? t_stack[top] : -1;
+        }
+    }
+    
+    private void addNode(int t, IntegerArray nodes) {
+        int bn = surface.getBaseNode(t);
+        if (bn >= 0)
+            nodes.set(nodes.size(), 0, bn);
+    }
+    
+    /**
+     * Process replies until all the nodes have elevations, and these are written to the cache
+     * @return false if no elevations arrived for STALL_MILLIS
+     */
+    private boolean waitForElevations(IntegerArray nodes) throws InterruptedException {
+        long last_change = System.currentTimeMillis();
+        int  last_left = -1;
+        for (;;) {
+            surface.updateData();
+            int left = source.getPendingCacheWrites();
+            for (int i = 0; i < nodes.size(); ++i)
+                if (surface.int_h[nodes.get(i, 0)] == Integer.MIN_VALUE)
+                    ++left;
+            if (left == 0)
+                return true;
+            long now = System.currentTimeMillis();
+            if (left != last_left) {
+                last_left   = left;
+                last_change = now;
+            } else if (now - last_change > STALL_MILLIS)
+                return false;
+            Thread.sleep(100);
+        }
+    }
+    
+    /**
+     * Check if a triangle intersects the region, by its bounding box
+     */
+    private boolean intersects(int t) {
+        int top_n   = surface.getNode(t, BttSurface.TOP);
+        int left_n  = surface.getNode(t, BttSurface.LEFT);
+        int right_n = surface.getNode(t, BttSurface.RIGHT);
+        int lon = surface.int_lonlat[2*top_n];
+        // Longitudes relative to the top node, the triangle may cross the date line
+        double x0 = lon;
+        double x1 = x0 + (surface.int_lonlat[2*left_n]  - lon);
+        double x2 = x0 + (surface.int_lonlat[2*right_n] - lon);
+        double y0 = surface.int_lonlat[2*top_n+1];
+        double y1 = surface.int_lonlat[2*left_n+1];
+        double y2 = surface.int_lonlat[2*right_n+1];
+        double min_x = Math.min(x0, Math.min(x1, x2));
+        double min_y = Math.min(y0, Math.min(y1, y2));
+        return region.intersects(min_x, min_y,
+                Math.max(x0, Math.max(x1, x2)) - min_x + 1,
+                Math.max(y0, Math.max(y1, y2)) - min_y + 1);
+    }
+    
+    /**
+     * The length of the hypotenuse of a triangle, in meters
+     */
+    private double hypotenuse(int t) {
+        int left_n  = surface.getNode(t, BttSurface.LEFT);
+        int right_n = surface.getNode(t, BttSurface.RIGHT);
+        return surface.dist2D(surface.int_lonlat[2*left_n], surface.int_lonlat[2*left_n+1],
+                surface.int_lonlat[2*right_n], surface.int_lonlat[2*right_n+1]);
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: ElevationSeeder [-cachesize MB] [-tiles n] server-url cache-dir resolution lon,lat lon,lat lon,lat ...");
+        System.err.println("  resolution   Node spacing to fetch, in meters");
+        System.err.println("  lon,lat      Corners of the region, in degrees");
+        System.err.println("  -cachesize  Size of the cache in MB (default 4096)");
+        System.err.println("  -tiles      Number of tiles fetched at a time (default 8)");
+        System.exit(1);
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        long cache_size  = 4096L << 20;
+        int  round_tiles = 8;
+        int  i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                if (args[i].equals("-cachesize"))
+                    cache_size = Long.parseLong(args[i+1]) << 20;
+                else if (args[i].equals("-tiles"))
+                    round_tiles = Math.max(1, Integer.parseInt(args[i+1]));
+                else
+                    usage();
+            }
+            if (args.length - i < 6)
+                usage();
+            URL    server_url = new URL(args[i]);
+            File   cache_dir  = new File(args[i+1]);
+            double resolution = Double.parseDouble(args[i+2]);
+            double [] polygon = new double [2*(args.length - i - 3)];
+            StringBuffer key = new StringBuffer(server_url + " " + resolution);
+            for (int j = i+3, k = 0; j < args.length; ++j, k += 2) {
+                String [] lonlat = args[j].split(",");
+                if (lonlat.length != 2)
+                    usage();
+                polygon[k]   = Double.parseDouble(lonlat[0]);
+                polygon[k+1] = Double.parseDouble(lonlat[1]);
+                key.append(' ').append(args[j]);
+            }
+            
+            CacheManagerFactory.setInstance(new CacheManagerJdbmFactory());
+            CacheManager cache_mgr = CacheManagerFactory.getInstance().createCacheManager();
+            cache_mgr.setCache(cache_dir, cache_size);
+            ElevationSource source = new ElevationSource(server_url, cache_mgr);
+            if (source.getEllipsoid() == null) {
+                System.err.println("Unable to open the elevation server: " + server_url);
+                System.exit(1);
+            }
+            
+            ElevationSeeder seeder = new ElevationSeeder(source, polygon, resolution);
+            System.out.println("Seeding " + seeder.getNumTiles() + " tiles down to " + resolution + " m");
+            File progress_file = new File(cache_dir, "seed-" + Integer.toHexString(key.toString().hashCode()) + ".properties");
+            boolean completed = seeder.run(progress_file, round_tiles);
+            source.close();
+            cache_mgr.commit();
+            System.exit(completed ? 0 : 2);
+        } catch (NumberFormatException ex) {
+            usage();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -17,13 +17,19 @@ import java.util.Iterator;
 import java.util.Comparator;
 import java.util.Properties;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import javax.swing.JOptionPane;
 import com.norkart.geopos.Ellipsoid;
+import com.norkart.virtualglobe.util.ApplicationSettings;
 
 
 /**
@@ -37,19 +43,35 @@ import com.norkart.geopos.Ellipsoid;
 
 public final class ElevationSource {
     private BttSurface surface;
-    private final int NUM_SERVER_THREADS = 2;
-    private final int NUM_CACHE_THREADS = 1;
+    // The elevation cache takes several concurrent readers
+    private final int NUM_CACHE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
     private final int THREAD_PRIORITY = Thread.NORM_PRIORITY-1;
-    private IntegerArray  replyList = new IntegerArray(3, 30000);
+    private final int MAX_REPLIES_PER_FRAME = 30000;
+    private final int REPLY_BATCH_SIZE = 1024;
+    // Batches of replies: node, lon, lat, h, dh
+    // Each worker fills a batch of its own, and hands it over to the render thread when full
+    private ConcurrentLinkedQueue<IntegerArray> replyBatches = new ConcurrentLinkedQueue<IntegerArray>();
+    private ConcurrentLinkedQueue<IntegerArray> freeBatches  = new ConcurrentLinkedQueue<IntegerArray>();
+    // The batch being applied by processReplies, and the next reply to apply
+    private IntegerArray  replyBatch = null;
+    private int           replyPos   = 0;
     
     private float hScale = 1000.f;
+    private int modelVersion = 0;
     private Ellipsoid ellps = null;
     
     private ServerSource serverSource = null;
     private CacheSource  cacheSource  = null;
+    // Local elevation grids, in order of precedence
+    private FileSource[] fileSources  = null;
     
     private ThreadGroup group = new ThreadGroup("ElevationSource-Threads");
     
+    private final ElevationStats stats = new ElevationStats(this);
+    static final int CACHE_SOURCE  = 0;
+    static final int SERVER_SOURCE = 1;
+    static final int FILE_SOURCE   = 2;
+    
     public static class ByteArraySizeComp implements Comparator, Serializable {
         public static final ByteArraySizeComp INSTANCE = new ByteArraySizeComp();
         
@@ -82,20 +104,15 @@ public final class ElevationSource {
         }
     }
     
+    /**
+     * Order query records (node, lon, lat) by key
+     */
     private class QueryKeyComparator implements IntegerArray.Comparator {
-        private byte[] code = new byte[9];
-        
         public int compare(int ix1, int [] arr1, int ix2, int [] arr2, int rec_size) {
-            int node1 = arr1[ix1*rec_size];
-            int node2 = arr2[ix2*rec_size];
-            
-            if (node1 == node2) return 0;
-            if (node1 < 0) return  1;
-            if (node2 < 0) return -1;
-            return Morton.compareCode(surface.int_lonlat[node1*2+0],
-                    surface.int_lonlat[node1*2+1],
-                    surface.int_lonlat[node2*2+0],
-                    surface.int_lonlat[node2*2+1]);
+            return Morton.compareCode(arr1[ix1*rec_size+1],
+                    arr1[ix1*rec_size+2],
+                    arr2[ix2*rec_size+1],
+                    arr2[ix2*rec_size+2]);
         }
     }
     private QueryKeyComparator queryKeyComparator = new QueryKeyComparator();
@@ -115,23 +132,6 @@ public final class ElevationSource {
     private CacheKeyComparator cacheKeyComparator = new CacheKeyComparator();
     
     
-    private class QueryTsComparator implements IntegerArray.Comparator {
-        public int compare(int ix1, int [] arr1, int ix2, int [] arr2, int rec_size) {
-            int node1 = arr1[ix1*rec_size];
-            int node2 = arr2[ix2*rec_size];
-            
-            if (node1 == node2) return 0;
-            if (node1 < 0) return 1;
-            if (node2 < 0) return -1;
-            if (surface.status[node1] == surface.status[node2])
-                return Morton.compareCode(surface.int_lonlat[node1*2+0],
-                        surface.int_lonlat[node1*2+1],
-                        surface.int_lonlat[node2*2+0],
-                        surface.int_lonlat[node2*2+1]);
-            return surface.status[node1] - surface.status[node2];
-        }
-    }
-    private QueryTsComparator queryTsComparator = new QueryTsComparator();
     
     /**
      * query for a model
@@ -146,12 +146,20 @@ public final class ElevationSource {
         public int version = 0;
     }
     
+    /**
+     * The priority of a query, the time the node was last used by a view
+     * and then the screen space error of the node
+     */
+    private long queryKey(int node, float error) {
+        return ((long)surface.status[node] << 32) | Float.floatToIntBits(Math.max(error, 0.f));
+    }
+    
     /**
      * Base class for the special elevation sources (URL or local file)
      * Mainly handles the query list
      */
     private class SourceBase {
-        protected IntegerArray  queryList = new IntegerArray(1, 30000);
+        protected QueryHeap  queryList = new QueryHeap(30000);
         protected boolean    enabled   = true;
         
         public SourceBase() {
@@ -167,31 +175,80 @@ public final class ElevationSource {
         
         /**
          * Add a new query
-         * @param rec
+         * @param node The node index
+         * @param key The priority of the query
          * @return
          */
-        boolean addQuery(int value) {
+        boolean addQuery(int node, long key) {
             if (!enabled) return false;
             synchronized (queryList) {
-                queryList.set(queryList.size(), 0, value);
+                queryList.put(node, key);
                 queryList.notify();
             }
             return true;
         }
         
+        /**
+         * Return query records to the query list. Nodes that have been freed or
+         * reused since the query was taken are skipped.
+         * @param queries Query records (node, lon, lat)
+         * @param fromIx
+         * @param toIx
+         * @return
+         */
         boolean addQueries(IntegerArray queries, int fromIx, int toIx) {
             if (!enabled) return false;
             synchronized (queryList) {
-                for (int i=fromIx; i<toIx; ++i)
-                    queryList.set(queryList.size(), 0, queries.get(i, 0));
+                for (int i=fromIx; i<toIx; ++i) {
+                    int node = queries.get(i, 0);
+                    if (surface.status[node] != 0 &&
+                            surface.int_lonlat[2*node]   == queries.get(i, 1) &&
+                            surface.int_lonlat[2*node+1] == queries.get(i, 2))
+                        queryList.put(node, queryKey(node, 0));
+                }
                 queryList.notify();
             }
             return true;
         }
         
         /**
-         * Get a list of (maximum maxnum) queries
-         * @param queries
+         * Change the priority of a node if it is queued
+         * @return true if the node was queued
+         */
+        boolean updateQuery(int node, long key) {
+            synchronized (queryList) {
+                if (!queryList.contains(node))
+                    return false;
+                queryList.put(node, key);
+            }
+            return true;
+        }
+        
+        /**
+         * Remove a set of nodes from the query list
+         * @return The number of nodes that were queued
+         */
+        int removeQueries(int [] nodes, int nodes_num) {
+            int num_removed = 0;
+            synchronized (queryList) {
+                for (int i=0; i<nodes_num; ++i)
+                    if (queryList.remove(nodes[i]))
+                        ++num_removed;
+            }
+            return num_removed;
+        }
+        
+        int getQueueDepth() {
+            synchronized (queryList) {
+                return queryList.size();
+            }
+        }
+        
+        /**
+         * Get a list of (maximum maxnum) queries, the ones with highest priority.
+         * The position of the nodes is recorded with the query, so that the
+         * replies can be matched with the nodes when they arrive.
+         * @param queries Query records (node, lon, lat), or null
          * @param maxnum
          * @return
          */
@@ -201,23 +258,17 @@ public final class ElevationSource {
                 // Find query set and remove from list
                 
                 if (queries == null)
-                    queries = new IntegerArray(1, maxnum);
+                    queries = new IntegerArray(3, maxnum);
                 else {
                     queries.clear();
                     queries.ensureCapacity(maxnum);
                 }
-                int i = queryList.size();
-                if (i > maxnum)
-                    queryList.sort(queryTsComparator);
-                // Collections.sort(queryList, queryTsComparator);
-                while (--i >= 0 ) {
-                    int node = queryList.get(i, 0);
-                    queryList.remove(i);
-                    if (node >= 0) {
-                        queries.set(queries.size(), 0, node);
-                        if (--maxnum < 0)
-                            break;
-                    }
+                while (queries.size() < maxnum && !queryList.isEmpty()) {
+                    int node = queryList.poll();
+                    int ix = queries.size();
+                    queries.set(ix, 0, node);
+                    queries.set(ix, 1, surface.int_lonlat[2*node]);
+                    queries.set(ix, 2, surface.int_lonlat[2*node+1]);
                 }
                 return queries;
             }
@@ -236,25 +287,294 @@ public final class ElevationSource {
         private static final int OPCODE_ELEVATION32 = 0x2000;
         private static final int OPCODE_ELEVATION16 = 0x3000;
         private static final int OPCODE_ELEVATION_BYTE = 0x4000;
+        private static final int OPCODE_ELEVATION_BLOCK = 0x5000;
         private static final int MODEL4x2           = 0x2042;
         private static final int MODEL4x8           = 0x2048;
         
-        private Worker[] worker = new Worker[NUM_SERVER_THREADS];
+        // Server features, optionally given after the version in the header reply
+        private static final int FEATURE_BLOCKS     = 0x1;
+        
+        // Blocks of (2^BLOCK_BITS+1)^2 grid points
+        private static final int BLOCK_BITS         = 4;
+        private static final int BLOCK_SIDE         = (1 << BLOCK_BITS) + 1;
+        private static final int BLOCK_POINTS       = BLOCK_SIDE*BLOCK_SIDE;
+        private static final int MIN_BLOCK_NODES    = 24;
+        private static final int MAX_BLOCKS         = 8;
+        
+        private Thread[] worker;
+        private volatile boolean use_blocks = false;
+        private BlockKeyComparator blockKeyComparator = new BlockKeyComparator();
         
         /**
-         * Initialize a server connection, start worker threads
+         * Initialize a server connection, start worker threads.
+         * Plain http servers not reached through a proxy get persistent connections
+         * with several queries in flight, see PipelinedWorker.
          * @param url
          */
         ServerSource(URL url) {
             super();
             this.url   = url;
-            for (int i=0; i< NUM_SERVER_THREADS; ++i) {
-                worker[i] = new Worker();
+            boolean pipelined = isDirectHttp(url);
+            worker = new Thread[ApplicationSettings.getApplicationSettings().getElevationConnections()];
+            for (int i=0; i< worker.length; ++i) {
+                worker[i] = pipelined ? (Thread)new PipelinedWorker() : (Thread)new Worker();
                 worker[i].setPriority(THREAD_PRIORITY);
                 worker[i].start();
             }
         }
         
+        /**
+         * Check if the server is a plain http server that is not reached through a proxy
+         */
+        private boolean isDirectHttp(URL url) {
+            if (!"http".equals(url.getProtocol()))
+                return false;
+            try {
+                List<Proxy> proxies = ProxySelector.getDefault().select(url.toURI());
+                for (Proxy proxy : proxies)
+                    if (proxy.type() != Proxy.Type.DIRECT)
+                        return false;
+            } catch (Exception ex) {
+                return false;
+            }
+            return true;
+        }
+        
+        void close() {
+            super.close();
+            for (int i=0; i< worker.length; ++i)
+                if (worker[i] instanceof PipelinedWorker)
+                    ((PipelinedWorker)worker[i]).disconnect();
+        }
+        
+        /**
+         * Write an elevation query
+         * @param queries The nodes
+         * @param obuf The buffer to write into
+         * @param queryNr The query number
+         * @param code Morton code work space
+         */
+        private void putQueries(IntegerArray queries, ByteBuffer obuf, int queryNr, byte[] code) {
+            obuf.clear();
+            obuf.putInt(OPCODE_ELEVATION_BYTE);
+            obuf.putInt(queryNr);
+            obuf.putInt(queries.size());
+            for (int i=0; enabled && i<queries.size(); ++i) {
+                Morton.code(queries.get(i, 1), queries.get(i, 2), code);
+                obuf.put(code, 0, code[0]+1);
+            }
+            obuf.flip();
+        }
+        
+        /**
+         * Store the elevations of a reply, for the surface and the cache
+         * @param queries The query records
+         * @param ibuf The heights and deviations of the reply
+         * @param rec Record work space
+         */
+        private void storeReplies(IntegerArray queries, ByteBuffer ibuf, int[] rec) {
+            IntegerArray replies = null;
+            for (int i=0; enabled && i<queries.size(); ++i) {
+                int lon  = queries.get(i, 1);
+                int lat  = queries.get(i, 2);
+                int h    = ibuf.getInt();
+                int dh   = ibuf.getInt();
+                rec[0] = queries.get(i, 0);
+                rec[1] = lon;
+                rec[2] = lat;
+                rec[3] = h;
+                rec[4] = dh;
+                replies = addReply(replies, rec);
+                if (cacheSource != null) {
+                    rec[0] = lon;
+                    rec[1] = lat;
+                    rec[2] = h;
+                    rec[3] = dh;
+                    cacheSource.addToCache(rec);
+                }
+            }
+            postReplies(replies);
+        }
+        
+        /**
+         * The grid spacing (as a power of two) of a node position
+         */
+        private int blockShift(int lon, int lat) {
+            return Integer.numberOfTrailingZeros(lon | lat);
+        }
+        
+        /**
+         * Order query records (node, lon, lat) by the block they belong to
+         */
+        private class BlockKeyComparator implements IntegerArray.Comparator {
+            public int compare(int ix1, int [] arr1, int ix2, int [] arr2, int rec_size) {
+                int lon1 = arr1[ix1*rec_size+1], lat1 = arr1[ix1*rec_size+2];
+                int lon2 = arr2[ix2*rec_size+1], lat2 = arr2[ix2*rec_size+2];
+                int s1 = blockShift(lon1, lat1);
+                int s2 = blockShift(lon2, lat2);
+                if (s1 != s2)
+                    return s1 < s2 ? -1 : 1;
+                if (s1 + BLOCK_BITS >= 31)
+                    return 0;
+                int shift = s1 + BLOCK_BITS;
+                if ((lon1 >> shift) != (lon2 >> shift))
+                    return (lon1 >> shift) < (lon2 >> shift) ? -1 : 1;
+                if ((lat1 >> shift) != (lat2 >> shift))
+                    return (lat1 >> shift) < (lat2 >> shift) ? -1 : 1;
+                return 0;
+            }
+        }
+        
+        /**
+         * Move the queries that are dense enough to be fetched as blocks from the
+         * query list to the block query list. A block is the grid of
+         * BLOCK_SIDE x BLOCK_SIDE points, with the grid spacing of the nodes, around
+         * at least MIN_BLOCK_NODES queried nodes.
+         * @param queries Query records (node, lon, lat), the remaining single queries on return
+         * @param block_queries The queries answered by blocks (node, lon, lat, block index)
+         * @param blocks The blocks (lon, lat, shift) of the lower left corner and the grid spacing
+         */
+        private void findBlocks(IntegerArray queries, IntegerArray block_queries, IntegerArray blocks) {
+            block_queries.clear();
+            blocks.clear();
+            if (queries.size() < MIN_BLOCK_NODES)
+                return;
+            queries.sort(blockKeyComparator);
+            int num_single = 0;
+            int [] q_rec = new int[4];
+            for (int begin = 0, end; begin < queries.size(); begin = end) {
+                end = begin+1;
+                while (end < queries.size() &&
+                        blockKeyComparator.compare(begin, queries.array, end, queries.array, queries.rec_size) == 0)
+                    ++end;
+                int lon   = queries.get(begin, 1);
+                int lat   = queries.get(begin, 2);
+                int shift = blockShift(lon, lat);
+                if (end - begin >= MIN_BLOCK_NODES && shift + BLOCK_BITS < 31 && blocks.size() < MAX_BLOCKS) {
+                    int mask = -1 << (shift + BLOCK_BITS);
+                    int ix = blocks.size();
+                    blocks.set(ix, 0, lon & mask);
+                    blocks.set(ix, 1, lat & mask);
+                    blocks.set(ix, 2, shift);
+                    for (int i = begin; i < end; ++i) {
+                        queries.get(i, q_rec);
+                        q_rec[3] = ix;
+                        block_queries.add(q_rec);
+                    }
+                } else {
+                    for (int i = begin; i < end; ++i, ++num_single) {
+                        if (i != num_single) {
+                            queries.get(i, q_rec);
+                            queries.set(num_single, q_rec);
+                        }
+                    }
+                }
+            }
+            queries.removeRange(num_single, queries.size());
+        }
+        
+        /**
+         * Write a block query
+         * @param blocks The blocks (lon, lat, shift)
+         * @param obuf The buffer to write into
+         * @param queryNr The query number
+         * @param code Morton code work space
+         */
+        private void putBlockQueries(IntegerArray blocks, ByteBuffer obuf, int queryNr, byte[] code) {
+            obuf.clear();
+            obuf.putInt(OPCODE_ELEVATION_BLOCK);
+            obuf.putInt(queryNr);
+            obuf.putInt(blocks.size());
+            for (int i=0; i<blocks.size(); ++i) {
+                Morton.code(blocks.get(i, 0), blocks.get(i, 1), code);
+                obuf.put(code, 0, code[0]+1);
+                obuf.put((byte)blocks.get(i, 2));
+            }
+            obuf.flip();
+        }
+        
+        /**
+         * Decode the blocks of a reply, store the elevations of the queried nodes
+         * for the surface and all the grid points for the cache.
+         * Each block is the number of values and the length of the compressed data,
+         * then the zlib compressed and delta coded heights and deviations of the
+         * grid points, row by row from the lower left corner.
+         * @param block_queries The queries answered by the blocks (node, lon, lat, block index)
+         * @param blocks The blocks (lon, lat, shift)
+         * @param ibuf The reply, after the header
+         * @param rec Record work space
+         */
+        private void storeBlockReplies(IntegerArray block_queries, IntegerArray blocks, ByteBuffer ibuf, int [] rec)
+        throws DataFormatException {
+            int [] h  = new int [BLOCK_POINTS];
+            int [] dh = new int [BLOCK_POINTS];
+            byte [] data = new byte [8*BLOCK_POINTS];
+            byte [] comp = null;
+            Inflater inflater = new Inflater();
+            IntegerArray replies = null;
+            try {
+                for (int b = 0, q = 0; enabled && b < blocks.size(); ++b) {
+                    int num     = ibuf.getInt();
+                    int len     = ibuf.getInt();
+                    if (num != 2*BLOCK_POINTS || len < 0 || len > ibuf.remaining())
+                        throw new DataFormatException("Bad elevation block");
+                    if (comp == null || comp.length < len)
+                        comp = new byte [len];
+                    ibuf.get(comp, 0, len);
+                    inflater.reset();
+                    inflater.setInput(comp, 0, len);
+                    int data_len = 0;
+                    while (data_len < data.length && !inflater.finished() && !inflater.needsInput())
+                        data_len += inflater.inflate(data, data_len, data.length - data_len);
+                    if (data_len != data.length)
+                        throw new DataFormatException("Short elevation block");
+                    
+                    ByteBuffer values = ByteBuffer.wrap(data);
+                    int v = 0;
+                    for (int i = 0; i < BLOCK_POINTS; ++i)
+                        h[i] = (v += values.getInt());
+                    v = 0;
+                    for (int i = 0; i < BLOCK_POINTS; ++i)
+                        dh[i] = (v += values.getInt());
+                    
+                    int lon0  = blocks.get(b, 0);
+                    int lat0  = blocks.get(b, 1);
+                    int shift = blocks.get(b, 2);
+                    for (; q < block_queries.size() && block_queries.get(q, 3) == b; ++q) {
+                        int lon = block_queries.get(q, 1);
+                        int lat = block_queries.get(q, 2);
+                        int p = ((lat - lat0) >>> shift)*BLOCK_SIDE + ((lon - lon0) >>> shift);
+                        rec[0] = block_queries.get(q, 0);
+                        rec[1] = lon;
+                        rec[2] = lat;
+                        rec[3] = h[p];
+                        rec[4] = dh[p];
+                        replies = addReply(replies, rec);
+                    }
+                    if (cacheSource != null) {
+                        synchronized (cacheSource.toCache) {
+                            for (int j = 0, p = 0; j < BLOCK_SIDE; ++j) {
+                                int lat = lat0 + (j << shift);
+                                for (int i = 0; i < BLOCK_SIDE; ++i, ++p) {
+                                    if (lat < -(1 << 30) || lat > (1 << 30))
+                                        continue;
+                                    rec[0] = lon0 + (i << shift);
+                                    rec[1] = lat;
+                                    rec[2] = h[p];
+                                    rec[3] = dh[p];
+                                    cacheSource.toCache.add(rec);
+                                }
+                            }
+                            cacheSource.toCacheAdded();
+                        }
+                    }
+                }
+            } finally {
+                inflater.end();
+                postReplies(replies);
+            }
+        }
+        
         /**
          * Connect to the server, query about the elevation model
          * @return
@@ -284,7 +604,14 @@ public final class ElevationSource {
                 int ib     = in.readInt();
                 int hScale = in.readInt();
                 int version = in.readInt();
+                int features = 0;
+                try {
+                    features = in.readInt();
+                } catch (EOFException ex) {
+                    // Older servers have no feature field
+                }
                 in.close();
+                use_blocks = (features & FEATURE_BLOCKS) != 0;
                 
                 double a = (double)ia / 100.;
                 double f = ((double)ia - (double)ib) / (double)ia;
@@ -334,11 +661,13 @@ public final class ElevationSource {
          * A server elevation source worker
          */
         private final class Worker extends Thread {
-            private int [] rec = new int[4];
+            private int [] rec = new int[5];
             private final int buf_size = 1<<15;
             // IO buffers
             private ByteBuffer ibuf = ByteBuffer.allocateDirect(buf_size);
             private ByteBuffer obuf = ByteBuffer.allocateDirect(buf_size);
+            private IntegerArray block_queries = new IntegerArray(4);
+            private IntegerArray blocks = new IntegerArray(3);
             Worker() {
                 super(group, "URLSource");
             }
@@ -357,140 +686,43 @@ public final class ElevationSource {
                         }
                         queries = getQueries(queries, (obuf.capacity()-12)/9);
                         if (queries == null || queries.isEmpty()) continue;
+                        
+                        // Dense queries as blocks
+                        if (use_blocks) {
+                            findBlocks(queries, block_queries, blocks);
+                            if (!blocks.isEmpty()) {
+                                putBlockQueries(blocks, obuf, ++queryNr, code);
+                                long send_time = System.currentTimeMillis();
+                                if (!exchange(-1)) break;
+                                if (checkReply(OPCODE_ELEVATION_BLOCK, queryNr, blocks.size())) {
+                                    stats.serverReply(block_queries.size(), blocks.size(), System.currentTimeMillis() - send_time);
+                                    try {
+                                        storeBlockReplies(block_queries, blocks, ibuf, rec);
+                                    } catch (DataFormatException ex) {
+                                        System.err.println("Server source : " + ex.getMessage());
+                                        addQueries(block_queries, 0, block_queries.size());
+                                    }
+                                } else
+                                    addQueries(block_queries, 0, block_queries.size());
+                            }
+                            if (queries.isEmpty()) continue;
+                        }
                         queries.sort(queryKeyComparator);
                         
                         // sending server query
                         int querySz = queries.size();
-                        int opCode = OPCODE_ELEVATION_BYTE;
-                        obuf.clear();
-                        obuf.putInt(opCode);
-                        obuf.putInt(++queryNr);
-                        obuf.putInt(querySz);
-                        
-                        // Query data
-                        for (int i=0; enabled && i<queries.size(); ++i) {
-                            int node = queries.get(i, 0);
-                            Morton.code(surface.int_lonlat[2*node], surface.int_lonlat[2*node+1], code);
-                            obuf.put(code, 0, code[0]+1);
-                        }
-                        obuf.flip();
-                        
-                        boolean okReply = false;
-                        int numTries = 0;
-                        do {
-                            try {
-                                // System.setProperty("sun.net.client.defaultConnectTimeout", "15000");
-                                // System.setProperty("sun.net.client.defaultReadTimeout", "15000");
-                                HttpURLConnection con = (HttpURLConnection)url.openConnection();
-                                con.setDoOutput(true);
-                                con.setUseCaches(false);
-                                con.setRequestProperty("Content-Type", "application/octet-stream");
-                                
-                                // Write
-                                obuf.rewind();
-                                {
-                                    OutputStream out = con.getOutputStream();
-                                    WritableByteChannel oc = Channels.newChannel(out);
-                                    do {
-                                        oc.write(obuf);
-                                    } while (obuf.position() < obuf.limit());
-                                    oc.close();
-                                    out.flush();
-                                    out.close();
-                                }
-                                
-                                // Get the reply
-                                if (con.getResponseCode() >= 400)
-                                    continue;
-                                // throw new ProtocolException("Bad responce code : " + con.getResponseMessage());
-                                ibuf.clear();
-                                {
-                                    InputStream in  = con.getInputStream();
-                                    ReadableByteChannel ic = Channels.newChannel(in);
-                                    while (ic.read(ibuf) >= 0);
-                                    ic.close();
-                                    in.close();
-                                }
-                                if (ibuf.position() != 12+8*querySz)
-                                    continue;
-                                ibuf.flip();
-                            } catch (NoRouteToHostException ex) {
-                                System.err.println("Unable to connect to elevation server, no route to: " + url.toString());
-                                enabled = false;
-                                break;
-                            } catch (UnknownHostException ex) {
-                                System.err.println("Unable to connect to elevation server, unknown host: " + url.toString());
-                                enabled = false;
-                                break;
-                            } catch (ConnectException ex) {
-                                if (++numTries > 5 && enabled) {
-                                    System.err.println("5 failed attempts in elevation server, disconnecting");
-                                    enabled = false;
-                                    break;
-                                }
-                                continue;
-                            } catch (SocketTimeoutException ex) {
-                                if (++numTries > 5 && enabled) {
-                                    System.err.println("5 failed attempts in elevation server, disconnecting");
-                                    enabled = false;
-                                    break;
-                                }
-                                continue;
-                            } catch (IOException ex) {
-                                System.err.print("Server source : ");
-                                System.err.println(ex);
-                                continue;
-                            }
-                            okReply = true;
-                        } while (enabled && !okReply);
-                        if (!enabled) break;
-                        if (numTries > 0)
-                            System.err.println("Attempts to connect : " + Integer.toString(numTries));
-                        
-                        int opc     = ibuf.getInt();
-                        int replyNr = ibuf.getInt();
-                        int replySz = ibuf.getInt();
-                        
-                        if (opc != opCode)
-                            System.err.println("Bad opcode in reply");
-                        if (querySz != replySz)
-                            System.err.println("Different size query - reply");
-                        if (queryNr != replyNr)
-                            System.err.println("Error in query sequence");
+                        putQueries(queries, obuf, ++queryNr, code);
+                        long send_time = System.currentTimeMillis();
+                        if (!exchange(12+8*querySz)) break;
+                        checkReply(OPCODE_ELEVATION_BYTE, queryNr, querySz);
+                        stats.serverReply(querySz, 0, System.currentTimeMillis() - send_time);
                         
                         // Read heights and deviations
                         // q_it = queries.iterator();
                         // while (enabled && q_it.hasNext()) {
                         // QueryRecord rec = (QueryRecord)q_it.next();
                         
-                        for (int i=0; enabled && i<queries.size(); ++i) {
-                            // QueryRecord rec = new QueryRecord();
-                            int node = queries.get(i, 0);
-                            int h    = ibuf.getInt();
-                            int dh   = ibuf.getInt();
-                            rec[0] = node;
-                            rec[1] = h;
-                            rec[2] = dh;
-                            synchronized (replyList) {
-                                // Storing replies
-                                replyList.add(rec);
-                            }
-                            if (cacheSource != null) {
-                                rec[0] = surface.int_lonlat[node*2];
-                                rec[1] = surface.int_lonlat[node*2+1];
-                                rec[2] = h;
-                                rec[3] = dh;
-                                synchronized (cacheSource.toCache) {
-                                    cacheSource.toCache.add(rec);
-                                }
-                            }
-                        }
-                        if (cacheSource != null) {
-                            synchronized (cacheSource.queryList) {
-                                cacheSource.queryList.notify();
-                            }
-                            
-                        }
+                        storeReplies(queries, ibuf, rec);
                         queries.clear();
                         // Sucess!
                         // long endtime = System.currentTimeMillis();
@@ -503,6 +735,467 @@ public final class ElevationSource {
                     }
                 }
             }
+            
+            /**
+             * Check the header of a reply
+             * @return false if the reply does not belong to the query
+             */
+            private boolean checkReply(int opCode, int queryNr, int querySz) {
+                int opc     = ibuf.getInt();
+                int replyNr = ibuf.getInt();
+                int replySz = ibuf.getInt();
+                
+                if (opc != opCode)
+                    System.err.println("Bad opcode in reply");
+                if (querySz != replySz)
+                    System.err.println("Different size query - reply");
+                if (queryNr != replyNr)
+                    System.err.println("Error in query sequence");
+                return querySz == replySz && queryNr == replyNr;
+            }
+            
+            /**
+             * Send the query in obuf to the server and read the reply into ibuf,
+             * try again on failure
+             * @param replySz The expected size of the reply, -1 if not known in advance
+             * @return false if the source has been disabled
+             */
+            private boolean exchange(int replySz) {
+                boolean okReply = false;
+                int numTries = 0;
+                int attempts = 0;
+                do {
+                    // Each new attempt follows a failed one
+                    if (attempts++ > 0)
+                        stats.serverErrors.incrementAndGet();
+                    try {
+                        // System.setProperty("sun.net.client.defaultConnectTimeout", "15000");
+                        // System.setProperty("sun.net.client.defaultReadTimeout", "15000");
+                        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+                        con.setDoOutput(true);
+                        con.setUseCaches(false);
+                        con.setRequestProperty("Content-Type", "application/octet-stream");
+                        
+                        // Write
+                        obuf.rewind();
+                        {
+                            OutputStream out = con.getOutputStream();
+                            WritableByteChannel oc = Channels.newChannel(out);
+                            do {
+                                oc.write(obuf);
+                            } while (obuf.position() < obuf.limit());
+                            oc.close();
+                            out.flush();
+                            out.close();
+                        }
+                        
+                        // Get the reply
+                        if (con.getResponseCode() >= 400)
+                            continue;
+                        // throw new ProtocolException("Bad responce code : " + con.getResponseMessage());
+                        ibuf.clear();
+                        {
+                            InputStream in  = con.getInputStream();
+                            ReadableByteChannel ic = Channels.newChannel(in);
+                            while (ic.read(ibuf) >= 0);
+                            ic.close();
+                            in.close();
+                        }
+                        if (replySz >= 0 ? ibuf.position() != replySz : ibuf.position() < 12)
+                            continue;
+                        ibuf.flip();
+                    } catch (NoRouteToHostException ex) {
+                        System.err.println("Unable to connect to elevation server, no route to: " + url.toString());
+                        enabled = false;
+                        break;
+                    } catch (UnknownHostException ex) {
+                        System.err.println("Unable to connect to elevation server, unknown host: " + url.toString());
+                        enabled = false;
+                        break;
+                    } catch (ConnectException ex) {
+                        if (++numTries > 5 && enabled) {
+                            System.err.println("5 failed attempts in elevation server, disconnecting");
+                            enabled = false;
+                            break;
+                        }
+                        continue;
+                    } catch (SocketTimeoutException ex) {
+                        if (++numTries > 5 && enabled) {
+                            System.err.println("5 failed attempts in elevation server, disconnecting");
+                            enabled = false;
+                            break;
+                        }
+                        continue;
+                    } catch (IOException ex) {
+                        System.err.print("Server source : ");
+                        System.err.println(ex);
+                        continue;
+                    }
+                    okReply = true;
+                } while (enabled && !okReply);
+                if (!okReply)
+                    stats.serverErrors.incrementAndGet();
+                if (numTries > 0)
+                    System.err.println("Attempts to connect : " + Integer.toString(numTries));
+                return enabled;
+            }
+        }
+        
+        /**
+         * A server elevation source worker keeping a persistent HTTP/1.1 connection.
+         * Several queries are sent before the oldest reply is read, the number of
+         * queries in flight and the query size is adapted to the round trip time.
+         */
+        private final class PipelinedWorker extends Thread {
+            private final int buf_size = 1<<15;
+            private final int min_batch = 64;
+            private final int max_batch = (buf_size-12)/9 - 1;
+            private int [] rec = new int[5];
+            // IO buffers
+            private ByteBuffer ibuf = ByteBuffer.allocate(buf_size);
+            private ByteBuffer obuf = ByteBuffer.allocate(buf_size);
+            private byte[] skip = new byte[1024];
+            private StringBuffer line = new StringBuffer();
+            
+            private LinkedList<Batch> in_flight = new LinkedList<Batch>();
+            private Socket socket;
+            private InputStream  in;
+            private OutputStream out;
+            private String host;
+            private String file;
+            
+            private boolean keep_alive = true;
+            private boolean pipelining = true;
+            private int window = 1;
+            private int batch_size = 256;
+            private double min_rtt = Double.MAX_VALUE;
+            
+            /**
+             * A query sent and waiting for reply
+             */
+            private final class Batch {
+                IntegerArray queries;
+                IntegerArray blocks;
+                int queryNr;
+                long send_time;
+            }
+            
+            PipelinedWorker() {
+                super(group, "URLSource");
+                host = url.getPort() < 0 ? url.getHost() : url.getHost() + ":" + url.getPort();
+                file = url.getFile().length() == 0 ? "/" : url.getFile();
+            }
+            
+            public void run() {
+                byte[] code = new byte[9];
+                int queryNr = 0;
+                int numTries = 0;
+                
+                while (enabled) {
+                    try {
+                        if (in_flight.isEmpty()) {
+                            synchronized (queryList) {
+                                while (enabled && queryList.isEmpty()) {
+                                    try { queryList.wait(); } catch (InterruptedException ie) { }
+                                }
+                            }
+                        }
+                        if (!enabled) break;
+                        if (socket == null)
+                            connect();
+                        
+                        // Fill the window
+                        while (enabled && in_flight.size() < window) {
+                            IntegerArray queries = getQueries(null, batch_size);
+                            if (queries == null || queries.isEmpty()) break;
+                            
+                            // Dense queries as blocks
+                            if (use_blocks) {
+                                Batch batch = new Batch();
+                                batch.queries = new IntegerArray(4);
+                                batch.blocks  = new IntegerArray(3);
+                                findBlocks(queries, batch.queries, batch.blocks);
+                                if (!batch.blocks.isEmpty()) {
+                                    batch.queryNr = ++queryNr;
+                                    putBlockQueries(batch.blocks, obuf, batch.queryNr, code);
+                                    in_flight.addLast(batch);
+                                    send(batch);
+                                }
+                                if (queries.isEmpty()) continue;
+                            }
+                            queries.sort(queryKeyComparator);
+                            Batch batch = new Batch();
+                            batch.queries = queries;
+                            batch.queryNr = ++queryNr;
+                            putQueries(queries, obuf, batch.queryNr, code);
+                            in_flight.addLast(batch);
+                            send(batch);
+                        }
+                        if (in_flight.isEmpty()) continue;
+                        
+                        // Read the oldest reply
+                        Batch batch = in_flight.getFirst();
+                        boolean okReply = receive(batch);
+                        in_flight.removeFirst();
+                        numTries = 0;
+                        if (okReply) {
+                            long rtt = System.currentTimeMillis() - batch.send_time;
+                            stats.serverReply(batch.queries.size(), batch.blocks == null ? 0 : batch.blocks.size(), rtt);
+                            adapt(rtt);
+                            if (batch.blocks == null)
+                                storeReplies(batch.queries, ibuf, rec);
+                            else {
+                                try {
+                                    storeBlockReplies(batch.queries, batch.blocks, ibuf, rec);
+                                } catch (DataFormatException ex) {
+                                    System.err.println("Server source : " + ex.getMessage());
+                                    addQueries(batch.queries, 0, batch.queries.size());
+                                }
+                            }
+                        } else {
+                            stats.serverErrors.incrementAndGet();
+                            addQueries(batch.queries, 0, batch.queries.size());
+                        }
+                        if (!keep_alive)
+                            requeue();
+                        yield();
+                    } catch (NoRouteToHostException ex) {
+                        System.err.println("Unable to connect to elevation server, no route to: " + url.toString());
+                        enabled = false;
+                    } catch (UnknownHostException ex) {
+                        System.err.println("Unable to connect to elevation server, unknown host: " + url.toString());
+                        enabled = false;
+                    } catch (ConnectException ex) {
+                        stats.serverErrors.incrementAndGet();
+                        requeue();
+                        if (++numTries > 5 && enabled) {
+                            System.err.println("5 failed attempts in elevation server, disconnecting");
+                            enabled = false;
+                        }
+                    } catch (SocketTimeoutException ex) {
+                        stats.serverErrors.incrementAndGet();
+                        requeue();
+                        if (++numTries > 5 && enabled) {
+                            System.err.println("5 failed attempts in elevation server, disconnecting");
+                            enabled = false;
+                        }
+                    } catch (IOException ex) {
+                        stats.serverErrors.incrementAndGet();
+                        requeue();
+                        if (enabled) {
+                            System.err.print("Server source : ");
+                            System.err.println(ex);
+                            try { sleep(100); } catch (InterruptedException ie) { }
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        requeue();
+                    }
+                }
+                disconnect();
+            }
+            
+            /**
+             * Adjust the query size and the number of queries in flight.
+             * Larger queries are tried before deeper pipelining, and a slow reply
+             * reduces the pipelining first. Only done when there is a backlog of
+             * queries, the round trip time of a short queue is unreliable.
+             */
+            private void adapt(long rtt) {
+                min_rtt = Math.min(min_rtt*1.01, Math.max(rtt, 1));
+                synchronized (queryList) {
+                    if (queryList.size() < batch_size)
+                        return;
+                }
+                int max_window = pipelining ?
+                    ApplicationSettings.getApplicationSettings().getElevationMaxInFlight() : 1;
+                if (rtt < 2*min_rtt) {
+                    if (batch_size < max_batch)
+                        batch_size = Math.min(max_batch, batch_size*5/4);
+                    else if (window < max_window)
+                        ++window;
+                } else if (rtt > 4*min_rtt) {
+                    if (window > 1)
+                        --window;
+                    else if (batch_size > min_batch)
+                        batch_size = Math.max(min_batch, batch_size*3/4);
+                }
+                if (window > max_window)
+                    window = max_window;
+            }
+            
+            private void connect() throws IOException {
+                Socket s = new Socket();
+                s.setTcpNoDelay(true);
+                s.connect(new InetSocketAddress(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort()), 15000);
+                s.setSoTimeout(30000);
+                synchronized (this) {
+                    if (!enabled) {
+                        s.close();
+                        throw new SocketException("Elevation source closed");
+                    }
+                    socket = s;
+                    in  = new BufferedInputStream(s.getInputStream(), buf_size);
+                    out = new BufferedOutputStream(s.getOutputStream(), buf_size);
+                }
+                keep_alive = true;
+            }
+            
+            synchronized void disconnect() {
+                if (socket == null) return;
+                try {
+                    socket.close();
+                } catch (IOException ex) { }
+                socket = null;
+                in  = null;
+                out = null;
+            }
+            
+            /**
+             * Return all queries in flight to the query list and drop the connection
+             */
+            private void requeue() {
+                disconnect();
+                while (!in_flight.isEmpty()) {
+                    IntegerArray queries = in_flight.removeFirst().queries;
+                    addQueries(queries, 0, queries.size());
+                }
+            }
+            
+            private void send(Batch batch) throws IOException {
+                String head = "POST " + file + " HTTP/1.1\r\n" +
+                        "Host: " + host + "\r\n" +
+                        "Content-Type: application/octet-stream\r\n" +
+                        "Content-Length: " + obuf.limit() + "\r\n\r\n";
+                batch.send_time = System.currentTimeMillis();
+                out.write(head.getBytes("ISO-8859-1"));
+                out.write(obuf.array(), 0, obuf.limit());
+                out.flush();
+            }
+            
+            /**
+             * Read the reply of a query into ibuf
+             * @return true if a complete and correct reply was read
+             */
+            private boolean receive(Batch batch) throws IOException {
+                int status;
+                int length;
+                boolean chunked;
+                do {
+                    String status_line = readLine();
+                    int ix = status_line.indexOf(' ');
+                    if (!status_line.startsWith("HTTP/") || ix < 0 || status_line.length() < ix+4)
+                        throw new ProtocolException("Bad status line from elevation server : " + status_line);
+                    status = Integer.parseInt(status_line.substring(ix+1, ix+4));
+                    keep_alive = !status_line.startsWith("HTTP/1.0");
+                    length  = -1;
+                    chunked = false;
+                    for (String header = readLine(); header.length() > 0; header = readLine()) {
+                        int colon = header.indexOf(':');
+                        if (colon < 0) continue;
+                        String name  = header.substring(0, colon).trim();
+                        String value = header.substring(colon+1).trim();
+                        if (name.equalsIgnoreCase("Content-Length"))
+                            length = Integer.parseInt(value);
+                        else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                            chunked = value.equalsIgnoreCase("chunked");
+                        else if (name.equalsIgnoreCase("Connection")) {
+                            if (value.equalsIgnoreCase("close"))
+                                keep_alive = false;
+                            else if (value.equalsIgnoreCase("keep-alive"))
+                                keep_alive = true;
+                        }
+                    }
+                } while (status/100 == 1);
+                if (!keep_alive && pipelining) {
+                    pipelining = false;
+                    window = 1;
+                }
+                
+                ibuf.clear();
+                boolean complete = true;
+                if (chunked) {
+                    for (int chunk = readChunkSize(); chunk > 0; chunk = readChunkSize()) {
+                        complete &= readBody(chunk);
+                        readLine();
+                    }
+                    while (readLine().length() > 0);
+                } else if (length >= 0)
+                    complete = readBody(length);
+                else {
+                    keep_alive = false;
+                    complete = readBody(Integer.MAX_VALUE);
+                }
+                ibuf.flip();
+                
+                if (status >= 400 || !complete)
+                    return false;
+                int opCode  = batch.blocks == null ? OPCODE_ELEVATION_BYTE : OPCODE_ELEVATION_BLOCK;
+                int querySz = batch.blocks == null ? batch.queries.size() : batch.blocks.size();
+                if (batch.blocks == null ? ibuf.limit() != 12+8*querySz : ibuf.limit() < 12) {
+                    System.err.println("Different size query - reply");
+                    return false;
+                }
+                int opc     = ibuf.getInt();
+                int replyNr = ibuf.getInt();
+                int replySz = ibuf.getInt();
+                if (opc != opCode)
+                    System.err.println("Bad opcode in reply");
+                if (querySz != replySz) {
+                    System.err.println("Different size query - reply");
+                    return false;
+                }
+                if (batch.queryNr != replyNr) {
+                    System.err.println("Error in query sequence");
+                    return false;
+                }
+                return true;
+            }
+            
+            /**
+             * Read len bytes (or to end of stream if len is Integer.MAX_VALUE) into ibuf
+             * @return false if the data did not fit in ibuf
+             */
+            private boolean readBody(int len) throws IOException {
+                boolean fits = true;
+                while (len > 0) {
+                    int n;
+                    if (ibuf.hasRemaining()) {
+                        n = in.read(ibuf.array(), ibuf.position(), Math.min(len, ibuf.remaining()));
+                        if (n > 0) ibuf.position(ibuf.position()+n);
+                    } else {
+                        fits = false;
+                        n = in.read(skip, 0, Math.min(len, skip.length));
+                    }
+                    if (n < 0) {
+                        if (len == Integer.MAX_VALUE)
+                            break;
+                        throw new EOFException("Elevation server closed connection");
+                    }
+                    if (len != Integer.MAX_VALUE)
+                        len -= n;
+                }
+                return fits;
+            }
+            
+            private int readChunkSize() throws IOException {
+                String size = readLine();
+                int ix = size.indexOf(';');
+                if (ix >= 0) size = size.substring(0, ix);
+                return Integer.parseInt(size.trim(), 16);
+            }
+            
+            private String readLine() throws IOException {
+                line.setLength(0);
+                int c;
+                while ((c = in.read()) != '\n') {
+                    if (c < 0)
+                        throw new EOFException("Elevation server closed connection");
+                    if (c != '\r')
+                        line.append((char)c);
+                }
+                return line.toString();
+            }
         }
     }
     
@@ -511,11 +1204,20 @@ public final class ElevationSource {
      * Elevation source sub object for handling of the local cache
      */
     private final class CacheSource extends SourceBase {
+        // Elevations waiting to be written are committed when there are
+        // WRITE_BATCH_SIZE of them, or MAX_WRITE_DELAY ms after the last commit
+        static final int  WRITE_BATCH_SIZE = 20000;
+        static final long MAX_WRITE_DELAY  = 2000;
+        
         private ElevationCache cache;
         private Worker[] worker = new Worker[NUM_CACHE_THREADS];
+        private Writer   writer;
         // private ModelQuery model_query;
         
+        // Elevations from the server (lon, lat, h, dh), not yet written
         private IntegerArray toCache = new IntegerArray(4, 30000);
+        // Set by the readers, the access times they write need a commit too
+        private volatile boolean read_since_commit = false;
         
         /**
          * Open the local elevation cache
@@ -531,6 +1233,132 @@ public final class ElevationSource {
                 worker[i].setPriority(THREAD_PRIORITY);
                 worker[i].start();
             }
+            writer = new Writer();
+            writer.setPriority(THREAD_PRIORITY);
+            writer.start();
+        }
+        
+        /**
+         * Stop the workers, and give the writer some time to write what is left
+         */
+        void close() {
+            super.close();
+            synchronized (toCache) {
+                toCache.notifyAll();
+            }
+            try {
+                writer.join(MAX_WRITE_DELAY);
+            } catch (InterruptedException ex) {}
+        }
+        
+        /**
+         * The number of elevations waiting for the writer, or being written
+         */
+        int getPendingWrites() {
+            synchronized (toCache) {
+                return toCache.size() + writer.writing;
+            }
+        }
+        
+        /**
+         * Add an elevation to be written to the cache
+         * @param rec lon, lat, h, dh
+         */
+        void addToCache(int [] rec) {
+            synchronized (toCache) {
+                toCache.add(rec);
+                toCacheAdded();
+            }
+        }
+        
+        /**
+         * Wake the writer if a batch is full. The caller must hold the toCache lock.
+         */
+        void toCacheAdded() {
+            if (toCache.size() >= WRITE_BATCH_SIZE)
+                toCache.notify();
+        }
+        
+        /**
+         * The cache writer thread. Takes all waiting elevations at once, writes
+         * them in Morton order and commits the cache, so that the readers never
+         * wait for inserts or commits.
+         */
+        private final class Writer extends Thread {
+            int [] rec = new int[4];
+            IntegerArray batch = new IntegerArray(4, 30000);
+            // The size of the batch until it is committed
+            volatile int writing = 0;
+            
+            Writer() {
+                super(group, "CacheSource writer");
+            }
+            
+            public void run() {
+                long last_commit = System.currentTimeMillis();
+                while (enabled) {
+                    try {
+                        synchronized (toCache) {
+                            long wait_time;
+                            while (enabled && toCache.size() < WRITE_BATCH_SIZE &&
+                                    (wait_time = last_commit + MAX_WRITE_DELAY - System.currentTimeMillis()) > 0) {
+                                try { toCache.wait(wait_time); } catch (InterruptedException ie) { }
+                            }
+                            batch.swapContents(toCache);
+                            writing = batch.size();
+                        }
+                        if (!enabled) break;
+                        write();
+                        last_commit = System.currentTimeMillis();
+                    } catch(Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        writing = 0;
+                    }
+                }
+                
+                // Write what is left
+                try {
+                    synchronized (toCache) {
+                        batch.swapContents(toCache);
+                    }
+                    write();
+                } catch(Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            
+            /**
+             * Write the batch and commit
+             */
+            private void write() throws IOException {
+                if (!cache.getCacheManager().isOpen()) {
+                    batch.clear();
+                    return;
+                }
+                int size = batch.size();
+                if (size > 0) {
+                    batch.sort(cacheKeyComparator);
+                    // Only a successful lock is paired with an unlock
+                    if (cache.lock()) try {
+                        for (int i = size; --i >= 0; ) {
+                            batch.get(i, rec);
+                            cache.set(Morton.code(rec[0], rec[1]), rec[2], rec[3]);
+                        }
+                    } finally {
+                        cache.unlock();
+                    }
+                    batch.clear();
+                } else if (!read_since_commit)
+                    return;
+                
+                // Also commits the access times written by the readers
+                read_since_commit = false;
+                long start = System.nanoTime();
+                cache.getCacheManager().newTs();
+                cache.getCacheManager().commit();
+                stats.cacheCommit(size, (System.nanoTime() - start)/1000000);
+            }
         }
         
         
@@ -539,7 +1367,7 @@ public final class ElevationSource {
          */
         private final class Worker extends Thread {
             // int [] node_arr = new int[1];
-            int [] rec      = new int[4];
+            int [] rec      = new int[5];
             final static int MAX_QUERY_SIZE = 2000;
             final static long MAX_QUERY_TIME = 2000;
             
@@ -560,7 +1388,7 @@ public final class ElevationSource {
                     
                     try {
                         synchronized (queryList) {
-                            while (enabled && queryList.isEmpty() && toCache.isEmpty()) {
+                            while (enabled && queryList.isEmpty()) {
                                 try { queryList.wait(); } catch (InterruptedException ie) { }
                             }
                         }
@@ -570,13 +1398,11 @@ public final class ElevationSource {
                         if (queries == null) continue;
                         queries.sort(queryKeyComparator);
                         // Collections.sort(queries, queryKeyComparator);
-                        synchronized (replyList) {
-                            replyList.ensureCapacity(replyList.size()+queries.size());
-                        }
+                        IntegerArray replies = null;
                         
                         // boolean interrupted = false;
                         try {
-                            if (cache.lock()) {
+                            if (cache.lock()) try {
                                 
                                 // Fetch elevations from cache
                                 // System.out.println("Queries: " + queries.size());
@@ -589,76 +1415,38 @@ public final class ElevationSource {
                                         // interrupted = true;
                                         break;
                                     }
-                                    int node = queries.get(i, 0);
-                                    Morton.code(surface.int_lonlat[2*node], surface.int_lonlat[2*node+1], key);
+                                    queries.get(i, rec);
+                                    Morton.code(rec[1], rec[2], key);
                                     ElevationCache.Record db_rec = cache.get(key);
                                     if (db_rec != null) {
-                                        rec[0] = node;
-                                        rec[1] = db_rec.h;
-                                        rec[2] = db_rec.dh;
-                                        synchronized (replyList) {
-                                            // Storing replies
-                                            replyList.add(rec);
-                                        }
+                                        rec[3] = db_rec.h;
+                                        rec[4] = db_rec.dh;
+                                        replies = addReply(replies, rec);
                                     } else if (serverSource != null) {
                                         // Add to url queries
-                                        serverSource.addQuery(node);
+                                        serverSource.addQueries(queries, i, i+1);
                                     } else {
-                                        rec[0] = node;
-                                        rec[1] = Integer.MAX_VALUE;
-                                        rec[2] = 0;
+                                        rec[3] = Integer.MAX_VALUE;
+                                        rec[4] = 0;
                                         // rec.key    = null;
-                                        synchronized (replyList) {
-                                            replyList.add(rec);
-                                        }
+                                        replies = addReply(replies, rec);
                                     }
                                 }
+                            } finally {
+                                cache.unlock();
                             }
                         } finally {
-                            cache.unlock();
+                            postReplies(replies);
                         }
                         // System.out.print("Num queries: " + i + " time: " + (System.currentTimeMillis()-query_start_time));
                         
                         if (!enabled) break;
                         
-                        // To cache
-                        // long to_cache_time = System.currentTimeMillis();
-                        if (enabled && System.currentTimeMillis() - query_start_time < MAX_QUERY_TIME && queries.size() < MAX_QUERY_SIZE) {
-                            synchronized (toCache) {
-                                // long start_cache_time = System.currentTimeMillis();
-                                toCache.sort(cacheKeyComparator);
-                                int num_left = MAX_QUERY_SIZE-queries.size();
-                                // int num_to_cache = 0;
-                                // System.out.print(" num tocache: " + Math.min(num_left, toCache.size()) + " time: ");
-                                try {
-                                    
-                                    if (cache.lock()) {
-                                        for (int i=toCache.size(); enabled && --i >= 0 && num_left-- > 0; ) {
-                                            if (!enabled) break;
-                                            toCache.get(i, rec);
-                                            toCache.remove(i);
-                                            byte [] k = Morton.code(rec[0], rec[1]);
-                                            cache.set(k, rec[2], rec[3]);
-                                            // ++num_to_cache;
-                                            if (i%50 == 0 && System.currentTimeMillis() - query_start_time > MAX_QUERY_TIME)
-                                                break;
-                                        }
-                                    }
-                                } finally {
-                                    cache.unlock();
-                                }
-                                // System.out.print(" Num to cache: "+ num_to_cache+ " time :" + (System.currentTimeMillis()-to_cache_time));
-                            }
-                        }
-                        if (!enabled) break;
-                        
-                        // long start_commit_time = System.currentTimeMillis();
                         queries.clear();
-                        if (cache.getCacheManager().isOpen()) {
+                        // The writer commits
+                        if (cache.getCacheManager().isOpen())
                             cache.getCacheManager().newTs();
-                            cache.getCacheManager().commit();
-                        }
-                        // System.out.println(" Commit: " + (System.currentTimeMillis()-start_commit_time));
+                        read_since_commit = true;
                         yield();
                     } catch(Exception ex) {
                         ex.printStackTrace();
@@ -668,19 +1456,268 @@ public final class ElevationSource {
         }
     }
     
+    /**
+     * Elevation source sub object answering queries from elevation grids in local files.
+     * The grids are sampled at the node positions, and the deviation of a node is
+     * the height range of the grid within the diamond around the node.
+     * Queries for nodes without data in the grids are passed on to the next source.
+     */
+    private final class FileSource extends SourceBase {
+        static final double WGS84_A = 6378137.;
+        static final double WGS84_F = 1./298.257223563;
+        static final int    MAX_QUERY_SIZE = 500;
+        
+        private BtRaster [] rasters;
+        private double [][] footprints; // Geographic bounding box of each grid
+        private double []   bounds;     // Geographic bounding box of all grids
+        private Worker[] worker;
+        private int order;              // The index in the list of file sources
+        
+        /**
+         * Open the elevation grids
+         * @param file A .bt file, or a directory of .bt files
+         * @param order The index in the list of file sources
+         * @throws java.io.IOException If there are no usable grids
+         */
+        FileSource(File file, int order) throws IOException {
+            super();
+            this.order = order;
+            File [] files = { file };
+            if (file.isDirectory()) {
+                files = file.listFiles(new FileFilter() {
+                    public boolean accept(File f) {
+                        return f.isFile() && f.getName().toLowerCase().endsWith(".bt");
+                    }
+                });
+            }
+            ArrayList<BtRaster> list = new ArrayList<BtRaster>();
+            for (int i = 0; files != null && i < files.length; ++i) {
+                try {
+                    list.add(new BtRaster(files[i]));
+                } catch (IOException ex) {
+                    System.err.println(ex.getMessage());
+                }
+            }
+            if (list.isEmpty())
+                throw new IOException("No elevation grids in " + file);
+            // The finest grid is used where grids overlap
+            Collections.sort(list, new Comparator<BtRaster>() {
+                public int compare(BtRaster r1, BtRaster r2) {
+                    return Double.compare(r1.getCellSize(), r2.getCellSize());
+                }
+            });
+            rasters = list.toArray(new BtRaster[list.size()]);
+            footprints = new double [rasters.length][];
+            bounds = new double [] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            for (int i = 0; i < rasters.length; ++i) {
+                footprints[i] = rasters[i].getFootprint(WGS84_A, WGS84_F);
+                bounds[0] = Math.min(bounds[0], footprints[i][0]);
+                bounds[1] = Math.min(bounds[1], footprints[i][1]);
+                bounds[2] = Math.max(bounds[2], footprints[i][2]);
+                bounds[3] = Math.max(bounds[3], footprints[i][3]);
+            }
+            
+            worker = new Worker[Math.min(4, Runtime.getRuntime().availableProcessors())];
+            for (int i=0; i<worker.length; ++i) {
+                worker[i] = new Worker();
+                worker[i].setPriority(THREAD_PRIORITY);
+                worker[i].start();
+            }
+        }
+        
+        /**
+         * Check if a position is within the footprint of the grids
+         * @param lon The longitude in radians
+         * @param lat The latitude in radians
+         */
+        boolean covers(double lon, double lat) {
+            if (lon < bounds[0] || lat < bounds[1] || lon > bounds[2] || lat > bounds[3])
+                return false;
+            for (int i = 0; i < footprints.length; ++i) {
+                double [] fp = footprints[i];
+                if (lon >= fp[0] && lat >= fp[1] && lon <= fp[2] && lat <= fp[3])
+                    return true;
+            }
+            return false;
+        }
+        
+        /**
+         * The file source worker thread
+         */
+        private final class Worker extends Thread {
+            private int [] rec = new int[5];
+            // Node position and diamond bounds in the coordinates of each UTM zone, when computed for the current query
+            private double [] xy = new double [(2*BtRaster.MAX_ZONE+1)*6];
+            private int [] xy_query = new int [2*BtRaster.MAX_ZONE+1];
+            private double [] pos = new double [2];
+            private int query_num = 0;
+            
+            Worker() {
+                super(group, "FileSource");
+            }
+            
+            /**
+             * The source workloop
+             */
+            public void run() {
+                IntegerArray queries = null;
+                while (enabled) {
+                    IntegerArray replies = null;
+                    try {
+                        synchronized (queryList) {
+                            while (enabled && queryList.isEmpty()) {
+                                try { queryList.wait(); } catch (InterruptedException ie) { }
+                            }
+                        }
+                        queries = getQueries(queries, MAX_QUERY_SIZE);
+                        if (!enabled || queries == null) break;
+                        synchronized (queryList) {
+                            // Let another worker take the rest
+                            if (!queryList.isEmpty())
+                                queryList.notify();
+                        }
+                        queries.sort(queryKeyComparator);
+                        for (int i=0; enabled && i<queries.size(); ++i) {
+                            queries.get(i, rec);
+                            stats.fileLookups.incrementAndGet();
+                            if (lookup(rec))
+                                replies = addReply(replies, rec);
+                            else {
+                                stats.fileMisses.incrementAndGet();
+                                if (!forwardQuery(rec, order+1))
+                                    replies = addReply(replies, rec);
+                            }
+                        }
+                    } catch(Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        postReplies(replies);
+                    }
+                }
+            }
+            
+            /**
+             * Find the height and deviation of a node in the finest grid covering it
+             * @param rec The query (node, lon, lat), and the reply (h, dh) on return
+             * @return false if the grids have no data for the node
+             */
+            private boolean lookup(int [] rec) {
+                int lon = rec[1];
+                int lat = rec[2];
+                // The diamond around a node extends to the neighbour nodes, at the node grid spacing
+                long step = 1L << Math.min(Integer.numberOfTrailingZeros(lon | lat), 30);
+                ++query_num;
+                rec[3] = Integer.MAX_VALUE;
+                rec[4] = 0;
+                for (int r = 0; r < rasters.length; ++r) {
+                    BtRaster raster = rasters[r];
+                    int z = raster.zone + BtRaster.MAX_ZONE;
+                    if (xy_query[z] != query_num) {
+                        project(raster.zone, lon, lat, step, z*6);
+                        xy_query[z] = query_num;
+                    }
+                    float h = raster.sample(xy[z*6], xy[z*6+1]);
+                    if (Float.isNaN(h))
+                        continue;
+                    float dh = raster.range(xy[z*6+2], xy[z*6+3], xy[z*6+4], xy[z*6+5]);
+                    rec[3] = Math.round(h*hScale);
+                    rec[4] = Float.isNaN(dh) ? 0 : (int)Math.ceil(dh*hScale);
+                    return true;
+                }
+                return false;
+            }
+            
+            /**
+             * Compute the node position and the bounding box of the diamond around the node
+             * in the coordinates of a zone
+             */
+            private void project(int zone, int lon, int lat, long step, int ix) {
+                BtRaster.project(WGS84_A, WGS84_F, zone, surface.intToLon(lon), surface.intToLat(lat), pos);
+                xy[ix]   = pos[0];
+                xy[ix+1] = pos[1];
+                double min_x = Double.POSITIVE_INFINITY, min_y = Double.POSITIVE_INFINITY;
+                double max_x = Double.NEGATIVE_INFINITY, max_y = Double.NEGATIVE_INFINITY;
+                for (int c = 0; c < 4; ++c) {
+                    long c_lon = lon + ((c & 1) == 0 ? -step : step);
+                    long c_lat = lat + ((c & 2) == 0 ? -step : step);
+                    c_lon = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, c_lon));
+                    c_lat = Math.max(-(1 << 30), Math.min(1 << 30, c_lat));
+                    BtRaster.project(WGS84_A, WGS84_F, zone, surface.intToLon((int)c_lon), surface.intToLat((int)c_lat), pos);
+                    if (Double.isNaN(pos[0]) || Double.isInfinite(pos[0]) ||
+                            Double.isNaN(pos[1]) || Double.isInfinite(pos[1])) {
+                        // Far outside the zone, use all of the grids
+                        min_x = min_y = Double.NEGATIVE_INFINITY;
+                        max_x = max_y = Double.POSITIVE_INFINITY;
+                        break;
+                    }
+                    min_x = Math.min(min_x, pos[0]);
+                    min_y = Math.min(min_y, pos[1]);
+                    max_x = Math.max(max_x, pos[0]);
+                    max_y = Math.max(max_y, pos[1]);
+                }
+                xy[ix+2] = min_x;
+                xy[ix+3] = min_y;
+                xy[ix+4] = max_x;
+                xy[ix+5] = max_y;
+            }
+        }
+    }
+    
     /**
      * Create and initialize an elevation source, consisting of possibly both
      * a server source and a cache source. The elevation source accepts queries 
      * for elevations of nodes in the surface triangulation and collects replies from 
      * the elevation server and elevation cache.
+     * A file URL gives a source reading local elevation grids, a .bt file or a
+     * directory of .bt files, without server or cache.
      * @param cache_mgr The cache manager
      * @param serverURL An URL to the server
      */
     public ElevationSource(URL serverURL, CacheManager cache_mgr) {
+        this(serverURL, null, cache_mgr);
+    }
+    
+    /**
+     * Create and initialize an elevation source combining a server with local elevation grids.
+     * Each node is looked up in the first local source with a grid covering it,
+     * and then in the following sources until elevations are found. The server
+     * (or its cache) is the last source.
+     * @param serverURL An URL to the server, or to local files used as the last source
+     * @param localURLs File URLs to local elevation grids, in order of precedence, or null
+     * @param cache_mgr The cache manager
+     */
+    public ElevationSource(URL serverURL, URL [] localURLs, CacheManager cache_mgr) {
         if (serverURL == null)
             return;
-        serverSource = new ServerSource(serverURL);
-        setCacheManager(cache_mgr);
+        ArrayList<FileSource> files = new ArrayList<FileSource>();
+        for (int i = 0; localURLs != null && i < localURLs.length; ++i) {
+            try {
+                files.add(new FileSource(urlToFile(localURLs[i]), files.size()));
+            } catch (IOException ex) {
+                System.err.println("Unable to open elevation files: " + ex.getMessage());
+            }
+        }
+        if (serverURL.getProtocol().equals("file")) {
+            try {
+                files.add(new FileSource(urlToFile(serverURL), files.size()));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(null,
+                        "Unable to open elevation files: " + ex.getMessage(),
+                        "No data source",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        } else {
+            serverSource = new ServerSource(serverURL);
+            setCacheManager(cache_mgr);
+        }
+        if (!files.isEmpty()) {
+            fileSources = files.toArray(new FileSource[files.size()]);
+            if (ellps == null)
+                ellps = new Ellipsoid(FileSource.WGS84_A, FileSource.WGS84_F);
+        }
+        stats.register();
         
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -691,6 +1728,12 @@ public final class ElevationSource {
         });
     }
     
+    private static File urlToFile(URL url) throws IOException {
+        if (!url.getProtocol().equals("file"))
+            throw new IOException("Not a file URL: " + url);
+        return new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+    }
+    
     /**
      * Set the surface
      * @param surface
@@ -708,11 +1751,28 @@ public final class ElevationSource {
         return ellps;
     }
     
+    /**
+     * The version of the elevation model, as reported by the server or the cache
+     */
+    int getModelVersion() {
+        return modelVersion;
+    }
+    
+    /**
+     * The scale of the integer elevations
+     */
+    float getHScale() {
+        return hScale;
+    }
+    
     /**
      * Set a (new) cache database
      * @param cache_mgr The cache manager
      */
     public void setCacheManager(CacheManager cache_mgr) {
+        // Elevations from local files are not cached
+        if (serverSource == null)
+            return;
         ModelQuery cache_mq = null, server_mq = serverSource.getModelQuery();
         if (cacheSource != null)
             cacheSource.close();
@@ -731,9 +1791,11 @@ public final class ElevationSource {
         }
         if (server_mq != null) {
             hScale = server_mq.hScale;
+            modelVersion = server_mq.version;
             ellps = new Ellipsoid(server_mq.a, server_mq.f);
         } else if (cache_mq != null) {
             hScale = cache_mq.hScale;
+            modelVersion = cache_mq.version;
             ellps = new Ellipsoid(cache_mq.a, cache_mq.f);
         } else {
             JOptionPane.showMessageDialog(null,
@@ -745,23 +1807,78 @@ public final class ElevationSource {
     
     /**
      * Process the replies from both server and cache source and integrate
-     * them into the surface model
+     * them into the surface model. At most MAX_REPLIES_PER_FRAME replies are
+     * applied in each call, the rest are left for the next frame.
      */
     // private IntegerArray process_list = new IntegerArray(3);
     public void processReplies() {
-        synchronized (replyList) {
-            for (int i = 0; i < replyList.size(); ++i) {
-                int node = replyList.get(i, 0);
-                int h    = replyList.get(i, 1);
-                int dh   = replyList.get(i, 2);
-                if (node < 0);
+        int budget = MAX_REPLIES_PER_FRAME;
+        int num_stale = 0;
+        while (budget > 0) {
+            if (replyBatch == null) {
+                replyBatch = replyBatches.poll();
+                replyPos   = 0;
+                if (replyBatch == null)
+                    break;
+            }
+            int end = Math.min(replyBatch.size(), replyPos + budget);
+            budget -= end - replyPos;
+            for (; replyPos < end; ++replyPos) {
+                int node = replyBatch.get(replyPos, 0);
+                int h    = replyBatch.get(replyPos, 3);
+                int dh   = replyBatch.get(replyPos, 4);
+                // Skip replies to nodes that have been freed, or reused elsewhere, since the query
+                if (surface.status[node] == 0 ||
+                        surface.int_lonlat[2*node]   != replyBatch.get(replyPos, 1) ||
+                        surface.int_lonlat[2*node+1] != replyBatch.get(replyPos, 2))
+                    ++num_stale;
                 else if (h != Integer.MAX_VALUE)
                     surface.setNodeValues(node, h, dh);
                 else
                     surface.setNodeValues(node, Integer.MIN_VALUE+1, dh);
             }
-            replyList.clear();
+            if (replyPos == replyBatch.size()) {
+                replyBatch.clear();
+                freeBatches.add(replyBatch);
+                replyBatch = null;
+            }
+        }
+        int num_applied = MAX_REPLIES_PER_FRAME - budget - num_stale;
+        stats.repliesApplied.addAndGet(num_applied);
+        stats.repliesStale.addAndGet(num_stale);
+        stats.repliesPerFrame.add(num_applied + num_stale);
+    }
+    
+    /**
+     * Add a reply to the batch of a worker thread. A full batch is handed over
+     * to processReplies, and a new batch is started.
+     * @param replies The batch, or null to start a new batch
+     * @param rec The reply: node, lon, lat, h, dh
+     * @return The batch to add the next reply to
+     */
+    private IntegerArray addReply(IntegerArray replies, int [] rec) {
+        if (replies == null) {
+            replies = freeBatches.poll();
+            if (replies == null)
+                replies = new IntegerArray(5, REPLY_BATCH_SIZE);
         }
+        replies.add(rec);
+        if (replies.size() >= REPLY_BATCH_SIZE) {
+            replyBatches.add(replies);
+            replies = null;
+        }
+        return replies;
+    }
+    
+    /**
+     * Hand over the remaining replies of a worker thread to processReplies
+     * @param replies The batch, may be null
+     */
+    private void postReplies(IntegerArray replies) {
+        if (replies != null && !replies.isEmpty())
+            replyBatches.add(replies);
+        else if (replies != null)
+            freeBatches.add(replies);
     }
     
     
@@ -771,55 +1888,133 @@ public final class ElevationSource {
      * @param node The node index
      */
     public void addQuery(int node) {
-        if (cacheSource != null && cacheSource.addQuery(node));
-        else if (serverSource != null && serverSource.addQuery(node));
+        stats.queries.incrementAndGet();
+        long key = queryKey(node, 0);
+        // Without a server, the last local source answers for the nodes outside the grids
+        if (!routeQuery(node, key, 0) && fileSources != null)
+            fileSources[fileSources.length-1].addQuery(node, key);
     }
     
+    /**
+     * Queue a query with the first source, from a local source, that may have elevations for the node
+     * @param node The node index
+     * @param key The priority of the query
+     * @param first The first local source to consider
+     * @return false if no source took the query
+     */
+    private boolean routeQuery(int node, long key, int first) {
+        if (fileSources != null && first < fileSources.length) {
+            double lon = surface.intToLon(surface.int_lonlat[2*node]);
+            double lat = surface.intToLat(surface.int_lonlat[2*node+1]);
+            for (int i = first; i < fileSources.length; ++i)
+                if (fileSources[i].covers(lon, lat))
+                    return fileSources[i].addQuery(node, key);
+        }
+        if (cacheSource != null && cacheSource.addQuery(node, key))
+            return true;
+        return serverSource != null && serverSource.addQuery(node, key);
+    }
     
     /**
-     * Remove a set of nodes from the query list
+     * Pass a query without data in a local source on to the next sources.
+     * Queries for nodes that have been freed or reused are dropped.
+     * @param rec The query (node, lon, lat)
+     * @param first The first local source to consider
+     * @return false if there are no more sources
+     */
+    private boolean forwardQuery(int [] rec, int first) {
+        int node = rec[0];
+        if (surface.status[node] == 0 ||
+                surface.int_lonlat[2*node]   != rec[1] ||
+                surface.int_lonlat[2*node+1] != rec[2])
+            return true;
+        return routeQuery(node, queryKey(node, 0), first);
+    }
+    
+    /**
+     * Change the priority of a node waiting for elevations. Among the nodes
+     * last used by a view, the nodes with the largest screen space error are fetched first.
+     * @param node The node index
+     * @param error The screen space error of the node
+     */
+    public void prioritizeQuery(int node, float error) {
+        long key = queryKey(node, error);
+        for (int i = 0; fileSources != null && i < fileSources.length; ++i)
+            if (fileSources[i].updateQuery(node, key))
+                return;
+        if (cacheSource != null && cacheSource.updateQuery(node, key));
+        else if (serverSource != null && serverSource.updateQuery(node, key));
+    }
+    
+    
+    /**
+     * Remove a set of nodes from the query list.
+     * The nodes may be freed, also the ones with a query in progress or a reply not yet
+     * processed, as replies are checked against the node position in processReplies.
      * @param gc_nodes A list of node indices
      * @param gc_nodes_num The size of the list
-     * @return The number of removed queries
+     * @return The number of nodes that may be freed, the first nodes of the list
      */
     public int removeQueries(int [] gc_nodes, int gc_nodes_num) {
-        int [] gc_nodes_sorted = new int [gc_nodes_num];
-        System.arraycopy(gc_nodes, 0, gc_nodes_sorted, 0, gc_nodes_num);
-        Arrays.sort(gc_nodes_sorted);
+        if (cacheSource == null && serverSource == null && fileSources == null)
+            return 0;
         int num_removed = 0;
-        if (cacheSource != null) {
-            synchronized (cacheSource.queryList) {
-                for (int i=0; i<cacheSource.queryList.size(); ++i) {
-                    int node = cacheSource.queryList.get(i, 0);
-                    if (Arrays.binarySearch(gc_nodes_sorted, node) >= 0) {
-                        gc_nodes[num_removed++] = node;
-                        cacheSource.queryList.set(i, 0, -1);
-                    }
-                }
-            }
-        }
-        if (serverSource != null) {
-            synchronized (serverSource.queryList) {
-                for (int i=0; i<serverSource.queryList.size(); ++i) {
-                    int node = serverSource.queryList.get(i, 0);
-                    if (Arrays.binarySearch(gc_nodes_sorted, node) >= 0) {
-                        gc_nodes[num_removed++] = node;
-                        serverSource.queryList.set(i, 0, -1);
-                    }
-                }
-            }
-        }
-        
-        synchronized (replyList) {
-            for (int i=0; i<replyList.size(); ++i) {
-                int node = replyList.get(i, 0);
-                if (Arrays.binarySearch(gc_nodes_sorted, node) >= 0) {
-                    gc_nodes[num_removed++] = node;
-                    replyList.set(i, 0, -1);
-                }
-            }
+        if (cacheSource != null)
+            num_removed += cacheSource.removeQueries(gc_nodes, gc_nodes_num);
+        if (serverSource != null)
+            num_removed += serverSource.removeQueries(gc_nodes, gc_nodes_num);
+        for (int i = 0; fileSources != null && i < fileSources.length; ++i)
+            num_removed += fileSources[i].removeQueries(gc_nodes, gc_nodes_num);
+        stats.queryCancellations.addAndGet(num_removed);
+        return gc_nodes_num;
+    }
+    
+    /**
+     * Get the statistics of the elevation source
+     */
+    public ElevationStats getStats() {
+        return stats;
+    }
+    
+    BttSurface getSurface() {
+        return surface;
+    }
+    
+    ElevationCache getElevationCache() {
+        CacheSource cs = cacheSource;
+        return cs != null ? cs.cache : null;
+    }
+    
+    /**
+     * Get the number of queued queries of a kind of source
+     * @param kind CACHE_SOURCE, SERVER_SOURCE or FILE_SOURCE
+     */
+    int getQueueDepth(int kind) {
+        if (kind == CACHE_SOURCE) {
+            CacheSource cs = cacheSource;
+            return cs != null ? cs.getQueueDepth() : 0;
         }
-        return num_removed;
+        if (kind == SERVER_SOURCE)
+            return serverSource != null ? serverSource.getQueueDepth() : 0;
+        int depth = 0;
+        for (int i = 0; fileSources != null && i < fileSources.length; ++i)
+            depth += fileSources[i].getQueueDepth();
+        return depth;
+    }
+    
+    /**
+     * Get the number of reply batches waiting for processReplies
+     */
+    int getPendingReplyBatches() {
+        return replyBatches.size();
+    }
+    
+    /**
+     * Get the number of elevations received from the server, but not yet written and committed to the cache
+     */
+    int getPendingCacheWrites() {
+        CacheSource cs = cacheSource;
+        return cs != null ? cs.getPendingWrites() : 0;
     }
     
     /**
@@ -827,9 +2022,12 @@ public final class ElevationSource {
      * @throws java.io.IOException Throws an exception on IO errors
      */
     public void close() throws java.io.IOException {
+        stats.unregister();
         if (serverSource != null)
             serverSource.close();
         if (cacheSource != null)
             cacheSource.close();
+        for (int i = 0; fileSources != null && i < fileSources.length; ++i)
+            fileSources[i].close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,268 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.virtualglobe.cache.ElevationCache;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of an elevation source, its server, cache and
+ * local files, and of the surface using it. The statistics are registered
+ * as an MBean in the platform MBean server, so that they can be followed
+ * with JConsole or any other JMX client, named
+ * com.norkart.virtualglobe:type=ElevationStats,id=n
+ *
+ * @author runaas
+ */
+public class ElevationStats implements ElevationStatsMBean {
+    private static int num_instances = 0;
+    
+    /**
+     * A histogram of non negative values, with power of two buckets
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(33);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum   = new AtomicLong();
+        
+        void add(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(Math.min(32, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+        }
+        
+        double getMean() {
+            long n = count.get();
+            return n > 0 ? (double)sum.get()/n : 0;
+        }
+        
+        /**
+         * The buckets up to the last one that is not empty
+         */
+        long [] getBuckets() {
+            int last = buckets.length();
+            while (last > 0 && buckets.get(last-1) == 0)
+                --last;
+            long [] b = new long [last];
+            for (int i = 0; i < last; ++i)
+                b[i] = buckets.get(i);
+            return b;
+        }
+        
+        void reset() {
+            for (int i = 0; i < buckets.length(); ++i)
+                buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+        }
+    }
+    
+    private final ElevationSource source;
+    private ObjectName name = null;
+    
+    final AtomicLong serverRequests = new AtomicLong();
+    final AtomicLong serverQueries  = new AtomicLong();
+    final AtomicLong serverBlocks   = new AtomicLong();
+    final AtomicLong serverErrors   = new AtomicLong();
+    final Histogram  serverBatchSize = new Histogram();
+    final Histogram  serverRoundTrip = new Histogram();
+    
+    final Histogram  cacheWriteBatchSize = new Histogram();
+    final Histogram  cacheCommitMillis   = new Histogram();
+    
+    final AtomicLong fileLookups = new AtomicLong();
+    final AtomicLong fileMisses  = new AtomicLong();
+    
+    final AtomicLong repliesApplied = new AtomicLong();
+    final AtomicLong repliesStale   = new AtomicLong();
+    final Histogram  repliesPerFrame = new Histogram();
+    
+    final AtomicLong queries            = new AtomicLong();
+    final AtomicLong queryCancellations = new AtomicLong();
+    
+    ElevationStats(ElevationSource source) {
+        this.source = source;
+    }
+    
+    /**
+     * Register in the platform MBean server. Fails silently where JMX is not
+     * available or not allowed, as in an applet.
+     */
+    synchronized void register() {
+        if (name != null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            int id;
+            synchronized (ElevationStats.class) {
+                id = num_instances++;
+            }
+            ObjectName n = new ObjectName("com.norkart.virtualglobe:type=ElevationStats,id=" + id);
+            server.registerMBean(this, n);
+            name = n;
+        } catch (Exception ex) {
+        } catch (Error err) {
+            // No management classes
+        }
+    }
+    
+    synchronized void unregister() {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception ex) {
+        }
+        name = null;
+    }
+    
+    /**
+     * Record a reply from the server
+     * @param num_queries The number of nodes answered
+     * @param num_blocks The number of blocks, 0 for single node queries
+     * @param rtt The time from sending the query until the reply was read, in milliseconds
+     */
+    void serverReply(int num_queries, int num_blocks, long rtt) {
+        serverRequests.incrementAndGet();
+        serverQueries.addAndGet(num_queries);
+        serverBlocks.addAndGet(num_blocks);
+        serverBatchSize.add(num_queries);
+        serverRoundTrip.add(rtt);
+    }
+    
+    /**
+     * Record a commit of the cache writer
+     * @param batch_size The number of elevations written, 0 if only access times were committed
+     * @param millis The time of the commit
+     */
+    void cacheCommit(int batch_size, long millis) {
+        if (batch_size > 0)
+            cacheWriteBatchSize.add(batch_size);
+        cacheCommitMillis.add(millis);
+    }
+    
+    public int getCacheQueueDepth()     { return source.getQueueDepth(ElevationSource.CACHE_SOURCE); }
+    public int getServerQueueDepth()    { return source.getQueueDepth(ElevationSource.SERVER_SOURCE); }
+    public int getFileQueueDepth()      { return source.getQueueDepth(ElevationSource.FILE_SOURCE); }
+    public int getPendingCacheWrites()  { return source.getPendingCacheWrites(); }
+    public int getPendingReplyBatches() { return source.getPendingReplyBatches(); }
+    
+    public long getServerRequests()   { return serverRequests.get(); }
+    public long getServerQueries()    { return serverQueries.get(); }
+    public long getServerBlocks()     { return serverBlocks.get(); }
+    public long getServerErrors()     { return serverErrors.get(); }
+    public double getServerMeanBatchSize()            { return serverBatchSize.getMean(); }
+    public long [] getServerBatchSizeHistogram()      { return serverBatchSize.getBuckets(); }
+    public double getServerMeanRoundTripMillis()      { return serverRoundTrip.getMean(); }
+    public long [] getServerRoundTripMillisHistogram() { return serverRoundTrip.getBuckets(); }
+    
+    public long getCacheReads() {
+        ElevationCache cache = source.getElevationCache();
+        return cache != null ? cache.getReadCount() : 0;
+    }
+    
+    public long getCacheHits() {
+        ElevationCache cache = source.getElevationCache();
+        return cache != null ? cache.getHitCount() : 0;
+    }
+    
+    public double getCacheHitRatio() {
+        ElevationCache cache = source.getElevationCache();
+        if (cache == null || cache.getReadCount() == 0)
+            return 0;
+        return (double)cache.getHitCount()/cache.getReadCount();
+    }
+    
+    public long getCacheWrites() {
+        ElevationCache cache = source.getElevationCache();
+        return cache != null ? cache.getWriteCount() : 0;
+    }
+    
+    public long getCacheErrors() {
+        ElevationCache cache = source.getElevationCache();
+        return cache != null ? cache.getErrorCount() : 0;
+    }
+    
+    public double getCacheMeanReadMicros() {
+        ElevationCache cache = source.getElevationCache();
+        if (cache == null || cache.getReadCount() == 0)
+            return 0;
+        return cache.getReadNanos()*1e-3/cache.getReadCount();
+    }
+    
+    public double getCacheMeanWriteMicros() {
+        ElevationCache cache = source.getElevationCache();
+        if (cache == null || cache.getWriteCount() == 0)
+            return 0;
+        return cache.getWriteNanos()*1e-3/cache.getWriteCount();
+    }
+    
+    public double getCacheMeanWriteBatchSize()        { return cacheWriteBatchSize.getMean(); }
+    public long [] getCacheWriteBatchSizeHistogram()  { return cacheWriteBatchSize.getBuckets(); }
+    public long getCacheCommits()                     { return cacheCommitMillis.count.get(); }
+    public double getCacheMeanCommitMillis()          { return cacheCommitMillis.getMean(); }
+    public long [] getCacheCommitMillisHistogram()    { return cacheCommitMillis.getBuckets(); }
+    
+    public long getFileLookups() { return fileLookups.get(); }
+    public long getFileMisses()  { return fileMisses.get(); }
+    
+    public long getRepliesApplied()   { return repliesApplied.get(); }
+    public long getRepliesStale()     { return repliesStale.get(); }
+    public double getMeanRepliesPerFrame()      { return repliesPerFrame.getMean(); }
+    public long [] getRepliesPerFrameHistogram() { return repliesPerFrame.getBuckets(); }
+    
+    public long getQueries()            { return queries.get(); }
+    public long getQueryCancellations() { return queryCancellations.get(); }
+    
+    public long getGcFreedCount() {
+        BttSurface surface = source.getSurface();
+        return surface != null ? surface.getGcFreedCount() : 0;
+    }
+    
+    public double getGcMeanPauseMillis() {
+        BttSurface surface = source.getSurface();
+        return surface != null ? surface.getGcMeanPauseMillis() : 0;
+    }
+    
+    public double getGcMaxPauseMillis() {
+        BttSurface surface = source.getSurface();
+        return surface != null ? surface.getGcMaxPauseMillis() : 0;
+    }
+    
+    public void reset() {
+        serverRequests.set(0);
+        serverQueries.set(0);
+        serverBlocks.set(0);
+        serverErrors.set(0);
+        serverBatchSize.reset();
+        serverRoundTrip.reset();
+        cacheWriteBatchSize.reset();
+        cacheCommitMillis.reset();
+        fileLookups.set(0);
+        fileMisses.set(0);
+        repliesApplied.set(0);
+        repliesStale.set(0);
+        repliesPerFrame.reset();
+        queries.set(0);
+        queryCancellations.set(0);
+        ElevationCache cache = source.getElevationCache();
+        if (cache != null)
+            cache.resetCounts();
+        BttSurface surface = source.getSurface();
+        if (surface != null)
+            surface.resetGcMaxPause();
+    }
+}
@@ -0,0 +1,72 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+/**
+ * The management interface of the elevation source statistics.
+ * Histograms have power of two buckets, bucket 0 counts zeros and
+ * bucket i counts values from 2^(i-1) to 2^i - 1.
+ *
+ * @author runaas
+ */
+public interface ElevationStatsMBean {
+    // Queues
+    public int getCacheQueueDepth();
+    public int getServerQueueDepth();
+    public int getFileQueueDepth();
+    public int getPendingCacheWrites();
+    public int getPendingReplyBatches();
+    
+    // Server
+    public long getServerRequests();
+    public long getServerQueries();
+    public long getServerBlocks();
+    public long getServerErrors();
+    public double getServerMeanBatchSize();
+    public long [] getServerBatchSizeHistogram();
+    public double getServerMeanRoundTripMillis();
+    public long [] getServerRoundTripMillisHistogram();
+    
+    // Cache
+    public long getCacheReads();
+    public long getCacheHits();
+    public double getCacheHitRatio();
+    public long getCacheWrites();
+    public long getCacheErrors();
+    public double getCacheMeanReadMicros();
+    public double getCacheMeanWriteMicros();
+    public double getCacheMeanWriteBatchSize();
+    public long [] getCacheWriteBatchSizeHistogram();
+    public long getCacheCommits();
+    public double getCacheMeanCommitMillis();
+    public long [] getCacheCommitMillisHistogram();
+    
+    // Local files
+    public long getFileLookups();
+    public long getFileMisses();
+    
+    // Replies
+    public long getRepliesApplied();
+    public long getRepliesStale();
+    public double getMeanRepliesPerFrame();
+    public long [] getRepliesPerFrameHistogram();
+    
+    // Surface
+    public long getQueries();
+    public long getQueryCancellations();
+    public long getGcFreedCount();
+    public double getGcMeanPauseMillis();
+    public double getGcMaxPauseMillis();
+    
+    /**
+     * Reset the counters and histograms
+     */
+    public void reset();
+}
@@ -42,14 +42,50 @@ public interface GlobeElevationModel {
      * @return 
      */
     public double    getElevation(double lon, double lat);
+    /**
+     * Compute terrain elevations for a sequence of positions
+     * @param lonlat Longitude and latitude (radians) for each position
+     * @param n The number of positions
+     * @param out The terrain elevations
+     */
+    public void      getElevations(double[] lonlat, int n, double[] out);
+    /**
+     * Compute terrain elevations for a regular grid of positions
+     * @param lon The longitude of the first position (radians)
+     * @param lat The latitude of the first position (radians)
+     * @param dlon The longitude step (radians)
+     * @param dlat The latitude step (radians)
+     * @param num_lon The number of positions along each row
+     * @param num_lat The number of rows
+     * @param out The terrain elevations, row by row
+     */
+    public void      getElevations(double lon, double lat, double dlon, double dlat,
+            int num_lon, int num_lat, double[] out);
     public ArrayList project(double lon1, double lat1, double lon2, double lat2);
     public double    getElevationScale();
     public Ellipsoid getEllipsoid();
     
     public Point3d   getIntersection(Point3d p1, Point3d p2, Point3d result);
     public Point3d   getIntersection(Point3d p,  Vector3d v, Point3d result);
+    /**
+     * Compute the nearest intersections between a number of rays and the surface
+     * @param origins The start points of the rays, x, y and z for each ray
+     * @param dirs The direction vectors of the rays, x, y and z for each ray
+     * @param n The number of rays
+     * @param out The intersection points, x, y and z for each ray, NaN if the ray does not hit the surface
+     * @return The number of rays hitting the surface
+     */
+    public int       getIntersections(double[] origins, double[] dirs, int n, double[] out);
     
     public void addGlobeElevationUpdateListener(GlobeElevationUpdateListener gel);
+    /**
+     * Prefetch the terrain for upcoming camera positions, as along a flight path.
+     * Replaces the positions given before.
+     * @param path Longitude, latitude (radians) and ellipsoid height for each position,
+     * in the order the positions are reached, or null to stop prefetching
+     * @param n The number of positions
+     */
+    public void setPrefetchPath(double[] path, int n);
     // public void removeGlobeElevationUpdateListener(GlobeElevationUpdateListener gel);
     // Point3d   getOrigin();
 }
\ No newline at end of file
@@ -145,6 +145,20 @@ public class IntegerArray {
         size -= toIx - fromIx;
     }
     
+    /**
+     * Exchange the contents of this and another array, without copying
+     */
+    public void swapContents(IntegerArray other) {
+        if (other.rec_size != rec_size)
+            throw new IllegalArgumentException("Record size: " + other.rec_size + " differs from: " + rec_size);
+        int [] tmp = array;
+        array = other.array;
+        other.array = tmp;
+        int tmp_size = size;
+        size = other.size;
+        other.size = tmp_size;
+    }
+    
     public void swap(int ix1, int ix2) {
         if (ix1 >= size)
             throw new IndexOutOfBoundsException("Ix1="+ix1+" size="+size);
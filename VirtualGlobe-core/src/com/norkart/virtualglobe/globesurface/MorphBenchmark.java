@@ -0,0 +1,242 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.geopos.Ellipsoid;
+import com.norkart.virtualglobe.viewer.CullFrustum;
+
+import java.io.IOException;
+import java.net.URL;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3d;
+import javax.vecmath.Vector4f;
+
+/**
+ * Command line tool measuring the nodes, triangles and elevation queries of a
+ * view flying along a line, with and without morphing of the new nodes.
+ * Without morphing the view refines to the full resolution, with morphing it
+ * refines to the coarser resolution given by BttSurfaceView.MORPH_RES_FACTOR.
+ * <p>
+ * Usage: MorphBenchmark [-frames n] [-resolution rad] [-morph frames] elevation-url lon,lat,h lon,lat,h
+ * <br>The camera flies from the first to the second position (degrees, meters),
+ * looking forward and down.
+ *
+ * @author runaas
+ */
+public class MorphBenchmark {
+    private static final double FOV        = Math.toRadians(60); // Field of view, horizontal and vertical
+    private static final double PITCH      = Math.toRadians(30); // Looking down from the horizon
+    private static final double NEAR       = 1;
+    private static final long   WAIT_NANOS = 200000000;          // Max time waiting for elevations in each frame
+    
+    private final URL      url;
+    private final double[] from;
+    private final double[] to;
+    private final int      frames;
+    private final float    resolution;
+    
+    // Results of the last run
+    private double mean_nodes, mean_triangles, mean_update_ms;
+    private int    max_nodes;
+    private long   queries;
+    
+    /**
+     * Create a benchmark
+     * @param url The elevation server, or a file URL to local elevation grids
+     * @param from Longitude, latitude (degrees) and height (meters) of the start position
+     * @param to Longitude, latitude (degrees) and height (meters) of the end position
+     * @param frames The number of views along the line
+     * @param resolution The angular resolution of the view, in radians per pixel
+     */
+    public MorphBenchmark(URL url, double [] from, double [] to, int frames, float resolution) {
+        this.url        = url;
+        this.from       = from;
+        this.to         = to;
+        this.frames     = frames;
+        this.resolution = resolution;
+    }
+    
+    /**
+     * Fly along the line with a new surface
+     * @param morph_frames The number of updates used for morphing, 0 for no morphing
+     */
+    public void run(int morph_frames) throws Exception {
+        ElevationSource source = new ElevationSource(url, null);
+        Ellipsoid ellps = source.getEllipsoid();
+        if (ellps == null)
+            throw new IOException("Unable to open the elevation source: " + url);
+        BttSurface surface = new BttSurface(source);
+        surface.setMorphFrames(morph_frames);
+        new TextureCoverage(surface, new TextureLoader() {
+            public void loadTextureTile(TextureTile tile) {}
+            public boolean stopLoadingTextureTile(TextureTile tile) { return true; }
+        }, new LonLatTextureCoosys(surface));
+        BttSurfaceView view = new BttSurfaceView(surface);
+        
+        Point3d eye    = new Point3d();
+        Point3d target = new Point3d();
+        ellps.toCartesian(Math.toRadians(to[1]), Math.toRadians(to[0]), to[2], target);
+        CullFrustum frustum = new CullFrustum();
+        Vector4f [] planes = new Vector4f[6];
+        for (int i = 0; i < 6; ++i)
+            planes[i] = new Vector4f();
+        long tot_nodes = 0, tot_triangles = 0, tot_nanos = 0;
+        max_nodes = 0;
+        try {
+            for (int f = 0; f < frames; ++f) {
+                double u = frames > 1 ? (double)f/(frames - 1) : 0;
+                double lon = from[0] + u*(to[0] - from[0]);
+                double lat = from[1] + u*(to[1] - from[1]);
+                double h   = from[2] + u*(to[2] - from[2]);
+                ellps.toCartesian(Math.toRadians(lat), Math.toRadians(lon), h, eye);
+                setPlanes(planes, eye, target, lon, lat);
+                frustum.setValues(planes, new Point3f(), eye, resolution, true);
+                
+                long start = System.nanoTime();
+                view.update(frustum);
+                tot_nanos += System.nanoTime() - start;
+                
+                int nodes = surface.getNodeCount();
+                tot_nodes     += nodes;
+                tot_triangles += view.getNumTriangles();
+                max_nodes = Math.max(max_nodes, nodes);
+                
+                // Let the elevations of the new nodes arrive
+                long deadline = System.nanoTime() + WAIT_NANOS;
+                while (System.nanoTime() < deadline &&
+                        source.getQueueDepth(ElevationSource.FILE_SOURCE) +
+                        source.getQueueDepth(ElevationSource.CACHE_SOURCE) +
+                        source.getQueueDepth(ElevationSource.SERVER_SOURCE) > 0)
+                    Thread.sleep(5);
+            }
+            mean_nodes     = (double)tot_nodes/frames;
+            mean_triangles = (double)tot_triangles/frames;
+            mean_update_ms = tot_nanos*1e-6/frames;
+            queries = source.getStats().getQueries();
+        } finally {
+            surface.clear();
+            source.close();
+        }
+    }
+    
+    /**
+     * Set the planes of a frustum at the eye, looking towards the target
+     * and down by PITCH, in coordinates relative to the eye
+     */
+    private static void setPlanes(Vector4f [] planes, Point3d eye, Point3d target, double lon, double lat) {
+        lon = Math.toRadians(lon);
+        lat = Math.toRadians(lat);
+        Vector3d up = new Vector3d(Math.cos(lat)*Math.cos(lon), Math.cos(lat)*Math.sin(lon), Math.sin(lat));
+        Vector3d forward = new Vector3d();
+        forward.sub(target, eye);
+        forward.scaleAdd(-forward.dot(up), up, forward);
+        if (forward.lengthSquared() < 1) {
+            // At the target, look north
+            forward.set(-Math.sin(lat)*Math.cos(lon), -Math.sin(lat)*Math.sin(lon), Math.cos(lat));
+        }
+        forward.normalize();
+        Vector3d right = new Vector3d();
+        right.cross(forward, up);
+        
+        // Tilt down
+        Vector3d dir = new Vector3d();
+        dir.scaleAdd(Math.cos(PITCH), forward, new Vector3d());
+        dir.scaleAdd(-Math.sin(PITCH), up, dir);
+        Vector3d view_up = new Vector3d();
+        view_up.cross(right, dir);
+        
+        double far = 2*eye.distance(new Point3d());
+        double s = Math.sin(FOV/2), c = Math.cos(FOV/2);
+        setPlane(planes[0], dir, s, right, -c, 0);
+        setPlane(planes[1], dir, s, right,  c, 0);
+        setPlane(planes[2], dir, s, view_up, -c, 0);
+        setPlane(planes[3], dir, s, view_up,  c, 0);
+        setPlane(planes[4], dir, -1, right, 0, far);
+        setPlane(planes[5], dir,  1, right, 0, -NEAR);
+    }
+    
+    private static void setPlane(Vector4f plane, Vector3d a, double sa, Vector3d b, double sb, double w) {
+        plane.set((float)(a.x*sa + b.x*sb), (float)(a.y*sa + b.y*sb), (float)(a.z*sa + b.z*sb), (float)w);
+    }
+    
+    private static String percent(double without, double with) {
+        return without > 0 ? String.format("%+.1f%%", 100*(with - without)/without) : "-";
+    }
+    
+    private static double [] parsePosition(String arg) {
+        String [] s = arg.split(",");
+        if (s.length != 3)
+            throw new NumberFormatException(arg);
+        return new double [] {Double.parseDouble(s[0]), Double.parseDouble(s[1]), Double.parseDouble(s[2])};
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: MorphBenchmark [-frames n] [-resolution rad] [-morph frames] elevation-url lon,lat,h lon,lat,h");
+        System.err.println("  lon,lat,h     Start and end of the flight, in degrees and meters");
+        System.err.println("  -frames      Number of views along the flight (default 100)");
+        System.err.println("  -resolution  Angular resolution in radians per pixel (default 0.001)");
+        System.err.println("  -morph       Updates used for morphing (default " + BttSurface.MORPH_FRAMES + ")");
+        System.exit(1);
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        int   frames       = 100;
+        float resolution   = 0.001f;
+        int   morph_frames = BttSurface.MORPH_FRAMES;
+        int   i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                if (i+1 >= args.length)
+                    usage();
+                else if (args[i].equals("-frames"))
+                    frames = Math.max(1, Integer.parseInt(args[i+1]));
+                else if (args[i].equals("-resolution"))
+                    resolution = Float.parseFloat(args[i+1]);
+                else if (args[i].equals("-morph"))
+                    morph_frames = Math.max(1, Integer.parseInt(args[i+1]));
+                else
+                    usage();
+            }
+            if (args.length - i != 3)
+                usage();
+            MorphBenchmark b = new MorphBenchmark(new URL(args[i]),
+                    parsePosition(args[i+1]), parsePosition(args[i+2]), frames, resolution);
+            
+            b.run(0);
+            double nodes = b.mean_nodes, triangles = b.mean_triangles;
+            int    max_nodes = b.max_nodes;
+            long   queries   = b.queries;
+            double update_ms = b.mean_update_ms;
+            b.run(morph_frames);
+            
+            System.out.println(String.format("%-22s %12s %12s %8s", "", "no morphing", "morphing", "change"));
+            System.out.println(String.format("%-22s %12.0f %12.0f %8s", "Mean nodes", nodes, b.mean_nodes,
+                    percent(nodes, b.mean_nodes)));
+            System.out.println(String.format("%-22s %12d %12d %8s", "Max nodes", max_nodes, b.max_nodes,
+                    percent(max_nodes, b.max_nodes)));
+            System.out.println(String.format("%-22s %12.0f %12.0f %8s", "Mean triangles", triangles, b.mean_triangles,
+                    percent(triangles, b.mean_triangles)));
+            System.out.println(String.format("%-22s %12d %12d %8s", "Elevation queries", queries, b.queries,
+                    percent(queries, b.queries)));
+            System.out.println(String.format("%-22s %12.2f %12.2f %8s", "Mean update ms", update_ms, b.mean_update_ms,
+                    percent(update_ms, b.mean_update_ms)));
+            System.exit(0);
+        } catch (NumberFormatException ex) {
+            usage();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.globesurface;
+
+import java.util.Arrays;
+
+/**
+ * Per-node values stored in fixed-size chunks, addressed by the node id:
+ * the chunk is id >> SHIFT, and the position in the chunk id & MASK.
+ * Growing a store only adds chunks, the values already stored are not copied,
+ * and a chunk array taken from the store keeps seeing them.
+ * @author Rune Aasgaard
+ */
+final class NodeChunks {
+    static final int SHIFT = 14;
+    static final int SIZE  = 1 << SHIFT;
+    static final int MASK  = SIZE - 1;
+    
+    private NodeChunks() {}
+    
+    /**
+     * The number of chunks needed for the nodes below size
+     */
+    static int numChunks(int size) {
+        return (size + MASK) >> SHIFT;
+    }
+    
+    static final class Ints {
+        private int [][] chunks = new int[0][];
+        
+        Ints(int size) {
+            grow(size);
+        }
+        
+        int get(int id) {
+            return chunks[id >> SHIFT][id & MASK];
+        }
+        
+        void set(int id, int value) {
+            chunks[id >> SHIFT][id & MASK] = value;
+        }
+        
+        /**
+         * Increment the value of a node
+         * @return the new value
+         */
+        int increment(int id) {
+            return ++chunks[id >> SHIFT][id & MASK];
+        }
+        
+        void fill(int value) {
+            for (int i = 0; i < chunks.length; ++i)
+                Arrays.fill(chunks[i], value);
+        }
+        
+        /**
+         * The chunks, for threads addressing them directly
+         */
+        int [][] chunks() {
+            return chunks;
+        }
+        
+        /**
+         * Add chunks until the nodes below size are covered
+         */
+        void grow(int size) {
+            int n = numChunks(size);
+            if (n <= chunks.length)
+                return;
+            int [][] new_chunks = new int[n][];
+            System.arraycopy(chunks, 0, new_chunks, 0, chunks.length);
+            for (int i = chunks.length; i < n; ++i)
+                new_chunks[i] = new int[SIZE];
+            chunks = new_chunks;
+        }
+    }
+    
+    static final class Floats {
+        private float [][] chunks = new float[0][];
+        
+        Floats(int size) {
+            grow(size);
+        }
+        
+        float get(int id) {
+            return chunks[id >> SHIFT][id & MASK];
+        }
+        
+        void set(int id, float value) {
+            chunks[id >> SHIFT][id & MASK] = value;
+        }
+        
+        void fill(float value) {
+            for (int i = 0; i < chunks.length; ++i)
+                Arrays.fill(chunks[i], value);
+        }
+        
+        float [][] chunks() {
+            return chunks;
+        }
+        
+        void grow(int size) {
+            int n = numChunks(size);
+            if (n <= chunks.length)
+                return;
+            float [][] new_chunks = new float[n][];
+            System.arraycopy(chunks, 0, new_chunks, 0, chunks.length);
+            for (int i = chunks.length; i < n; ++i)
+                new_chunks[i] = new float[SIZE];
+            chunks = new_chunks;
+        }
+    }
+    
+    static final class Doubles {
+        private double [][] chunks = new double[0][];
+        
+        Doubles(int size) {
+            grow(size);
+        }
+        
+        double get(int id) {
+            return chunks[id >> SHIFT][id & MASK];
+        }
+        
+        void set(int id, double value) {
+            chunks[id >> SHIFT][id & MASK] = value;
+        }
+        
+        void fill(double value) {
+            for (int i = 0; i < chunks.length; ++i)
+                Arrays.fill(chunks[i], value);
+        }
+        
+        void grow(int size) {
+            int n = numChunks(size);
+            if (n <= chunks.length)
+                return;
+            double [][] new_chunks = new double[n][];
+            System.arraycopy(chunks, 0, new_chunks, 0, chunks.length);
+            for (int i = chunks.length; i < n; ++i)
+                new_chunks[i] = new double[SIZE];
+            chunks = new_chunks;
+        }
+    }
+    
+    static final class Booleans {
+        private boolean [][] chunks = new boolean[0][];
+        
+        Booleans(int size) {
+            grow(size);
+        }
+        
+        boolean get(int id) {
+            return chunks[id >> SHIFT][id & MASK];
+        }
+        
+        void set(int id, boolean value) {
+            chunks[id >> SHIFT][id & MASK] = value;
+        }
+        
+        void grow(int size) {
+            int n = numChunks(size);
+            if (n <= chunks.length)
+                return;
+            boolean [][] new_chunks = new boolean[n][];
+            System.arraycopy(chunks, 0, new_chunks, 0, chunks.length);
+            for (int i = chunks.length; i < n; ++i)
+                new_chunks[i] = new boolean[SIZE];
+            chunks = new_chunks;
+        }
+    }
+}
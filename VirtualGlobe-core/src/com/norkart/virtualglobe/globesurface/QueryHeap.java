@@ -0,0 +1,162 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+
+package com.norkart.virtualglobe.globesurface;
+
+/**
+ * A max heap of node indices with a priority key for each node.
+ * The heap position of each node is indexed, so that the key of a queued node
+ * can be changed and a node can be removed in O(log n) time.
+ * A node is queued at most once. The heap is not synchronized.
+ *
+ * @author runaas
+ */
+final class QueryHeap {
+    private int  [] nodes;
+    private long [] keys;
+    private int  [] pos = new int[0]; // Heap position + 1 of each node, 0 if not queued
+    private int     size = 0;
+
+    QueryHeap(int initial_size) {
+        nodes = new int[initial_size];
+        keys  = new long[initial_size];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int node) {
+        return node < pos.length && pos[node] > 0;
+    }
+
+    /**
+     * Queue a node, or change its key if it is queued already
+     * @param node The node index
+     * @param key The priority, higher keys are polled first
+     */
+    void put(int node, long key) {
+        if (node >= pos.length) {
+            int [] tmp = new int [Math.max(node+1, pos.length*3/2)];
+            System.arraycopy(pos, 0, tmp, 0, pos.length);
+            pos = tmp;
+        }
+        int ix = pos[node]-1;
+        if (ix < 0) {
+            if (size == nodes.length) {
+                int [] n_tmp = new int [size*3/2+16];
+                long [] k_tmp = new long [size*3/2+16];
+                System.arraycopy(nodes, 0, n_tmp, 0, size);
+                System.arraycopy(keys, 0, k_tmp, 0, size);
+                nodes = n_tmp;
+                keys  = k_tmp;
+            }
+            ix = size++;
+            nodes[ix] = node;
+            keys[ix]  = key;
+            pos[node] = ix+1;
+            siftUp(ix);
+        } else if (key > keys[ix]) {
+            keys[ix] = key;
+            siftUp(ix);
+        } else if (key < keys[ix]) {
+            keys[ix] = key;
+            siftDown(ix);
+        }
+    }
+
+    /**
+     * Get the key of a queued node
+     */
+    long getKey(int node) {
+        return keys[pos[node]-1];
+    }
+
+    /**
+     * Remove and return the node with the highest key
+     * @return The node index, -1 if the heap is empty
+     */
+    int poll() {
+        if (size == 0)
+            return -1;
+        int node = nodes[0];
+        removeAt(0);
+        return node;
+    }
+
+    /**
+     * Remove a node from the heap
+     * @param node The node index
+     * @return true if the node was queued
+     */
+    boolean remove(int node) {
+        if (!contains(node))
+            return false;
+        removeAt(pos[node]-1);
+        return true;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; ++i)
+            pos[nodes[i]] = 0;
+        size = 0;
+    }
+
+    private void removeAt(int ix) {
+        pos[nodes[ix]] = 0;
+        if (ix == --size)
+            return;
+        nodes[ix] = nodes[size];
+        keys[ix]  = keys[size];
+        pos[nodes[ix]] = ix+1;
+        siftDown(ix);
+        siftUp(ix);
+    }
+
+    private void siftUp(int ix) {
+        int  node = nodes[ix];
+        long key  = keys[ix];
+        while (ix > 0) {
+            int parent = (ix-1)/2;
+            if (keys[parent] >= key)
+                break;
+            nodes[ix] = nodes[parent];
+            keys[ix]  = keys[parent];
+            pos[nodes[ix]] = ix+1;
+            ix = parent;
+        }
+        nodes[ix] = node;
+        keys[ix]  = key;
+        pos[node] = ix+1;
+    }
+
+    private void siftDown(int ix) {
+        int  node = nodes[ix];
+        long key  = keys[ix];
+        int half = size/2;
+        while (ix < half) {
+            int child = 2*ix+1;
+            if (child+1 < size && keys[child+1] > keys[child])
+                ++child;
+            if (key >= keys[child])
+                break;
+            nodes[ix] = nodes[child];
+            keys[ix]  = keys[child];
+            pos[nodes[ix]] = ix+1;
+            ix = child;
+        }
+        nodes[ix] = node;
+        keys[ix]  = key;
+        pos[node] = ix+1;
+    }
+}
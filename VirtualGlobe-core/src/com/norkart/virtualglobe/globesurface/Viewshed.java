@@ -0,0 +1,458 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.geopos.Ellipsoid;
+import com.norkart.virtualglobe.globesurface.texture.BufferedImageBuffer;
+import com.norkart.virtualglobe.util.WorkerPool;
+
+import java.awt.image.BufferedImage;
+import javax.vecmath.Point3d;
+
+/**
+ * Visibility analysis on the terrain of a BttSurface.
+ * For each cell of a longitude/latitude raster the number of observers seeing
+ * the cell is computed, by casting rays from the observers to the cells.
+ * The rays are intersected in packets with the triangle hierarchy of the surface,
+ * skipping the subtrees whose bounding spheres the rays do not pass through.
+ * The cells within range of each observer are sorted into azimuth sectors in one pass,
+ * and the rays are then cast by sector, one sector of one observer per part of the work.
+ * The analysis works on the surface as refined by the views when it is started,
+ * see BttSurface.Reader, and on the displayed elevations if the elevation scale is set.
+ * The result is available as a raster, and may be shown as a texture overlay on the surface.
+ */
+public final class Viewshed {
+    static final int    NUM_SECTORS   = 16;     // Azimuth sectors around each observer
+    static final int    BATCH_SIZE    = 1024;   // Rays intersected together
+    static final int    TILE_SIZE     = 64;     // Pixels along the side of an overlay tile
+
+    private final BttSurface surface;
+
+    // The raster, the cell centers are at lon + i*dlon, lat + j*dlat
+    private final double lon, lat, dlon, dlat;
+    private final int    num_lon, num_lat;
+    private int []       visible;
+
+    // The observers, longitude, latitude and height above the terrain
+    private double [] observers = new double[3*16];
+    private int       num_observers = 0;
+
+    private double target_height = 0;
+    private double max_range     = 50000;
+    private double tolerance     = 1;
+
+    private final Object    compute_lock = new Object();
+    private TextureCoverage overlay = null;
+    private int             visible_argb, hidden_argb;
+
+    /**
+     * Create a visibility analysis for a raster of cells
+     * @param surface The terrain surface
+     * @param lon The longitude of the center of the first cell (radians)
+     * @param lat The latitude of the center of the first cell (radians)
+     * @param dlon The longitude step (radians)
+     * @param dlat The latitude step (radians)
+     * @param num_lon The number of cells along each row
+     * @param num_lat The number of rows
+     */
+    public Viewshed(BttSurface surface, double lon, double lat, double dlon, double dlat,
+            int num_lon, int num_lat) {
+        this.surface = surface;
+        this.lon     = lon;
+        this.lat     = lat;
+        this.dlon    = dlon;
+        this.dlat    = dlat;
+        this.num_lon = num_lon;
+        this.num_lat = num_lat;
+        visible = new int[num_lon*num_lat];
+    }
+
+    /**
+     * Add an observer, as an antenna mast or a wind turbine
+     * @param lon The longitude (radians)
+     * @param lat The latitude (radians)
+     * @param height The height of the observer above the terrain
+     */
+    public synchronized void addObserver(double lon, double lat, double height) {
+        if (3*num_observers == observers.length) {
+            double [] new_observers = new double[observers.length*2];
+            System.arraycopy(observers, 0, new_observers, 0, observers.length);
+            observers = new_observers;
+        }
+        observers[3*num_observers  ] = lon;
+        observers[3*num_observers+1] = lat;
+        observers[3*num_observers+2] = height;
+        ++num_observers;
+    }
+
+    /**
+     * Remove all observers
+     */
+    public synchronized void clearObservers() {
+        num_observers = 0;
+    }
+
+    public synchronized int getNumObservers() {
+        return num_observers;
+    }
+
+    /**
+     * Set the height above the terrain of the points seen in the cells
+     */
+    public synchronized void setTargetHeight(double v) { target_height = v; }
+    public synchronized double getTargetHeight() { return target_height; }
+
+    /**
+     * Set the max distance from an observer to the cells it can see
+     */
+    public synchronized void setMaxRange(double v) { max_range = v; }
+    public synchronized double getMaxRange() { return max_range; }
+
+    /**
+     * Set how far (in meters) before a cell the terrain may be hit
+     * and the cell still be counted as seen
+     */
+    public synchronized void setTolerance(double v) { tolerance = v; }
+    public synchronized double getTolerance() { return tolerance; }
+
+    public int getNumLon() { return num_lon; }
+    public int getNumLat() { return num_lat; }
+
+    /**
+     * Get the number of observers seeing a cell
+     * @param i The cell number along the row
+     * @param j The row number
+     */
+    public synchronized int getVisibleCount(int i, int j) {
+        return visible[j*num_lon+i];
+    }
+
+    /**
+     * Get the number of observers seeing each cell, row by row
+     * @return A copy of the raster
+     */
+    public synchronized int [] getRaster() {
+        int [] retval = new int[visible.length];
+        System.arraycopy(visible, 0, retval, 0, visible.length);
+        return retval;
+    }
+
+    /**
+     * Sort the cells within range of each observer into its azimuth sectors,
+     * the parts are the observers
+     */
+    private final class SectorTask implements WorkerPool.Task {
+        Ellipsoid  ellps;
+        double []  observers;   // Longitude, latitude and height
+        double []  eyes;        // Observer positions, x, y and z
+        double []  targets;     // Cell positions, x, y and z
+        int [][]   sector_cells; // The cells of each sector of each observer
+        int []     sector_len;
+        double     max_range;
+
+        public void run(int o) {
+            double ex = eyes[3*o], ey = eyes[3*o+1], ez = eyes[3*o+2];
+
+            // North and east at the observer
+            double o_lon = observers[3*o], o_lat = observers[3*o+1];
+            double nx = -Math.sin(o_lat)*Math.cos(o_lon);
+            double ny = -Math.sin(o_lat)*Math.sin(o_lon);
+            double nz =  Math.cos(o_lat);
+            double wx = -Math.sin(o_lon);
+            double wy =  Math.cos(o_lon);
+
+            // The cells within range, the longitude of the observer is taken
+            // to the side of the date line where the raster is
+            double r_lat = max_range/ellps.getA();
+            double r_lon = r_lat/Math.max(Math.cos(o_lat) - r_lat, 1e-6);
+            double x = Math.IEEEremainder(o_lon - (lon + (num_lon-1)*dlon/2), 2*Math.PI) + (num_lon-1)*dlon/2;
+            int i0 = Math.max(0, (int)Math.floor((x - r_lon)/dlon));
+            int i1 = Math.min(num_lon-1, (int)Math.ceil((x + r_lon)/dlon));
+            int j0 = Math.max(0, (int)Math.floor((o_lat - r_lat - lat)/dlat));
+            int j1 = Math.min(num_lat-1, (int)Math.ceil((o_lat + r_lat - lat)/dlat));
+
+            int [][] cells = new int[NUM_SECTORS][];
+            int []   len   = new int[NUM_SECTORS];
+            for (int j = j0; j <= j1; ++j) {
+                for (int i = i0; i <= i1; ++i) {
+                    int c = j*num_lon+i;
+                    double dx = targets[3*c] - ex, dy = targets[3*c+1] - ey, dz = targets[3*c+2] - ez;
+                    double d2 = dx*dx + dy*dy + dz*dz;
+                    if (d2 > max_range*max_range)
+                        continue;
+                    double az = Math.atan2(dx*wx + dy*wy, dx*nx + dy*ny + dz*nz);
+                    int s = (int)((az + Math.PI)*NUM_SECTORS/(2*Math.PI));
+                    if (s >= NUM_SECTORS) s = NUM_SECTORS-1;
+                    if (cells[s] == null)
+                        cells[s] = new int[256];
+                    else if (len[s] == cells[s].length) {
+                        int [] new_cells = new int[len[s]*2];
+                        System.arraycopy(cells[s], 0, new_cells, 0, len[s]);
+                        cells[s] = new_cells;
+                    }
+                    cells[s][len[s]++] = c;
+                }
+            }
+            for (int s = 0; s < NUM_SECTORS; ++s) {
+                sector_cells[o*NUM_SECTORS+s] = cells[s];
+                sector_len[o*NUM_SECTORS+s]   = len[s];
+            }
+        }
+    }
+
+    /**
+     * One call to compute, the parts are the sectors of the observers
+     */
+    private final class ComputeTask implements WorkerPool.Task {
+        BttSurface.Reader reader;
+        double []  eyes;        // Observer positions, x, y and z
+        double []  targets;     // Cell positions, x, y and z
+        int [][]   sector_cells; // The cells of each sector of each observer
+        int []     sector_len;
+        int []     result;
+        double     tolerance;
+
+        public void run(int part) {
+            int o = part/NUM_SECTORS;
+            double ex = eyes[3*o], ey = eyes[3*o+1], ez = eyes[3*o+2];
+            int [] sector = sector_cells[part];
+            int    len    = sector_len[part];
+
+            double [] origins = new double[3*BATCH_SIZE];
+            double [] dirs    = new double[3*BATCH_SIZE];
+            double [] hits    = new double[3*BATCH_SIZE];
+            int []    cells   = new int[BATCH_SIZE];
+            int []    seen    = new int[len];
+            int       num_seen = 0;
+            int       n = 0;
+            for (int k = 0; k < len; ++k) {
+                int c = sector[k];
+                origins[3*n] = ex; origins[3*n+1] = ey; origins[3*n+2] = ez;
+                dirs[3*n]    = targets[3*c] - ex;
+                dirs[3*n+1]  = targets[3*c+1] - ey;
+                dirs[3*n+2]  = targets[3*c+2] - ez;
+                cells[n++] = c;
+                if (n == BATCH_SIZE || k == len-1) {
+                    num_seen = intersect(origins, dirs, hits, cells, n, seen, num_seen);
+                    n = 0;
+                }
+            }
+
+            synchronized (result) {
+                for (int k = 0; k < num_seen; ++k)
+                    ++result[seen[k]];
+            }
+        }
+
+        /**
+         * Intersect a batch of rays with the surface, add the cells seen to the list
+         * @return The new length of the list
+         */
+        private int intersect(double [] origins, double [] dirs, double [] hits, int [] cells, int n,
+                int [] seen, int num_seen) {
+            reader.getIntersections(origins, dirs, n, hits);
+            for (int k = 0; k < n; ++k) {
+                double dist = Math.sqrt(dirs[3*k]*dirs[3*k] + dirs[3*k+1]*dirs[3*k+1] + dirs[3*k+2]*dirs[3*k+2]);
+                boolean is_seen = Double.isNaN(hits[3*k]);
+                if (!is_seen) {
+                    double hx = hits[3*k] - origins[3*k];
+                    double hy = hits[3*k+1] - origins[3*k+1];
+                    double hz = hits[3*k+2] - origins[3*k+2];
+                    is_seen = Math.sqrt(hx*hx + hy*hy + hz*hz) >= dist - tolerance;
+                }
+                if (is_seen)
+                    seen[num_seen++] = cells[k];
+            }
+            return num_seen;
+        }
+    }
+
+    /**
+     * Compute the number of observers seeing each cell.
+     * Runs in the calling thread and the worker threads of the surface, and should be
+     * called from a background thread.
+     */
+    public void compute() {
+        synchronized (compute_lock) {
+            int [] result = computeRaster();
+            synchronized (this) {
+                visible = result;
+                if (overlay != null)
+                    overlay.reloadTextures();
+            }
+        }
+    }
+
+    private int [] computeRaster() {
+        double [] observers;
+        int       num_observers;
+        double    target_height, max_range, tolerance;
+        synchronized (this) {
+            observers = new double[3*this.num_observers];
+            System.arraycopy(this.observers, 0, observers, 0, observers.length);
+            num_observers = this.num_observers;
+            target_height = this.target_height;
+            max_range     = this.max_range;
+            tolerance     = this.tolerance;
+        }
+
+        int [] result = new int[num_lon*num_lat];
+        if (num_observers > 0) {
+            BttSurface.Reader reader = surface.openReader();
+            try {
+                Ellipsoid ellps = surface.getEllipsoid();
+                double hs = surface.getElevationScale();
+                Point3d p = new Point3d();
+
+                double [] ground = new double[num_lon*num_lat];
+                reader.getElevations(lon, lat, dlon, dlat, num_lon, num_lat, ground);
+                double [] targets = new double[3*ground.length];
+                for (int j = 0; j < num_lat; ++j) {
+                    for (int i = 0; i < num_lon; ++i) {
+                        int c = j*num_lon+i;
+                        ellps.toCartesian(lat + j*dlat, lon + i*dlon, ground[c]*hs + target_height, p);
+                        targets[3*c] = p.x; targets[3*c+1] = p.y; targets[3*c+2] = p.z;
+                    }
+                }
+
+                double [] eyes = new double[3*num_observers];
+                for (int o = 0; o < num_observers; ++o) {
+                    // The heights above the terrain are not scaled with the terrain
+                    double h = reader.getElevation(observers[3*o], observers[3*o+1])*hs + observers[3*o+2];
+                    ellps.toCartesian(observers[3*o+1], observers[3*o], h, p);
+                    eyes[3*o] = p.x; eyes[3*o+1] = p.y; eyes[3*o+2] = p.z;
+                }
+
+                int [][] sector_cells = new int[num_observers*NUM_SECTORS][];
+                int []   sector_len   = new int[num_observers*NUM_SECTORS];
+                SectorTask sectors = new SectorTask();
+                sectors.ellps     = ellps;
+                sectors.observers = observers;
+                sectors.eyes      = eyes;
+                sectors.targets   = targets;
+                sectors.sector_cells = sector_cells;
+                sectors.sector_len   = sector_len;
+                sectors.max_range = max_range;
+
+                ComputeTask task = new ComputeTask();
+                task.reader  = reader;
+                task.eyes    = eyes;
+                task.targets = targets;
+                task.sector_cells = sector_cells;
+                task.sector_len   = sector_len;
+                task.result  = result;
+                task.tolerance = tolerance;
+                WorkerPool workers = surface.getWorkerPool();
+                if (workers != null) {
+                    workers.execute(sectors, num_observers);
+                    workers.execute(task, num_observers*NUM_SECTORS);
+                } else {
+                    for (int i = 0; i < num_observers; ++i)
+                        sectors.run(i);
+                    for (int i = 0; i < num_observers*NUM_SECTORS; ++i)
+                        task.run(i);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Paints the overlay tiles from the raster
+     */
+    private final class Overlay implements TextureLoader {
+        public void loadTextureTile(TextureTile tile) {
+            if (!tile.waitForLoading())
+                return;
+            tile.startLoading();
+
+            double t_lon = surface.intToLon(tile.getIntLon());
+            double t_dlon = tile.getIntLonDim()*Math.PI/(1L << 31);
+            double t_lat0 = surface.intToLat(tile.getIntLat());
+            double t_lat1 = surface.intToLat(tile.getIntLat() + tile.getIntLatDim());
+
+            // Longitude of the tile relative to the raster
+            double x0 = t_lon - (lon - dlon/2);
+            while (x0 < -Math.PI) x0 += 2*Math.PI;
+            while (x0 >= Math.PI) x0 -= 2*Math.PI;
+            double y0 = t_lat0 - (lat - dlat/2);
+            if (x0 >= num_lon*dlon || x0 + t_dlon <= 0 ||
+                    y0 >= num_lat*dlat || y0 + (t_lat1 - t_lat0) <= 0) {
+                tile.setOutsideOfArea();
+                return;
+            }
+            if ((t_lat1 - t_lat0)/TILE_SIZE < dlat/4 && t_dlon/TILE_SIZE < dlon/4) {
+                tile.setOutsideOfResolution();
+                return;
+            }
+
+            int [] raster;
+            int v_argb, h_argb;
+            synchronized (Viewshed.this) {
+                raster = visible;
+                v_argb = visible_argb;
+                h_argb = hidden_argb;
+            }
+            BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            int [] row = new int[TILE_SIZE];
+            for (int y = 0; y < TILE_SIZE; ++y) {
+                // The first image row is the northern edge of the tile
+                int j = (int)Math.floor((y0 + (t_lat1 - t_lat0)*(TILE_SIZE - y - .5)/TILE_SIZE)/dlat);
+                for (int x = 0; x < TILE_SIZE; ++x) {
+                    int i = (int)Math.floor((x0 + t_dlon*(x + .5)/TILE_SIZE)/dlon);
+                    if (i < 0 || i >= num_lon || j < 0 || j >= num_lat)
+                        row[x] = 0;
+                    else
+                        row[x] = raster[j*num_lon+i] > 0 ? v_argb : h_argb;
+                }
+                img.setRGB(0, y, TILE_SIZE, 1, row, 0, TILE_SIZE);
+            }
+            tile.setTexture(Texture2D.createTexture(new BufferedImageBuffer(img)), 0);
+        }
+
+        public boolean stopLoadingTextureTile(TextureTile tile) {
+            return false;
+        }
+    }
+
+    /**
+     * Show the result as a texture overlay on the surface.
+     * The overlay is repainted when the result is computed again.
+     * @param visible_argb The color of the cells seen by the observers
+     * @param hidden_argb The color of the other cells, usually transparent
+     */
+    public synchronized void showOverlay(int visible_argb, int hidden_argb) {
+        this.visible_argb = visible_argb;
+        this.hidden_argb  = hidden_argb;
+        if (overlay == null)
+            overlay = new TextureCoverage(surface, new Overlay(), new LonLatTextureCoosys(surface));
+        else
+            overlay.reloadTextures();
+    }
+
+    /**
+     * Remove the texture overlay from the surface
+     */
+    public synchronized void hideOverlay() {
+        if (overlay == null)
+            return;
+        surface.removeTexture(overlay);
+        overlay.clearTextures();
+        overlay = null;
+    }
+
+    /**
+     * Remove the overlay
+     */
+    public void close() {
+        hideOverlay();
+    }
+}
@@ -23,6 +23,7 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.media.opengl.GL;
 
 /**
@@ -77,6 +78,47 @@ public class BufferedImageBuffer extends ImageBuffer {
     createFromImage(img);
   }
 
+  /**
+   * Read an image from a buffer holding an image file, as a tile read from the cache.
+   * The buffer itself is not changed.
+   */
+  public BufferedImageBuffer(ByteBuffer data) throws IOException {
+    // Read through a memory cache, ImageIO would otherwise cache the stream in a temporary file
+    BufferedImage img = ImageIO.read(new MemoryCacheImageInputStream(new ByteBufferInputStream(data.duplicate())));
+    if (img == null)
+      throw new IOException("Image buffer not readable");
+    createFromImage(img);
+  }
+
+  /**
+   * Input stream reading from a byte buffer
+   */
+  static private class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0)
+        return 0;
+      if (!buf.hasRemaining())
+        return -1;
+      len = Math.min(len, buf.remaining());
+      buf.get(b, off, len);
+      return len;
+    }
+
+    public int available() {
+      return buf.remaining();
+    }
+  }
+
   public BufferedImageBuffer(InputStream stream, File file) throws IOException {
     if (file != null) {
       file.getParentFile().mkdirs();
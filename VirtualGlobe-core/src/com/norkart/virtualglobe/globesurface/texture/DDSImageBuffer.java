@@ -299,6 +299,29 @@ public class DDSImageBuffer extends ImageBuffer {
     }
     
     
+    /**
+     * Read an image from a buffer holding a DDS file, as a tile read from the cache.
+     * The image data is copied from the buffer, the buffer itself is not changed.
+     */
+    public DDSImageBuffer(ByteBuffer data) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < HEADER_SIZE)
+            throw new IOException("DDS image truncated");
+        
+        Header head = new Header();
+        head.get(buf);
+        if (buf.remaining() < total_size)
+            throw new IOException("DDS image truncated");
+        
+        allocate(total_size);
+        buf.limit(buf.position() + total_size);
+        buffer.put(buf);
+        buffer.flip();
+        
+        fillBuffers();
+    }
+    
     // private FileInputStream fis = null;
     // private FileChannel     chan = null;
     
@@ -292,12 +292,16 @@ public abstract class SimpleCachedURLTextureLoader
   }
  */
     
-    protected File getImageFile(TextureTile tile) {
+    protected String getTileSuffix() {
+        return use_compressed?"dds":"jpg";
+    }
+    
+    protected CacheManager.TileData getCachedTile(TextureTile tile) {
         if (cache_mgr != null) {
             String tileset_name  = getTilesetName(tile);
             if (tileset_name != null) {
                 try {
-                    return cache_mgr.getTileCacheFile(tileset_name, tile.getPosCode(), use_compressed?"dds":"jpg");
+                    return cache_mgr.getTile(tileset_name, tile.getPosCode(), getTileSuffix());
                 } catch (IOException ex) {
                     ex.printStackTrace();
                 }
@@ -308,25 +312,25 @@ public abstract class SimpleCachedURLTextureLoader
     
     protected void loadFile(TextureTile tile) {
         if (!enabled) return;
-        // Create filename
-        File imagefile = getImageFile(tile);
+        // Read from the tile cache
+        CacheManager.TileData cached = getCachedTile(tile);
         
         if (!enabled) return;
-        if (imagefile != null && imagefile.canRead() && tile.getFileModTime() <= 0) {
+        if (cached != null && tile.getFileModTime() <= 0) {
             // load from file cache
             
             try {
                 ImageBuffer image_buf = null;
                 if (use_compressed)
-                    image_buf = new DDSImageBuffer(imagefile);
+                    image_buf = new DDSImageBuffer(cached.data);
                 else
-                    image_buf = new BufferedImageBuffer(imagefile);
+                    image_buf = new BufferedImageBuffer(cached.data);
                 
                 if (image_buf != null) {
                     synchronized (tile) {
                         Texture2D t = Texture2D.createTexture(image_buf);
                         if (server_enabled) {
-                            tile.setTexture(t, imagefile.lastModified());
+                            tile.setTexture(t, cached.modified);
                             serverQueue.add(tile);
                         }
                         else
@@ -334,8 +338,6 @@ public abstract class SimpleCachedURLTextureLoader
                     }
                     return;
                 }
-            } catch (FileNotFoundException ex) {
-                ;
             } catch (OutOfMemoryError ex) {
                 // Texture2D.adjustMaxTexMemory();
                 System.err.println("Out of memory in loading of texture file: " + ex);
@@ -345,9 +347,9 @@ public abstract class SimpleCachedURLTextureLoader
             } catch (Exception ex) {
                 System.err.print("Error in loading of texture file : ");
                 System.err.println(ex);
-                System.err.print("Cache file deleted : ");
-                System.err.println(imagefile.getAbsolutePath());
-                imagefile.delete();
+                System.err.print("Cache tile deleted : ");
+                System.err.println(tile.getPosCode());
+                cache_mgr.deleteTile(getTilesetName(tile), tile.getPosCode(), getTileSuffix());
             }
         }
         tile.stopLoading();
@@ -357,10 +359,7 @@ public abstract class SimpleCachedURLTextureLoader
     
     protected void loadServer(TextureTile tile) {
         // Load from server if server image is newer than this
-        File imagefile = getImageFile(tile);
-        File tmpfile = null;
-        if (imagefile != null)
-            tmpfile = new File(imagefile.getPath() + ".tmp");
+        String tileset_name = cache_mgr != null ? getTilesetName(tile) : null;
         int num_timeouts = 0;
         int numerr = 0;
         while (enabled && server_enabled) {
@@ -371,18 +370,23 @@ public abstract class SimpleCachedURLTextureLoader
                 if (in == null) 
                     return;
                 
-                ImageBuffer image_buf = null;
-                if (use_compressed) {
+                if (use_compressed)
                     in = new GZIPInputStream(in);
-                    if (tmpfile == null)
+                
+                ImageBuffer image_buf = null;
+                ByteBuffer data = null;
+                if (tileset_name == null) {
+                    if (use_compressed)
                         image_buf = new DDSImageBuffer(in);
                     else
-                        image_buf = new DDSImageBuffer(in, tmpfile);
-                } else {
-                    if (tmpfile == null)
                         image_buf = new BufferedImageBuffer(in);
+                } else {
+                    // Keep the tile as read, for the cache
+                    data = readAll(in);
+                    if (use_compressed)
+                        image_buf = new DDSImageBuffer(data);
                     else
-                        image_buf = new BufferedImageBuffer(in, tmpfile);
+                        image_buf = new BufferedImageBuffer(data);
                 }
                 /*
                 // Pause for  simulere slapt nettverk
@@ -393,9 +397,12 @@ public abstract class SimpleCachedURLTextureLoader
                 */
                
                 tile.setTexture(Texture2D.createTexture(image_buf), 0);
-                if (tmpfile != null && tmpfile.exists()) {
-                    if (imagefile.exists()) imagefile.delete();
-                    tmpfile.renameTo(imagefile);
+                if (data != null) {
+                    try {
+                        cache_mgr.putTile(tileset_name, tile.getPosCode(), getTileSuffix(), data);
+                    } catch (IOException ex) {
+                        System.err.println("Couldn't write tile to cache: " + ex);
+                    }
                 }
                 
                 return;
@@ -441,6 +448,15 @@ public abstract class SimpleCachedURLTextureLoader
     }
     
     
+    private static ByteBuffer readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64*1024);
+        byte [] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0)
+            out.write(buf, 0, n);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    
     //--------------------------------------------------
     // The Loader thread class
     //--------------------------------------------------
@@ -95,6 +95,15 @@ public class ApplicationSettings {
     static final private String PREF_TEXTURE_MEM_MB = "texMemMB";
     private int texture_mem_MB = 64;
     
+    static final private String PREF_UPDATE_THREADS = "updateThreads";
+    private int update_threads = 0;
+    
+    static final private String PREF_ELEVATION_CONNECTIONS = "elevationConnections";
+    private int elevation_connections = 2;
+    
+    static final private String PREF_ELEVATION_MAX_IN_FLIGHT = "elevationMaxInFlight";
+    private int elevation_max_in_flight = 4;
+    
     static final private String PREF_NODE_NAME     = "/com/norkart/VirtualGlobe";
     static final private String PREF_NODE_OLD_NAME = "/com/sintef/VirtualGlobe";
     
@@ -148,6 +157,9 @@ public class ApplicationSettings {
         use_vbo  = prefs.getBoolean(PREF_USE_VBO, use_vbo);
         max_fps = prefs.getInt(PREF_MAX_FPS, max_fps);
         texture_mem_MB = prefs.getInt(PREF_TEXTURE_MEM_MB, texture_mem_MB);
+        update_threads = prefs.getInt(PREF_UPDATE_THREADS, update_threads);
+        elevation_connections = prefs.getInt(PREF_ELEVATION_CONNECTIONS, elevation_connections);
+        elevation_max_in_flight = prefs.getInt(PREF_ELEVATION_MAX_IN_FLIGHT, elevation_max_in_flight);
     }
     
     private void putPreferences(Preferences prefs) {
@@ -159,6 +171,9 @@ public class ApplicationSettings {
         prefs.putBoolean(PREF_USE_VBO, use_vbo);
         prefs.putInt(PREF_MAX_FPS, max_fps);
         prefs.putInt(PREF_TEXTURE_MEM_MB, texture_mem_MB);
+        prefs.putInt(PREF_UPDATE_THREADS, update_threads);
+        prefs.putInt(PREF_ELEVATION_CONNECTIONS, elevation_connections);
+        prefs.putInt(PREF_ELEVATION_MAX_IN_FLIGHT, elevation_max_in_flight);
     }
     
     public String getResourceString(String key) {
@@ -268,6 +283,64 @@ public class ApplicationSettings {
     public int getTextureMemMB() {
         return texture_mem_MB;
     }
+    
+    /**
+     * Set the number of threads used for updating the terrain
+     * @param update_threads The number of threads, 0 means one per processor
+     */
+    public void setUpdateThreads(int update_threads) {
+        if (this.update_threads == update_threads) return;
+        this.update_threads = update_threads;
+        preferences.putInt(PREF_UPDATE_THREADS, update_threads);
+    }
+    
+    /**
+     * Get the number of threads used for updating the terrain
+     * @return The number of threads, at least 1
+     */
+    public int getUpdateThreads() {
+        if (update_threads > 0)
+            return update_threads;
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Set the number of connections to the elevation server
+     * @param elevation_connections The number of connections
+     */
+    public void setElevationConnections(int elevation_connections) {
+        if (this.elevation_connections == elevation_connections) return;
+        this.elevation_connections = elevation_connections;
+        preferences.putInt(PREF_ELEVATION_CONNECTIONS, elevation_connections);
+    }
+    
+    /**
+     * Get the number of connections to the elevation server
+     * @return The number of connections, at least 1
+     */
+    public int getElevationConnections() {
+        return Math.max(1, elevation_connections);
+    }
+    
+    /**
+     * Set the max number of queries sent to the elevation server
+     * on one connection before the reply to the first has arrived
+     * @param elevation_max_in_flight The number of queries
+     */
+    public void setElevationMaxInFlight(int elevation_max_in_flight) {
+        if (this.elevation_max_in_flight == elevation_max_in_flight) return;
+        this.elevation_max_in_flight = elevation_max_in_flight;
+        preferences.putInt(PREF_ELEVATION_MAX_IN_FLIGHT, elevation_max_in_flight);
+    }
+    
+    /**
+     * Get the max number of queries sent to the elevation server
+     * on one connection before the reply to the first has arrived
+     * @return The number of queries, at least 1
+     */
+    public int getElevationMaxInFlight() {
+        return Math.max(1, elevation_max_in_flight);
+    }
 }
 
 
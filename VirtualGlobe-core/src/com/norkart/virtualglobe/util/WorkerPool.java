@@ -0,0 +1,156 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.util;
+
+/**
+ * A small fixed pool of worker threads for splitting a job into independent parts.
+ * The calling thread takes part in the work and returns when all parts are done.
+ * Only one job runs in the pool at a time, a job started while the pool is busy
+ * (or from inside a running job) is run in the calling thread.
+ */
+public final class WorkerPool implements Runnable {
+    /**
+     * A job that may be split into parts
+     */
+    public interface Task {
+        /**
+         * Do one part of the job. The parts may be run in any order, and in parallel.
+         * @param part The part number, from 0 to the number of parts - 1
+         */
+        void run(int part);
+    }
+
+    private final Thread [] workers;
+    private Task      task = null;
+    private int       num_parts = 0, next_part = 0, num_done = 0;
+    private Throwable failure = null;
+    private boolean   busy    = false;
+    private boolean   closed  = false;
+
+    /**
+     * Create a new worker pool
+     * @param name The name of the worker threads
+     * @param num_threads The number of threads working on a job, including the calling thread
+     * @param priority The priority of the worker threads
+     */
+    public WorkerPool(String name, int num_threads, int priority) {
+        workers = new Thread[Math.max(0, num_threads-1)];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(this, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(priority);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Get the number of threads working on a job, including the calling thread
+     */
+    public int getNumThreads() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Run all parts of the task, and wait for them to complete.
+     * An exception thrown by one of the parts is rethrown in the calling thread.
+     * @param task The task
+     * @param num_parts The number of parts
+     */
+    public void execute(Task task, int num_parts) {
+        boolean parallel;
+        synchronized (this) {
+            parallel = !busy && !closed && workers.length > 0 && num_parts > 1;
+            if (parallel) {
+                busy = true;
+                this.task = task;
+                this.num_parts = num_parts;
+                next_part = 0;
+                num_done  = 0;
+                failure   = null;
+                notifyAll();
+            }
+        }
+        if (!parallel) {
+            for (int i = 0; i < num_parts; ++i)
+                task.run(i);
+            return;
+        }
+
+        work(task);
+
+        Throwable t;
+        synchronized (this) {
+            while (num_done < this.num_parts) {
+                try { wait(); } catch (InterruptedException ex) {}
+            }
+            t = failure;
+            failure = null;
+            this.task = null;
+            busy = false;
+        }
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        if (t != null)
+            throw new RuntimeException(t);
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized int nextPart(Task task) {
+        if (this.task != task || next_part >= num_parts)
+            return -1;
+        return next_part++;
+    }
+
+    private synchronized void partDone(Throwable t) {
+        if (t != null && failure == null)
+            failure = t;
+        if (++num_done >= num_parts)
+            notifyAll();
+    }
+
+    private void work(Task task) {
+        int part;
+        while ((part = nextPart(task)) >= 0) {
+            Throwable t = null;
+            try {
+                task.run(part);
+            } catch (Throwable ex) {
+                t = ex;
+            }
+            partDone(t);
+        }
+    }
+
+    /**
+     * The worker thread loop
+     */
+    public void run() {
+        for (;;) {
+            Task t;
+            synchronized (this) {
+                while (!closed && (task == null || next_part >= num_parts)) {
+                    try { wait(); } catch (InterruptedException ex) {}
+                }
+                if (closed)
+                    return;
+                t = task;
+            }
+            work(t);
+        }
+    }
+}
@@ -82,6 +82,11 @@ public final class CullFrustum  {
      * preserveing texture memory.
      */
     protected float texture_res_factor = 1;
+    /**
+     * Terrain resolution factor, increasing the tolerance for the terrain
+     * where the surface hides the refinement by morphing.
+     */
+    protected float terrain_res_factor = 1;
     
     /**
      * Allocate data structures
@@ -101,6 +106,7 @@ public final class CullFrustum  {
         this.resolution  = f.resolution;
         this.perspective = f.perspective;
         this.texture_res_factor  = f.texture_res_factor;
+        this.terrain_res_factor  = f.terrain_res_factor;
         
         // Transform planes
         for (int i =0; i<6; i++)
@@ -122,6 +128,7 @@ public final class CullFrustum  {
         this.resolution  = resolution;
         this.perspective = perspective;
         this.texture_res_factor  = 1;
+        this.terrain_res_factor  = 1;
         // Transform planes
         for (int i =0; i<6; i++)
             this.planes[i].set(planes[i]);
@@ -137,6 +144,14 @@ public final class CullFrustum  {
     public float getTextureResFactor() {
         return texture_res_factor;
     }
+    
+    public void setTerrainResFactor(float res_factor) {
+        this.terrain_res_factor = res_factor;
+    }
+    
+    public float getTerrainResFactor() {
+        return terrain_res_factor;
+    }
     public GJKPoint3d getCameraCenter() {
         return camera;
     }
@@ -243,7 +258,7 @@ public final class CullFrustum  {
      * @return
      */
     public boolean isVisible(double x, double y, double z, double obj_radius, double tot_dev, double radius2D) {
-        float rr = resolution;
+        float rr = resolution*terrain_res_factor;
         if (!perspective)
             return rr < tot_dev && rr < radius2D;
         
@@ -257,6 +272,31 @@ public final class CullFrustum  {
         return dist < radius*radius && dist < radius2D*radius2D;
     }
     
+    /**
+     * The distance the camera may move before the result of isVisible
+     * with the same arguments may change
+     * @param x
+     * @param y
+     * @param z
+     * @param obj_radius
+     * @param tot_dev
+     * @param radius2D
+     * @return
+     */
+    public double getVisibilityMargin(double x, double y, double z, double obj_radius, double tot_dev, double radius2D) {
+        if (!perspective)
+            return Double.POSITIVE_INFINITY;
+        float rr = resolution*terrain_res_factor;
+        double radius = obj_radius + tot_dev/rr;
+        x -= camera.x;
+        y -= camera.y;
+        z -= camera.z;
+        double dist = Math.sqrt(x*x+y*y+z*z);
+        radius2D += 2*radius2D/rr;
+        
+        return Math.abs(dist - Math.min(radius, radius2D));
+    }
+    
     /**
      * Compute the distance between the given point and the camera view axis.
      * @param x Point coordinate value
@@ -79,6 +79,7 @@ public class FlytoLookatUpdater  extends FlytoUpdater {
         else
             track.setValues(start_lon, start_lat, start_h, llaz.lon, llaz.lat, end_h);
         track.optimizeCurve();
+        prefetchTrack(track, track.dist);
     }
     
     public  void update() {
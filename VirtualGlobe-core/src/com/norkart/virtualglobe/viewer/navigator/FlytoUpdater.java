@@ -91,6 +91,25 @@ public abstract class FlytoUpdater extends ChainedUpdater {
     }
     
     
+    protected static final int PREFETCH_SAMPLES = 32;
+    protected double [] prefetch_path = new double[3*PREFETCH_SAMPLES];
+    
+    /**
+     * Let the globe prefetch the terrain along the rest of the track
+     * @param track The track
+     * @param x The distance left to the end of the track
+     */
+    protected void prefetchTrack(Track track, double x) {
+        for (int i = 0; i < PREFETCH_SAMPLES; ++i) {
+            double x_i = x*(PREFETCH_SAMPLES-1-i)/PREFETCH_SAMPLES;
+            llaz = navigator.getGlobe().getEllipsoid().forwGeodesic(track.end_lat, track.end_lon, x_i, track.az, llaz);
+            prefetch_path[3*i]   = llaz.lon;
+            prefetch_path[3*i+1] = llaz.lat;
+            prefetch_path[3*i+2] = track.h(x_i);
+        }
+        navigator.getGlobe().setPrefetchPath(prefetch_path, PREFETCH_SAMPLES);
+    }
+    
     /** Creates a new instance of FlytoUpdater */
     public FlytoUpdater(GlobeNavigator navigator) {
         super(navigator);
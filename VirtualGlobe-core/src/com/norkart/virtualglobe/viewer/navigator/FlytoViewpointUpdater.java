@@ -73,6 +73,7 @@ public class FlytoViewpointUpdater extends FlytoUpdater  {
         else
             track.setValues(start_lon, start_lat, start_h, to_lon, to_lat, end_h);
         timeleft = track.optimizeCurve();
+        prefetchTrack(track, track.dist);
     }
     
     public  void update() {
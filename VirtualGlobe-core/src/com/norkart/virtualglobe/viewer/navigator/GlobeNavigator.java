@@ -123,6 +123,9 @@ public class GlobeNavigator implements OriginUpdateListener {
     private NavigatorUpdater updater;
     public void setUpdater(NavigatorUpdater updater) {
         this.updater = updater;
+        // The new updater sets its own path to prefetch
+        if (globe != null)
+            globe.setPrefetchPath(null, 0);
     }
     public NavigatorUpdater getUpdater() {
         return updater;
@@ -135,7 +138,7 @@ public class GlobeNavigator implements OriginUpdateListener {
         
         if (updater != walkFlyUpdater) {
             walkFlyUpdater.stopSpeed();
-            updater = walkFlyUpdater;
+            setUpdater(walkFlyUpdater);
         }
         return walkFlyUpdater;
     }
@@ -35,6 +35,11 @@ public class PathUpdater extends ChainedUpdater {
   protected List<PathPoint> path;
   protected boolean loop;
   protected Iterator vp_it;
+  protected int path_ix = 0;
+  protected boolean prefetch_pending = false;
+
+  protected static final int PREFETCH_POINTS = 8;
+  protected static final int PREFETCH_STEPS  = 4;
 
   public PathUpdater(GlobeNavigator navigator, List<PathPoint> path) {
     super(navigator);
@@ -42,6 +47,7 @@ public class PathUpdater extends ChainedUpdater {
     vp_it = path.iterator();
     if (vp_it.hasNext()) {
       PathPoint pp = (PathPoint)vp_it.next();
+      ++path_ix;
       setValues(pp.data, pp.movetime);
     }
   }
@@ -58,6 +64,42 @@ public class PathUpdater extends ChainedUpdater {
     to_h   = vp_data[2];
     to_az  = vp_data[3];
     to_ha  = vp_data[4];
+    prefetch_pending = true;
+  }
+
+  /**
+   * Let the globe prefetch the terrain along the next points of the path
+   */
+  protected void prefetchPath() {
+    prefetch_pending = false;
+    double [] buf = new double[3*PREFETCH_STEPS*(PREFETCH_POINTS+1)];
+    int n = 0;
+    double lon = navigator.getLon();
+    double lat = navigator.getLat();
+    double h   = navigator.getEllipsHeight();
+    double [] to = { to_lon, to_lat, to_h };
+    for (int i = 0; ; ++i) {
+      for (int s = 1; s <= PREFETCH_STEPS; ++s) {
+        double f = (double)s/PREFETCH_STEPS;
+        buf[3*n]   = lon + Ellipsoid.adjlon(to[0] - lon)*f;
+        buf[3*n+1] = lat + (to[1] - lat)*f;
+        buf[3*n+2] = h   + (to[2] - h)*f;
+        ++n;
+      }
+      if (path == null || i >= PREFETCH_POINTS)
+        break;
+      int ix = path_ix + i;
+      if (ix >= path.size()) {
+        if (!loop || path.isEmpty())
+          break;
+        ix %= path.size();
+      }
+      lon = to[0];
+      lat = to[1];
+      h   = to[2];
+      to  = path.get(ix).data;
+    }
+    navigator.getGlobe().setPrefetchPath(buf, n);
   }
 
   public boolean isActive() {
@@ -74,18 +116,23 @@ public class PathUpdater extends ChainedUpdater {
     while (timeleft < interval) {
       if (vp_it != null && vp_it.hasNext()) {
         PathPoint pp = (PathPoint)vp_it.next();
+        ++path_ix;
         setValues(pp.data, pp.movetime);
       }
       else if (path != null && loop) {
         vp_it = path.iterator();
+        path_ix = 0;
         if (vp_it.hasNext()) {
           PathPoint pp = (PathPoint)vp_it.next();
+          ++path_ix;
           setValues(pp.data, pp.movetime);
         }
       }
       else
         break;
     }
+    if (prefetch_pending)
+      prefetchPath();
     if (timeleft >= interval) {
       daz = navigator.getGlobe().getEllipsoid().inverseGeodesic(navigator.getLat(), navigator.getLon(), to_lat, to_lon, daz);
       if (daz.dist > 0) {
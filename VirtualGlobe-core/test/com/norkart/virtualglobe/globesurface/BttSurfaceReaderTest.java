@@ -0,0 +1,187 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.geopos.Ellipsoid;
+import com.norkart.virtualglobe.viewer.CullFrustum;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import javax.vecmath.*;
+import junit.framework.TestCase;
+
+/**
+ * Readers sampling the surface while the view refines it, and the collector
+ * releases nodes that are reused as soon as no open reader can see them.
+ */
+public class BttSurfaceReaderTest extends TestCase {
+    static final int    NUM_READERS = 2;
+    static final int    MAX_FRAMES  = 100;
+    static final int    GC_FRAMES   = 3;   // Frames to run after the collector has released nodes
+    static final double MIN_H = 200, MAX_H = 800;
+    
+    private File dir;
+    
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("btt", "");
+        dir.delete();
+        dir.mkdir();
+        writeGrid(new File(dir, "grid.bt"), 201, 101, 9, 11, 59.5, 60.5);
+    }
+    
+    protected void tearDown() {
+        File [] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; ++i)
+            files[i].delete();
+        dir.delete();
+    }
+    
+    static double gridH(double lon, double lat) {
+        return (MIN_H+MAX_H)/2 + (MAX_H-MIN_H)/2*Math.sin(lon*20)*Math.cos(lat*30);
+    }
+    
+    /**
+     * Write a geographic binary terrain grid, in metres
+     */
+    static void writeGrid(File f, int cols, int rows,
+            double left, double right, double bottom, double top) throws IOException {
+        FileChannel ch = new RandomAccessFile(f, "rw").getChannel();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+            buf.put("binterr1.3".getBytes("US-ASCII"));
+            buf.putInt(cols);
+            buf.putInt(rows);
+            buf.putShort((short)2);     // Data size
+            buf.putShort((short)0);     // Integer data
+            buf.putShort((short)0);     // Degrees
+            buf.putShort((short)0);     // UTM zone
+            buf.putShort((short)6326);  // WGS84 datum
+            buf.putDouble(left);
+            buf.putDouble(right);
+            buf.putDouble(bottom);
+            buf.putDouble(top);
+            buf.putShort((short)0);     // No external projection
+            buf.putFloat(1);            // Vertical scale
+            buf.position(256);
+            buf.flip();
+            ch.write(buf);
+            
+            buf = ByteBuffer.allocate(2*rows).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < cols; ++i) {
+                buf.clear();
+                for (int j = 0; j < rows; ++j)
+                    buf.putShort((short)Math.round(gridH(Math.toRadians(left + i*(right-left)/(cols-1)),
+                            Math.toRadians(bottom + j*(top-bottom)/(rows-1)))));
+                buf.flip();
+                ch.write(buf);
+            }
+        } finally {
+            ch.close();
+        }
+    }
+    
+    public void testReadersWhileNodesAreReclaimed() throws Exception {
+        final ElevationSource source = new ElevationSource(dir.toURI().toURL(), null);
+        final BttSurface surface = new BttSurface(source);
+        new TextureCoverage(surface, new TextureLoader() {
+            public void loadTextureTile(TextureTile tile) {}
+            public boolean stopLoadingTextureTile(TextureTile tile) { return true; }
+        }, new LonLatTextureCoosys(surface));
+        BttSurfaceView view = new BttSurfaceView(surface);
+        Ellipsoid ellps = surface.getEllipsoid();
+        // The file source gives the node elevations in millimetres
+        final double max_h = MAX_H*1000*surface.scale;
+        
+        // The readers sample around the camera, where the nodes are created and reused
+        final double [] camera = { Math.toRadians(10), Math.toRadians(60) };
+        final boolean [] stop = { false };
+        final int [] passes = new int[NUM_READERS];
+        final String [] failures = new String[NUM_READERS];
+        Thread [] threads = new Thread[NUM_READERS];
+        for (int i = 0; i < NUM_READERS; ++i) {
+            final int k = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    int n = 32;
+                    double [] h = new double[n*n];
+                    try {
+                        while (failures[k] == null) {
+                            synchronized (stop) {
+                                if (stop[0])
+                                    return;
+                            }
+                            double lon, lat;
+                            synchronized (camera) {
+                                lon = camera[0];
+                                lat = camera[1];
+                            }
+                            BttSurface.Reader reader = surface.openReader();
+                            try {
+                                double d = 0.002*(k+1)/n;
+                                reader.getElevations(lon - d*n/2, lat - d*n/2, d, d, n, n, h);
+                            } finally {
+                                reader.close();
+                            }
+                            // Between no data and the highest elevation of the grid
+                            for (int j = 0; j < h.length; ++j)
+                                if (!(h[j] >= 0 && h[j] <= max_h))
+                                    failures[k] = "Elevation " + h[j] + " at pass " + passes[k];
+                            ++passes[k];
+                        }
+                    } catch (RuntimeException ex) {
+                        failures[k] = ex.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        
+        Vector4f [] planes = new Vector4f[6];
+        for (int i = 0; i < 6; ++i)
+            planes[i] = new Vector4f(0, 0, 0, 1);
+        CullFrustum frustum = new CullFrustum();
+        Point3d eye = new Point3d();
+        try {
+            // Jump between two areas, leaving the nodes of the other one to the collector
+            int gc_frames = 0;
+            for (int frame = 0; frame < MAX_FRAMES && gc_frames < GC_FRAMES; ++frame) {
+                double lon = Math.toRadians((frame/5)%2 == 0 ? 9.5 : 10.5) + frame*1e-4;
+                double lat = Math.toRadians(60);
+                synchronized (camera) {
+                    camera[0] = lon;
+                    camera[1] = lat;
+                }
+                ellps.toCartesian(lat, lon, 1000, eye);
+                frustum.setValues(planes, new Point3f(), eye, 0.0015f, true);
+                source.processReplies();
+                view.update(frustum);
+                // As if rendered, the collector keeps the nodes of frames not yet shown
+                view.render_ts = view.ts;
+                if (surface.getGcFreedCount() > 0)
+                    ++gc_frames;
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            for (int i = 0; i < NUM_READERS; ++i)
+                threads[i].join();
+            source.close();
+        }
+        
+        for (int i = 0; i < NUM_READERS; ++i) {
+            assertNull(failures[i], failures[i]);
+            assertTrue(passes[i] > 0);
+        }
+        assertTrue("No nodes were collected", surface.getGcFreedCount() > 0);
+    }
+}
@@ -0,0 +1,106 @@
+//-----------------------------------------------------------------------------
+//
+//                   Copyright (c) Norkart AS 2006-2007
+//
+//             This source code is the property of Norkart AS.
+// Its use by other parties is regulated by license or agreement with Norkart.
+//
+//-----------------------------------------------------------------------------
+package com.norkart.virtualglobe.globesurface;
+
+import com.norkart.geopos.Ellipsoid;
+import com.norkart.virtualglobe.util.WorkerPool;
+import com.norkart.virtualglobe.viewer.CullFrustum;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.vecmath.*;
+import junit.framework.TestCase;
+
+/**
+ * The refinement shared by worker threads creates the same nodes and shows
+ * the same triangles as the refinement in one thread.
+ */
+public class BttSurfaceRefineTest extends TestCase {
+    static final int NUM_FRAMES  = 30;
+    static final int NUM_THREADS = 4;
+    
+    private File dir;
+    
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("btt", "");
+        dir.delete();
+        dir.mkdir();
+        BttSurfaceReaderTest.writeGrid(new File(dir, "grid.bt"), 201, 101, 9, 11, 59.5, 60.5);
+    }
+    
+    protected void tearDown() {
+        File [] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; ++i)
+            files[i].delete();
+        dir.delete();
+    }
+    
+    /**
+     * Give the nodes without elevation one computed from their position.
+     * The replies of the elevation source are never processed, so both surfaces
+     * get the same elevations in the same updates.
+     */
+    static void setElevations(BttSurface surface) {
+        for (int id = 0; id < surface.size; ++id) {
+            if (surface.status[id] <= 0 || surface.int_h[id] != Integer.MIN_VALUE)
+                continue;
+            double lon = surface.intToLon(surface.int_lonlat[2*id]);
+            double lat = surface.intToLat(surface.int_lonlat[2*id+1]);
+            surface.setNodeValues(id, (int)(BttSurfaceReaderTest.gridH(lon, lat)*1000), 1000);
+        }
+    }
+    
+    public void testParallelRefinementMatchesOneThread() throws Exception {
+        BttSurface [] surfaces = new BttSurface[2];
+        BttSurfaceView [] views = new BttSurfaceView[2];
+        ElevationSource [] sources = new ElevationSource[2];
+        WorkerPool workers = new WorkerPool("BttSurfaceRefineTest", NUM_THREADS, Thread.NORM_PRIORITY);
+        for (int k = 0; k < 2; ++k) {
+            sources[k]  = new ElevationSource(dir.toURI().toURL(), null);
+            surfaces[k] = new BttSurface(sources[k]);
+            new TextureCoverage(surfaces[k], new TextureLoader() {
+                public void loadTextureTile(TextureTile tile) {}
+                public boolean stopLoadingTextureTile(TextureTile tile) { return true; }
+            }, new LonLatTextureCoosys(surfaces[k]));
+            views[k] = new BttSurfaceView(surfaces[k]);
+        }
+        views[0].setWorkerPool(null);
+        views[1].setWorkerPool(workers);
+        
+        Ellipsoid ellps = surfaces[0].getEllipsoid();
+        Vector4f [] planes = new Vector4f[6];
+        for (int i = 0; i < 6; ++i)
+            planes[i] = new Vector4f(0, 0, 0, 1);
+        CullFrustum frustum = new CullFrustum();
+        Point3d eye = new Point3d();
+        try {
+            // Descend towards the terrain while flying east
+            for (int frame = 0; frame < NUM_FRAMES; ++frame) {
+                double lon = Math.toRadians(9.8 + frame*0.01);
+                double lat = Math.toRadians(60 + frame*0.002);
+                ellps.toCartesian(lat, lon, 20000/(frame+1) + 1000, eye);
+                frustum.setValues(planes, new Point3f(), eye, 0.002f, true);
+                for (int k = 0; k < 2; ++k) {
+                    setElevations(surfaces[k]);
+                    assertTrue(views[k].update(frustum));
+                    views[k].render_ts = views[k].ts;
+                }
+                
+                String msg = "Frame " + frame;
+                assertEquals(msg, views[0].getNumTriangles(), views[1].getNumTriangles());
+                assertEquals(msg, surfaces[0].size, surfaces[1].size);
+                assertTrue(msg, Arrays.equals(surfaces[0].int_lonlat, surfaces[1].int_lonlat));
+                assertTrue(msg, Arrays.equals(surfaces[0].status, surfaces[1].status));
+            }
+        } finally {
+            for (int k = 0; k < 2; ++k)
+                sources[k].close();
+        }
+    }
+}
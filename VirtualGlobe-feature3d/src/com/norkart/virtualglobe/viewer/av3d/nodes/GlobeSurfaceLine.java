@@ -87,6 +87,8 @@ public class GlobeSurfaceLine
         CullFrustum cullFrustum = new CullFrustum();
         boolean valid_frustum = false;
         boolean has_new = false;
+        double [] pos_lonlat = new double[256];
+        double [] pos_h      = new double[128];
         
         synchronized void initiateUpdate(CullFrustum frustum) {
             if (frustum != null) {
@@ -139,11 +141,22 @@ public class GlobeSurfaceLine
             Ellipsoid ellps = globe.getSurface().getEllipsoid();
             Ellipsoid.DistAz daz = new Ellipsoid.DistAz();
             PositionList pos_list = geometry.getPositionList();
+            int num_pos = pos_list.size();
+            if (pos_h.length < num_pos) {
+                pos_lonlat = new double[2*num_pos];
+                pos_h      = new double[num_pos];
+            }
+            for (int i = 0; i < num_pos; ++i) {
+                pos_lonlat[2*i]   = Math.toRadians(pos_list.getLongitude(i));
+                pos_lonlat[2*i+1] = Math.toRadians(pos_list.getLatitude(i));
+            }
+            globe.getSurface().getElevations(pos_lonlat, num_pos, pos_h);
+            
             ArrayList<Point3d> point_list = new ArrayList();
-            for (int i = 0; i < pos_list.size(); ++i) {
-                double lat = Math.toRadians(pos_list.getLatitude(i));
-                double lon = Math.toRadians(pos_list.getLongitude(i));
-                double h = globe.getSurface().getElevation(lon, lat);
+            for (int i = 0; i < num_pos; ++i) {
+                double lon = pos_lonlat[2*i];
+                double lat = pos_lonlat[2*i+1];
+                double h = pos_h[i];
                 Point3d p = new Point3d();
                 
                 ellps.toCartesian(lat, lon, h, p);